@@ -0,0 +1,66 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link PushNotification#encode} with simple, complex, and large
+ * payloads in each {@link FrameFormat}.
+ *
+ * @author Will Glozer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+    @Param({ "simple", "complex", "extra" })
+    public String payload;
+
+    @Param({ "COMMAND_1", "COMMAND_2" })
+    public FrameFormat format;
+
+    private ObjectMapper mapper;
+    private ChannelBuffer buffer;
+    private PushNotification notification;
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper();
+        buffer = ChannelBuffers.dynamicBuffer(1024);
+
+        notification = new PushNotification(1, new byte[32]);
+        notification.expiry(new Date());
+
+        if (payload.equals("simple")) {
+            notification.alert("Hello World!").badge(1).sound("default");
+        } else if (payload.equals("complex")) {
+            notification.alert().body("Hello World!").actionLocKey("VIEW")
+                .locKey("GREETING").locArgs("Alice", "Bob").launchImage("launch.png");
+            notification.badge(42);
+        } else {
+            notification.alert("Hello World!");
+            Map<String, Object> extra = notification.extra();
+            for (int i = 0; i < 50; i++) {
+                extra.put("key" + i, i % 2 == 0 ? "value" + i : i);
+            }
+        }
+    }
+
+    @Benchmark
+    public ChannelBuffer encode() throws Exception {
+        buffer.clear();
+        notification.encode(mapper, buffer, format);
+        return buffer;
+    }
+}
@@ -0,0 +1,15 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Access to package-private {@link PushNotification} construction for
+ * benchmarks in other packages.
+ *
+ * @author Will Glozer
+ */
+public class Notifications {
+    public static PushNotification create(long id, byte[] token) {
+        return new PushNotification(id, token).alert("Hello World!").badge(1);
+    }
+}
@@ -0,0 +1,246 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.load;
+
+import com.lambdaworks.snap.*;
+import com.lambdaworks.snap.metrics.Histogram;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator that drives a {@link PushNotificationClient} against a local
+ * TLS sink and periodically reports sustained throughput, write-to-ack latency
+ * percentiles, GC activity, and heap growth. Options are given as key=value:
+ *
+ * <pre>
+ * producers=4      producer threads
+ * connections=1    gateway connections
+ * tokens=10000     distinct device tokens
+ * payload=simple   payload shape: simple, complex, or extra
+ * duration=60      run time in seconds
+ * interval=5       reporting interval in seconds
+ * limit=10000      queue limit, producers block when full
+ * </pre>
+ *
+ * Latency is measured from send until the notification's future completes,
+ * which happens when it has been written unless a quiet period is configured.
+ *
+ * @author Will Glozer
+ */
+public class LoadGenerator {
+    private Map<String, String> options;
+    private PushNotificationClient client;
+    private byte[][] tokens;
+    private String payload;
+    private AtomicLong acked;
+    private volatile Histogram interval;
+    private Histogram total;
+    private volatile boolean running;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options  = options;
+        this.acked    = new AtomicLong();
+        this.interval = new Histogram();
+        this.total    = new Histogram();
+        this.payload  = option("payload", "simple");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        int producers   = Integer.parseInt(option("producers",   "4"));
+        int connections = Integer.parseInt(option("connections", "1"));
+        int count       = Integer.parseInt(option("tokens",      "10000"));
+        int duration    = Integer.parseInt(option("duration",    "60"));
+        int period      = Integer.parseInt(option("interval",    "5"));
+        int limit       = Integer.parseInt(option("limit",       "10000"));
+
+        SSLContext sslContext = sslContext();
+        LoadSink sink = new LoadSink(sslContext);
+        InetSocketAddress address = sink.start();
+
+        client = new PushNotificationClient(address, address, sslContext, connections);
+        client.setQueueLimit(limit, OverflowPolicy.BLOCK);
+
+        Random random = new Random();
+        tokens = new byte[count][32];
+        for (byte[] token : tokens) random.nextBytes(token);
+
+        System.out.printf("producers=%d connections=%d tokens=%d payload=%s duration=%ds%n",
+                producers, connections, count, payload, duration);
+
+        running = true;
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Producer(i), "producer-" + i);
+            threads[i].start();
+        }
+
+        report(duration, period, sink);
+
+        running = false;
+        for (Thread thread : threads) thread.join();
+        client.shutdown();
+        sink.stop();
+    }
+
+    /**
+     * Report statistics every period seconds until duration has elapsed, then
+     * report a summary of the entire run.
+     */
+    private void report(int duration, int period, LoadSink sink) throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long startHeap = memory.getHeapMemoryUsage().getUsed();
+        long start = System.nanoTime();
+        long[] gc = gc(), lastGC = gc;
+        long lastAcked = 0, lastTime = start;
+
+        while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(duration)) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(period));
+
+            Histogram h = interval;
+            interval = new Histogram();
+
+            long now = System.nanoTime(), n = acked.get();
+            long[] current = gc();
+            double rate = (n - lastAcked) / ((now - lastTime) / 1e9);
+            long heap = memory.getHeapMemoryUsage().getUsed();
+
+            System.out.printf("%4ds %10.0f/s p50=%dus p99=%dus p999=%dus max=%dus gc=%d/%dms heap=%dMB%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), rate,
+                    micros(h.getPercentile(0.5)), micros(h.getPercentile(0.99)),
+                    micros(h.getPercentile(0.999)), micros(h.getMax()),
+                    current[0] - lastGC[0], current[1] - lastGC[1], heap >> 20);
+
+            lastAcked = n;
+            lastTime  = now;
+            lastGC    = current;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long[] end = gc();
+        System.out.printf("total: %d notifications %.0f/s %dMB received p50=%dus p99=%dus p999=%dus max=%dus%n",
+                acked.get(), acked.get() / (elapsed / 1e9), sink.bytes() >> 20,
+                micros(total.getPercentile(0.5)), micros(total.getPercentile(0.99)),
+                micros(total.getPercentile(0.999)), micros(total.getMax()));
+        System.out.printf("gc: %d collections %dms paused, heap growth %dMB%n",
+                end[0] - gc[0], end[1] - gc[1], (memory.getHeapMemoryUsage().getUsed() - startHeap) >> 20);
+    }
+
+    /**
+     * Get the total number of collections and milliseconds spent collecting.
+     */
+    private static long[] gc() {
+        long[] gc = new long[2];
+        List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean bean : beans) {
+            gc[0] += Math.max(0, bean.getCollectionCount());
+            gc[1] += Math.max(0, bean.getCollectionTime());
+        }
+        return gc;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private String option(String name, String value) {
+        return options.containsKey(name) ? options.get(name) : value;
+    }
+
+    private PushNotification create(byte[] token, long n) {
+        PushNotification pn = client.create(token);
+        if (payload.equals("simple")) {
+            pn.alert("Hello World!").badge(1).sound("default");
+        } else if (payload.equals("complex")) {
+            pn.alert().body("Hello World!").actionLocKey("VIEW")
+                .locKey("GREETING").locArgs("Alice", "Bob").launchImage("launch.png");
+            pn.badge((int) n);
+        } else {
+            pn.alert("Hello World!");
+            Map<String, Object> extra = pn.extra();
+            for (int i = 0; i < 20; i++) {
+                extra.put("key" + i, i % 2 == 0 ? "value" + i : i);
+            }
+        }
+        return pn;
+    }
+
+    /**
+     * Producer sending notifications to tokens in turn.
+     */
+    protected class Producer implements Runnable {
+        private int index;
+
+        public Producer(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            long n = index;
+            while (running) {
+                PushNotification pn = create(tokens[(int) (n++ % tokens.length)], n);
+                final long start = System.nanoTime();
+                client.send(pn).addListener(new PushNotificationFutureListener() {
+                    @Override
+                    public void operationComplete(PushNotificationFuture future) {
+                        if (!future.isSuccess()) return;
+                        long latency = System.nanoTime() - start;
+                        interval.record(latency);
+                        total.record(latency);
+                        acked.incrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Create a {@link SSLContext} using the bundled self-signed certificate as
+     * both key and trust material, for both the client and the sink.
+     */
+    private static SSLContext sslContext() throws Exception {
+        char[] passwd = "changeit".toCharArray();
+        KeyStore keystore = KeyStore.getInstance("JKS");
+        InputStream is = LoadGenerator.class.getResourceAsStream("/loadgen.keystore");
+        try {
+            keystore.load(is, passwd);
+        } finally {
+            is.close();
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keystore, passwd);
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keystore);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return sslContext;
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.load;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal TLS server standing in for the APNS gateway, which discards the
+ * notifications written to it and counts the bytes received.
+ *
+ * @author Will Glozer
+ */
+public class LoadSink {
+    private SSLContext sslContext;
+    private ServerBootstrap bootstrap;
+    private ChannelGroup channels;
+    private AtomicLong bytes;
+
+    public LoadSink(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        this.channels   = new DefaultChannelGroup();
+        this.bytes      = new AtomicLong();
+    }
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     *
+     * @return The address of the sink.
+     */
+    public InetSocketAddress start() {
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+                engine.setEnabledProtocols(new String[] { "TLSv1.2" });
+                return Channels.pipeline(new SslHandler(engine), new Handler());
+            }
+        });
+
+        Channel channel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Close all connections and stop listening.
+     */
+    public void stop() {
+        channels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+    }
+
+    /**
+     * Get the number of bytes received.
+     *
+     * @return The number of bytes.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    protected class Handler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            channels.add(ctx.getChannel());
+            ctx.getPipeline().get(SslHandler.class).handshake();
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            bytes.addAndGet(((ChannelBuffer) e.getMessage()).readableBytes());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            e.getChannel().close();
+        }
+    }
+}
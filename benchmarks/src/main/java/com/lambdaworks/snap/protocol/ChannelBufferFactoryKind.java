@@ -0,0 +1,29 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+
+/**
+ * Buffer factories a channel may realistically be configured with.
+ *
+ * @author Will Glozer
+ */
+public enum ChannelBufferFactoryKind {
+    HEAP {
+        @Override
+        public ChannelBufferFactory factory() {
+            return HeapChannelBufferFactory.getInstance();
+        }
+    },
+    DIRECT {
+        @Override
+        public ChannelBufferFactory factory() {
+            return DirectChannelBufferFactory.getInstance();
+        }
+    };
+
+    public abstract ChannelBufferFactory factory();
+}
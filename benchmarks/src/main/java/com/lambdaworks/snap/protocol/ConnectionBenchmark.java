@@ -0,0 +1,67 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.ErrorListener;
+import com.lambdaworks.snap.Notifications;
+import com.lambdaworks.snap.PushNotification;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of {@link PushNotificationConnection#send} with many producer
+ * threads contending on the shared queue and channel.
+ *
+ * @author Will Glozer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ConnectionBenchmark {
+    private LocalSink sink;
+    private HashedWheelTimer timer;
+    private Channel channel;
+    private PushNotificationConnection connection;
+    private AtomicLong counter;
+    private byte[] token;
+
+    @Setup
+    public void setup() {
+        sink    = new LocalSink();
+        timer   = new HashedWheelTimer();
+        counter = new AtomicLong();
+        token   = new byte[32];
+
+        NotificationQueue queue = new NotificationQueue();
+        SentWindow window = new SentWindow();
+        PushNotificationHandler handler = new PushNotificationHandler(queue, window,
+                Collections.<ErrorListener>emptyList(), new ObjectMapper(), timer, LocalSink.metrics());
+        connection = new PushNotificationConnection(queue, window, LocalSink.metrics());
+
+        channel = sink.connect(ChannelBufferFactoryKind.HEAP, handler, connection);
+    }
+
+    @TearDown
+    public void teardown() {
+        channel.close().awaitUninterruptibly();
+        timer.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    public PushNotification send() {
+        PushNotification n = Notifications.create(counter.incrementAndGet(), token);
+        connection.send(n);
+        return n;
+    }
+}
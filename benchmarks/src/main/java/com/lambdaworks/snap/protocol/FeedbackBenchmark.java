@@ -0,0 +1,87 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.lambdaworks.snap.FeedbackBatch;
+import com.lambdaworks.snap.FeedbackBatchListener;
+import com.lambdaworks.snap.FeedbackListener;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link FeedbackDecoder} and {@link FeedbackServiceConnection} on
+ * multi-megabyte feedback streams.
+ *
+ * @author Will Glozer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedbackBenchmark {
+    @Param({ "1", "8" })
+    public int megabytes;
+
+    @Param({ "token", "batch" })
+    public String listener;
+
+    private HashedWheelTimer timer;
+    private FeedbackServiceConnection connection;
+    private DecoderEmbedder<Object> embedder;
+    private ChannelBuffer stream;
+
+    @Setup
+    public void setup(final Blackhole bh) {
+        timer      = new HashedWheelTimer();
+        connection = new FeedbackServiceConnection(null, null, null, timer, LocalSink.metrics());
+        if (listener.equals("token")) {
+            connection.addListener(new FeedbackListener() {
+                @Override
+                public void feedback(byte[] token, long timestamp) {
+                    bh.consume(token);
+                    bh.consume(timestamp);
+                }
+            });
+        } else {
+            connection.addBatchListener(new FeedbackBatchListener() {
+                @Override
+                public void feedback(FeedbackBatch batch) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        bh.consume(batch.timestamp(i));
+                        bh.consume(batch.tokenLength(i));
+                    }
+                }
+            });
+        }
+
+        embedder = new DecoderEmbedder<Object>(new FeedbackDecoder(FeedbackServiceConnection.BATCH_SIZE), connection);
+
+        int count = megabytes * 1024 * 1024 / 38;
+        stream = ChannelBuffers.buffer(count * 38);
+        byte[] token = new byte[32];
+        for (int i = 0; i < count; i++) {
+            token[0] = (byte) i;
+            stream.writeInt(i);
+            stream.writeShort(token.length);
+            stream.writeBytes(token);
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        timer.stop();
+    }
+
+    @Benchmark
+    public void decode() {
+        embedder.offer(stream.duplicate());
+    }
+}
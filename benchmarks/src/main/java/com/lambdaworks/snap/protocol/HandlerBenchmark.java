@@ -0,0 +1,70 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.ErrorListener;
+import com.lambdaworks.snap.Notifications;
+import com.lambdaworks.snap.PushNotification;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link PushNotificationHandler#writeRequested} writing through an
+ * in-VM channel configured with heap or direct buffers.
+ *
+ * @author Will Glozer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+    @Param({ "HEAP", "DIRECT" })
+    public ChannelBufferFactoryKind factory;
+
+    @Param({ "0", "16384" })
+    public int batch;
+
+    private LocalSink sink;
+    private HashedWheelTimer timer;
+    private PushNotificationHandler handler;
+    private Channel channel;
+    private byte[] token;
+    private long id;
+
+    @Setup
+    public void setup() {
+        sink  = new LocalSink();
+        timer = new HashedWheelTimer();
+        token = new byte[32];
+
+        NotificationQueue queue = new NotificationQueue();
+        handler = new PushNotificationHandler(queue, new SentWindow(),
+                Collections.<ErrorListener>emptyList(), new ObjectMapper(), timer, LocalSink.metrics());
+        handler.setBatching(batch, 10, TimeUnit.MILLISECONDS);
+
+        channel = sink.connect(factory, handler);
+    }
+
+    @TearDown
+    public void teardown() {
+        handler.setBatching(0, 0, TimeUnit.MILLISECONDS);
+        channel.close().awaitUninterruptibly();
+        timer.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    public ChannelFuture write() {
+        PushNotification n = Notifications.create(id++, token);
+        return channel.write(n);
+    }
+}
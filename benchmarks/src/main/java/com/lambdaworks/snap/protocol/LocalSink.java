@@ -0,0 +1,72 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.lambdaworks.snap.metrics.Gauge;
+import com.lambdaworks.snap.metrics.Metrics;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+
+/**
+ * In-VM server that discards everything written to it, used to exercise the
+ * client pipeline without network or TLS overhead.
+ *
+ * @author Will Glozer
+ */
+public class LocalSink {
+    private ServerBootstrap server;
+    private ClientBootstrap client;
+    private LocalAddress address;
+    private Channel serverChannel;
+
+    public LocalSink() {
+        address = new LocalAddress(LocalAddress.EPHEMERAL);
+        server  = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        client  = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+
+        server.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(new SimpleChannelUpstreamHandler());
+            }
+        });
+
+        serverChannel = server.bind(address);
+    }
+
+    /**
+     * Connect a client channel with the supplied handlers to the sink.
+     *
+     * @param factory   Buffer factory for the client channel.
+     * @param handlers  Client pipeline.
+     *
+     * @return the connected channel.
+     */
+    public Channel connect(ChannelBufferFactoryKind factory, ChannelHandler... handlers) {
+        ChannelPipeline pipeline = Channels.pipeline(handlers);
+        Channel channel = client.getFactory().newChannel(pipeline);
+        channel.getConfig().setBufferFactory(factory.factory());
+        channel.connect(address).awaitUninterruptibly();
+        return channel;
+    }
+
+    public void close() {
+        serverChannel.close().awaitUninterruptibly();
+        client.releaseExternalResources();
+        server.releaseExternalResources();
+    }
+
+    public static Metrics metrics() {
+        Gauge zero = new Gauge() {
+            @Override
+            public long getValue() {
+                return 0;
+            }
+        };
+        return new Metrics(zero, zero);
+    }
+}
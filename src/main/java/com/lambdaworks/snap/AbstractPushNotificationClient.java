@@ -0,0 +1,363 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.metrics.*;
+import com.lambdaworks.snap.protocol.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base of the push notification clients, holding the pool of connections that
+ * drain a shared {@link NotificationQueue}, the queue's configuration, the dead
+ * token cache, and the error listeners. Subclasses create the connections and
+ * may reject notifications before they are queued.
+ *
+ * @author Will Glozer
+ */
+public abstract class AbstractPushNotificationClient<C extends NotificationConnection> {
+    protected static final ReconnectPolicy DEFAULT_RECONNECT_POLICY = new ExponentialBackoff(4, 30000, TimeUnit.MILLISECONDS);
+
+    protected ClientRuntime runtime;
+    protected boolean owner;
+    protected ChannelGroup channels;
+    protected ConnectionWatchdog[] watchdogs;
+    protected C[] connections;
+    protected NotificationQueue queue;
+    protected Metrics metrics;
+    protected volatile DeadTokenCache deadTokens;
+    protected List<ErrorListener> listeners;
+    protected AtomicInteger next;
+    protected AtomicLong counter;
+    protected ObjectMapper mapper;
+
+    /**
+     * Create the queue, metrics, and listeners shared by a pool of connections.
+     * The subclass must create the connections and then {@link #start start} the
+     * queue and metrics.
+     *
+     * @param runtime       Runtime.
+     * @param owner         true if the runtime is shut down with this client.
+     * @param connections   Number of connections.
+     */
+    AbstractPushNotificationClient(ClientRuntime runtime, boolean owner, int connections) {
+        if (connections < 1) throw new IllegalArgumentException("connections must be >= 1");
+
+        this.runtime = runtime;
+        this.owner   = owner;
+
+        channels  = new DefaultChannelGroup();
+        watchdogs = new ConnectionWatchdog[connections];
+        listeners = new CopyOnWriteArrayList<ErrorListener>();
+        next      = new AtomicInteger(0);
+        counter   = new AtomicLong(0);
+        mapper    = new ObjectMapper();
+        metrics   = new Metrics(new Gauge() {
+            @Override
+            public long getValue() {
+                return queue.size();
+            }
+        }, new Gauge() {
+            @Override
+            public long getValue() {
+                return inFlight();
+            }
+        });
+        queue     = new NotificationQueue(metrics);
+    }
+
+    /**
+     * Wait until every connection in the pool has connected and is ready to send.
+     * Connections are established in parallel when the client is created, so
+     * calling this at startup pre-warms the pool before the first notification is
+     * sent.
+     *
+     * @param timeout   Maximum time to wait.
+     * @param unit      Unit of time for the timeout.
+     *
+     * @return true if all connections are connected.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (C c : connections) {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            if (!c.awaitConnected(remaining, TimeUnit.NANOSECONDS)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Limit the number of notifications waiting in each {@link Lane queue lane},
+     * which is unbounded by default.
+     *
+     * @param limit     Maximum number of queued notifications per lane.
+     * @param policy    Policy applied by {@link #send send} when a lane is full.
+     */
+    public void setQueueLimit(int limit, OverflowPolicy policy) {
+        queue.setLimit(limit, policy);
+    }
+
+    /**
+     * Limit the number of notifications waiting in a single queue lane.
+     *
+     * @param lane      Lane.
+     * @param limit     Maximum number of queued notifications.
+     * @param policy    Policy applied by {@link #send send} when the lane is full.
+     */
+    public void setQueueLimit(Lane lane, int limit, OverflowPolicy policy) {
+        queue.setLimit(lane, limit, policy);
+    }
+
+    /**
+     * Set the scheduling weight of a queue lane. While several lanes hold waiting
+     * notifications, each lane is drained in proportion to its weight.
+     *
+     * @param lane      Lane.
+     * @param weight    Weight relative to the other lanes.
+     */
+    public void setLaneWeight(Lane lane, int weight) {
+        queue.setWeight(lane, weight);
+    }
+
+    /**
+     * Send the notifications in each queue lane in order of expiry rather than in
+     * the order they were sent. Expired notifications are discarded from the queue
+     * regardless of ordering.
+     *
+     * @param ordered   true to order each lane by expiry.
+     */
+    public void setDeadlineOrdering(boolean ordered) {
+        queue.setDeadlineOrdering(ordered);
+    }
+
+    /**
+     * Set the policy determining the delay before each reconnection attempt.
+     * The default is an {@link ExponentialBackoff} from 4ms to 30s with jitter.
+     *
+     * @param policy    Reconnect policy.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        for (ConnectionWatchdog watchdog : watchdogs) {
+            watchdog.setReconnectPolicy(policy);
+        }
+    }
+
+    /**
+     * Enable suppression of notifications to tokens known to be invalid. Tokens
+     * rejected by the server as invalid are held off-heap for the ttl, and
+     * notifications sent to them fail immediately with an
+     * {@link ErrorResponseException} with status 8, as if the server had rejected
+     * them.
+     *
+     * @param limit Maximum number of tokens held.
+     * @param ttl   Time after which a token is no longer suppressed.
+     * @param unit  Unit of time for the ttl.
+     */
+    public void enableDeadTokenCache(int limit, long ttl, TimeUnit unit) {
+        if (deadTokens != null) throw new IllegalStateException("Dead token cache already enabled");
+        final DeadTokenCache cache = new DeadTokenCache(limit, ttl, unit);
+
+        listeners.add(new ErrorListener() {
+            @Override
+            public void error(long id, byte[] token, int status) {
+                if (status == PushNotificationHandler.INVALID_TOKEN && token != null) cache.add(token);
+            }
+        });
+
+        deadTokens = cache;
+    }
+
+    /**
+     * Get the metrics of this client's connections.
+     *
+     * @return The metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Add an error listener, notified when the server rejects a notification.
+     *
+     * @param listener  Listener.
+     */
+    public void addErrorListener(ErrorListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove an error listener.
+     *
+     * @param listener  Listener.
+     */
+    public void removeErrorListener(ErrorListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Create a new push notification. The notification will be assigned a monotonically increasing
+     * unsigned int id that begins at zero and wraps around at 2^32-1.
+     *
+     * @param token Target device token.
+     *
+     * @return A new notification instance.
+     */
+    public PushNotification create(byte[] token) {
+        return new PushNotification(counter.incrementAndGet(), token);
+    }
+
+    /**
+     * Create a new push notification to the specified device, assigned an id in
+     * the same manner as {@link #create(byte[]) create}.
+     *
+     * @param token Target device token.
+     *
+     * @return A new notification instance.
+     */
+    public PushNotification create(DeviceToken token) {
+        return create(token.toBytes());
+    }
+
+    /**
+     * Send a push notification. Notifications are distributed round-robin across
+     * connected connections. When the queue is full this method blocks, discards
+     * the oldest queued notification, or throws an exception, depending on the
+     * configured {@link OverflowPolicy}. When the dead token cache is enabled
+     * notifications to tokens known to be invalid are not sent and their futures
+     * fail immediately, as do all notifications while the
+     * {@link PushNotificationClient#enableCircuitBreaker circuit breaker} is open.
+     *
+     * @param notification  Push notification.
+     *
+     * @return A future that completes when the notification has been sent.
+     *
+     * @throws IllegalArgumentException when the notification has no token.
+     * @throws IllegalStateException when the queue is full and the policy is FAIL.
+     */
+    public PushNotificationFuture send(PushNotification notification) {
+        checkToken(notification);
+        if (!accept(notification)) return notification.future();
+        try {
+            connection().send(notification);
+        } catch (IllegalStateException e) {
+            notification.future().setFailure(e);
+            throw e;
+        }
+        return notification.future();
+    }
+
+    /**
+     * Send a push notification if space is available in the queue, without blocking.
+     * When the queue is full and the policy is DROP_OLDEST the oldest queued
+     * notification is discarded, otherwise the notification is rejected.
+     * Notifications suppressed by the dead token cache or sent while the circuit
+     * breaker is open are also rejected.
+     *
+     * @param notification  Push notification.
+     *
+     * @return true if the notification was queued.
+     *
+     * @throws IllegalArgumentException when the notification has no token.
+     */
+    public boolean offer(PushNotification notification) {
+        checkToken(notification);
+        if (!accept(notification)) return false;
+        if (connection().offer(notification)) return true;
+        notification.future().setFailure(new IllegalStateException("Notification queue full"));
+        return false;
+    }
+
+    /**
+     * Shutdown this client and close all open connections. The client should be
+     * discarded after calling shutdown.
+     */
+    public void shutdown() {
+        for (ConnectionWatchdog watchdog : watchdogs) {
+            watchdog.setReconnect(false);
+        }
+        for (C connection : connections) {
+            connection.close();
+        }
+        channels.close().awaitUninterruptibly();
+        queue.clear();
+        metrics.stop();
+        queue.stop();
+        if (owner) runtime.shutdown();
+    }
+
+    /**
+     * Start updating metrics and sweeping expired notifications from the queue,
+     * once the connections have been created.
+     */
+    protected void start() {
+        metrics.start(runtime.getTimer());
+        queue.start(runtime.getTimer());
+    }
+
+    /**
+     * Get the number of notifications being written or awaiting a response.
+     *
+     * @return Number of notifications in flight.
+     */
+    protected abstract long inFlight();
+
+    /**
+     * Decide whether a notification is queued, failing its future if not. By
+     * default notifications to tokens in the dead token cache are rejected.
+     *
+     * @param n Notification.
+     *
+     * @return true if the notification should be queued.
+     */
+    protected boolean accept(PushNotification n) {
+        return !suppress(n);
+    }
+
+    /**
+     * Reject a notification without a target device token, such as a template.
+     *
+     * @param n Notification.
+     */
+    protected void checkToken(PushNotification n) {
+        if (n.token == null) throw new IllegalArgumentException("Notification id " + n.id + " has no token");
+    }
+
+    /**
+     * Fail a notification whose token is in the dead token cache, if enabled.
+     *
+     * @param n Notification.
+     *
+     * @return true if the notification was suppressed.
+     */
+    protected boolean suppress(PushNotification n) {
+        DeadTokenCache cache = deadTokens;
+        if (cache == null || n.token == null || !cache.contains(n.token)) return false;
+        metrics.suppressed.increment();
+        n.future().setFailure(new ErrorResponseException(n.id, PushNotificationHandler.INVALID_TOKEN));
+        return true;
+    }
+
+    /**
+     * Select the next connection to send on, preferring connections that are
+     * currently connected and writable.
+     *
+     * @return The selected connection.
+     */
+    protected C connection() {
+        int n = connections.length;
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        for (int i = 0; i < n; i++) {
+            C c = connections[(start + i) % n];
+            if (c.isWritable()) return c;
+        }
+        return connections[start];
+    }
+}
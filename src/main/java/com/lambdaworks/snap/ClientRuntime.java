@@ -0,0 +1,171 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads and other resources that may be shared by many {@link PushNotificationClient}s:
+ * a single I/O boss thread, a pool of I/O worker threads sized to the number of
+ * cores, a timer thread, and the trust managers for the CA of the binary APNS
+ * gateway. The HTTP/2 provider API has a certificate issued by a different CA, so
+ * its TLS contexts trust the JVM's default trust store instead.
+ * <p>
+ * The timer ticks every {@link #TIMER_TICK} ms so that short delays, such as a
+ * write batching delay, are honored closely. Clients created with a shared runtime
+ * do not release it on shutdown, so the runtime must be shut down once all of its
+ * clients have been.
+ *
+ * @author Will Glozer
+ */
+public class ClientRuntime {
+    public static final long TIMER_TICK = 5;
+
+    private ClientSocketChannelFactory factory;
+    private Timer timer;
+    private TrustManager[] trustManagers;
+    private TrustManager[] defaultTrustManagers;
+
+    /**
+     * Create a new runtime with one I/O worker per available processor.
+     */
+    public ClientRuntime() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new runtime.
+     *
+     * @param workers   Number of I/O worker threads.
+     */
+    public ClientRuntime(int workers) {
+        if (workers < 1) throw new IllegalArgumentException("workers must be >= 1");
+        this.factory = new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool(), 1, workers);
+        this.timer   = new HashedWheelTimer(TIMER_TICK, TimeUnit.MILLISECONDS);
+    }
+
+    ClientSocketChannelFactory getChannelFactory() {
+        return factory;
+    }
+
+    Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Create a {@link SSLContext} that authenticates with the client's private key
+     * and certificate, and only trusts certificates issued by the APNS CA.
+     *
+     * @param keystore  Keystore containing client private key and certificate.
+     * @param passwd    Keystore password.
+     *
+     * @return The TLS context.
+     * @throws GeneralSecurityException when the context cannot be initialized.
+     */
+    public SSLContext createSSLContext(KeyStore keystore, char[] passwd) throws GeneralSecurityException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keystore, passwd);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Create a {@link SSLContext} for the HTTP/2 provider API that authenticates with
+     * the client's private key and certificate, and trusts the certificates trusted
+     * by the JVM's default trust store.
+     *
+     * @param keystore  Keystore containing client private key and certificate.
+     * @param passwd    Keystore password.
+     *
+     * @return The TLS context.
+     * @throws GeneralSecurityException when the context cannot be initialized.
+     */
+    public SSLContext createApiSSLContext(KeyStore keystore, char[] passwd) throws GeneralSecurityException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keystore, passwd);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), getDefaultTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Create a {@link SSLContext} for the HTTP/2 provider API without a client
+     * certificate, for clients authenticating with a {@link ProviderToken}, that
+     * trusts the certificates trusted by the JVM's default trust store.
+     *
+     * @return The TLS context.
+     * @throws GeneralSecurityException when the context cannot be initialized.
+     */
+    public SSLContext createApiSSLContext() throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, getDefaultTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Release all threads. Clients using this runtime must be shut down first.
+     */
+    public void shutdown() {
+        timer.stop();
+        factory.releaseExternalResources();
+    }
+
+    /**
+     * Get the {@link TrustManager}s that only trust certificates issued by the APNS
+     * CA, Entrust, loading them on first use.
+     *
+     * @return The trust managers.
+     * @throws GeneralSecurityException when the trust managers cannot be loaded.
+     */
+    private synchronized TrustManager[] getTrustManagers() throws GeneralSecurityException {
+        if (trustManagers != null) return trustManagers;
+        try {
+            InputStream is = getClass().getResourceAsStream("/entrust.keystore");
+            try {
+                KeyStore keystore = KeyStore.getInstance("JKS");
+                keystore.load(is, "changeit".toCharArray());
+
+                String alg = TrustManagerFactory.getDefaultAlgorithm();
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(alg);
+                tmf.init(keystore);
+
+                trustManagers = tmf.getTrustManagers();
+                return trustManagers;
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Error loading CA keystore", e);
+        }
+    }
+
+    /**
+     * Get the {@link TrustManager}s of the JVM's default trust store, loading them
+     * on first use.
+     *
+     * @return The trust managers.
+     * @throws GeneralSecurityException when the trust managers cannot be loaded.
+     */
+    private synchronized TrustManager[] getDefaultTrustManagers() throws GeneralSecurityException {
+        if (defaultTrustManagers != null) return defaultTrustManagers;
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init((KeyStore) null);
+        defaultTrustManagers = tmf.getTrustManagers();
+        return defaultTrustManagers;
+    }
+}
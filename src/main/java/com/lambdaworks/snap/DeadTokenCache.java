@@ -0,0 +1,228 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Set of device tokens known to be invalid, stored off-heap in a fixed size
+ * open-addressing hash table with linear probing. Each slot holds the time at
+ * which the entry expires followed by the 32 byte token, and an expiry of zero
+ * marks an empty slot. Expired entries are removed when encountered and swept
+ * when the table is full, and tokens are not added while it remains full. A
+ * sweep scans the whole table, so a full table is swept no more often than every
+ * 1/{@link #SWEEP_FRACTION} of the ttl, and not before its earliest entry expires.
+ *
+ * @author Will Glozer
+ */
+class DeadTokenCache {
+    static final int TOKEN_LENGTH = 32;
+
+    static final int SWEEP_FRACTION = 16;
+
+    private static final int SLOT = 8 + TOKEN_LENGTH;
+
+    private ByteBuffer slots;
+    private byte[] scratch;
+    private int capacity;
+    private int mask;
+    private int limit;
+    private int size;
+    private long ttl;
+    private long nextSweep;
+
+    /**
+     * Create a new cache.
+     *
+     * @param limit Maximum number of tokens held.
+     * @param ttl   Time after which a token is evicted.
+     * @param unit  Unit of time for the ttl.
+     */
+    DeadTokenCache(int limit, long ttl, TimeUnit unit) {
+        if (limit < 1) throw new IllegalArgumentException("limit must be >= 1");
+
+        int capacity = Integer.highestOneBit(limit + limit / 3) << 1;
+        this.slots    = ByteBuffer.allocateDirect(capacity * SLOT);
+        this.scratch  = new byte[TOKEN_LENGTH];
+        this.capacity = capacity;
+        this.mask     = capacity - 1;
+        this.limit    = limit;
+        this.ttl      = unit.toMillis(ttl);
+    }
+
+    synchronized boolean add(byte[] token) {
+        return add(token, System.currentTimeMillis());
+    }
+
+    synchronized boolean contains(byte[] token) {
+        return contains(token, System.currentTimeMillis());
+    }
+
+    /**
+     * Add an entry of a feedback batch, without allocating a copy of its token.
+     *
+     * @param batch Feedback batch.
+     * @param index Index of the entry.
+     *
+     * @return true if the token was added.
+     */
+    synchronized boolean add(FeedbackBatch batch, int index) {
+        if (batch.tokenLength(index) != TOKEN_LENGTH) return false;
+        batch.token(index, scratch);
+        return add(scratch, System.currentTimeMillis());
+    }
+
+    /**
+     * Add a token, or extend its expiry if already present.
+     *
+     * @param token Device token.
+     * @param now   Current time in milliseconds.
+     *
+     * @return true if the token was added.
+     */
+    synchronized boolean add(byte[] token, long now) {
+        if (token.length != TOKEN_LENGTH) return false;
+
+        int slot = find(token, now);
+        if (slot >= 0) {
+            slots.putLong(slot * SLOT, now + ttl);
+            return true;
+        }
+
+        if (size >= limit && (now < nextSweep || sweep(now) == 0)) return false;
+
+        slot = home(token);
+        while (expiry(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        int offset = slot * SLOT;
+        slots.putLong(offset, now + ttl);
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            slots.put(offset + 8 + i, token[i]);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Check whether the cache contains an unexpired token.
+     *
+     * @param token Device token.
+     * @param now   Current time in milliseconds.
+     *
+     * @return true if the token is present.
+     */
+    synchronized boolean contains(byte[] token, long now) {
+        return token.length == TOKEN_LENGTH && find(token, now) >= 0;
+    }
+
+    /**
+     * Remove all expired tokens, and note when the next sweep of a full table
+     * may occur.
+     *
+     * @param now   Current time in milliseconds.
+     *
+     * @return The number of tokens removed.
+     */
+    synchronized int sweep(long now) {
+        int removed = 0;
+        long earliest = Long.MAX_VALUE;
+        for (int slot = 0; slot < capacity; ) {
+            long expiry = expiry(slot);
+            if (expiry != 0 && expiry <= now) {
+                remove(slot);
+                removed++;
+            } else {
+                if (expiry != 0) earliest = Math.min(earliest, expiry);
+                slot++;
+            }
+        }
+        nextSweep = Math.max(earliest, now + ttl / SWEEP_FRACTION);
+        return removed;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Find the slot containing a token, removing it if expired.
+     *
+     * @return The slot, or -1 if the token is not present.
+     */
+    private int find(byte[] token, long now) {
+        int slot = home(token);
+        long expiry;
+        while ((expiry = expiry(slot)) != 0) {
+            if (matches(slot, token)) {
+                if (expiry > now) return slot;
+                remove(slot);
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Remove the entry in a slot, shifting subsequent entries of the same probe
+     * sequence back so no tombstone is required.
+     */
+    private void remove(int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (expiry(next) == 0) break;
+
+            int home = home(next);
+            boolean between = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (between) continue;
+
+            copy(next, hole);
+            hole = next;
+        }
+        slots.putLong(hole * SLOT, 0);
+        size--;
+    }
+
+    private void copy(int from, int to) {
+        int src = from * SLOT, dst = to * SLOT;
+        for (int i = 0; i < SLOT; i += 8) {
+            slots.putLong(dst + i, slots.getLong(src + i));
+        }
+    }
+
+    private long expiry(int slot) {
+        return slots.getLong(slot * SLOT);
+    }
+
+    private boolean matches(int slot, byte[] token) {
+        int offset = slot * SLOT + 8;
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            if (slots.get(offset + i) != token[i]) return false;
+        }
+        return true;
+    }
+
+    private int home(byte[] token) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (token[i] & 0xFF);
+        }
+        return mix(h) & mask;
+    }
+
+    private int home(int slot) {
+        return mix(slots.getLong(slot * SLOT + 8)) & mask;
+    }
+
+    private static int mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,177 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Immutable 32 byte device token stored as four longs, suitable for use as a
+ * hash key. Tokens may be converted to and from bytes and hex strings without
+ * intermediate allocation.
+ *
+ * @author Will Glozer
+ */
+public final class DeviceToken {
+    public static final int LENGTH = 32;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final long w0, w1, w2, w3;
+
+    public DeviceToken(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * Create a token from its bytes.
+     *
+     * @param bytes 32 byte token.
+     *
+     * @return The token.
+     */
+    public static DeviceToken fromBytes(byte[] bytes) {
+        if (bytes.length != LENGTH) throw new IllegalArgumentException("Token must be 32 bytes");
+        return fromBytes(bytes, 0);
+    }
+
+    /**
+     * Create a token from 32 bytes beginning at offset.
+     *
+     * @param bytes     Bytes.
+     * @param offset    Offset of the token.
+     *
+     * @return The token.
+     */
+    public static DeviceToken fromBytes(byte[] bytes, int offset) {
+        return new DeviceToken(
+                word(bytes, offset),      word(bytes, offset + 8),
+                word(bytes, offset + 16), word(bytes, offset + 24));
+    }
+
+    /**
+     * Create a token from its hex representation, in either case.
+     *
+     * @param hex   64 hex digits.
+     *
+     * @return The token.
+     *
+     * @throws IllegalArgumentException if hex is not a valid token.
+     */
+    public static DeviceToken fromHex(CharSequence hex) {
+        if (hex.length() != LENGTH * 2) throw new IllegalArgumentException("Token must be 64 hex digits");
+        return new DeviceToken(word(hex, 0), word(hex, 16), word(hex, 32), word(hex, 48));
+    }
+
+    /**
+     * Copy this token's bytes to dst beginning at offset.
+     *
+     * @param dst       Destination.
+     * @param offset    Offset in dst.
+     */
+    public void getBytes(byte[] dst, int offset) {
+        put(dst, offset,      w0);
+        put(dst, offset + 8,  w1);
+        put(dst, offset + 16, w2);
+        put(dst, offset + 24, w3);
+    }
+
+    /**
+     * Get this token's bytes.
+     *
+     * @return A new 32 byte array.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        getBytes(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Write this token's lowercase hex representation to dst beginning at offset.
+     *
+     * @param dst       Destination with room for 64 chars.
+     * @param offset    Offset in dst.
+     */
+    public void toHex(char[] dst, int offset) {
+        hex(dst, offset,      w0);
+        hex(dst, offset + 16, w1);
+        hex(dst, offset + 32, w2);
+        hex(dst, offset + 48, w3);
+    }
+
+    /**
+     * Get this token's lowercase hex representation.
+     *
+     * @return 64 hex digits.
+     */
+    public String toHex() {
+        char[] chars = new char[LENGTH * 2];
+        toHex(chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DeviceToken)) return false;
+        DeviceToken t = (DeviceToken) o;
+        return w0 == t.w0 && w1 == t.w1 && w2 == t.w2 && w3 == t.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = w0 * 31 + w1;
+        h = h * 31 + w2;
+        h = h * 31 + w3;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    private static long word(byte[] bytes, int offset) {
+        long w = 0;
+        for (int i = 0; i < 8; i++) {
+            w = (w << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return w;
+    }
+
+    private static long word(CharSequence hex, int offset) {
+        long w = 0;
+        for (int i = 0; i < 16; i++) {
+            char c = hex.charAt(offset + i);
+            int v = c < 128 ? VALUES[c] : -1;
+            if (v < 0) throw new IllegalArgumentException("Invalid hex digit '" + c + "'");
+            w = (w << 4) | v;
+        }
+        return w;
+    }
+
+    private static void put(byte[] dst, int offset, long w) {
+        for (int i = 7; i >= 0; i--) {
+            dst[offset + i] = (byte) w;
+            w >>>= 8;
+        }
+    }
+
+    private static void hex(char[] dst, int offset, long w) {
+        for (int i = 15; i >= 0; i--) {
+            dst[offset + i] = HEX[(int) (w & 0xF)];
+            w >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Feedback service listener that receives tokens as {@link DeviceToken}s.
+ *
+ * @author Will Glozer
+ */
+public interface DeviceTokenListener {
+    void feedback(DeviceToken token, long timestamp);
+}
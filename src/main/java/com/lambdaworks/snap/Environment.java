@@ -16,9 +16,11 @@ public enum Environment {
 
     public final InetSocketAddress gateway;
     public final InetSocketAddress feedback;
+    public final InetSocketAddress api;
 
     Environment(String domain) {
         this.gateway  = new InetSocketAddress("gateway."  + domain, 2195);
         this.feedback = new InetSocketAddress("feedback." + domain, 2196);
+        this.api      = new InetSocketAddress("api."      + domain, 443);
     }
 }
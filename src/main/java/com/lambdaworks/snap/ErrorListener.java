@@ -0,0 +1,14 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Error response listener, notified when the gateway rejects a notification.
+ * The token will be null when the rejected notification is no longer in the
+ * window of in-flight notifications.
+ *
+ * @author Will Glozer
+ */
+public interface ErrorListener {
+    void error(long id, byte[] token, int status);
+}
@@ -0,0 +1,38 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import java.io.IOException;
+
+/**
+ * Exception indicating that the gateway rejected a notification with an
+ * error response. Responses of the HTTP/2 provider API are mapped to the
+ * nearest status code of the binary protocol, and also carry the HTTP status
+ * and reason.
+ *
+ * @author Will Glozer
+ */
+public class ErrorResponseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public final long id;
+    public final int status;
+    public final int httpStatus;
+    public final String reason;
+
+    public ErrorResponseException(long id, int status) {
+        super("Error response for notification id " + id + ", status code " + status);
+        this.id         = id;
+        this.status     = status;
+        this.httpStatus = 0;
+        this.reason     = null;
+    }
+
+    public ErrorResponseException(long id, int status, int httpStatus, String reason) {
+        super("Error response for notification id " + id + ", HTTP status " + httpStatus + ", reason " + reason);
+        this.id         = id;
+        this.status     = status;
+        this.httpStatus = httpStatus;
+        this.reason     = reason;
+    }
+}
@@ -0,0 +1,45 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReconnectPolicy} that doubles the delay after each failed attempt, up
+ * to a maximum. Each delay is randomly chosen between half and all of the
+ * computed backoff so that many clients disconnected at the same time do not
+ * reconnect in lockstep.
+ *
+ * @author Will Glozer
+ */
+public class ExponentialBackoff implements ReconnectPolicy {
+    private long base;
+    private long max;
+    private Random random;
+
+    /**
+     * Create a new policy.
+     *
+     * @param base  Backoff after the first failure.
+     * @param max   Maximum backoff.
+     * @param unit  Unit of time for base and max.
+     */
+    public ExponentialBackoff(long base, long max, TimeUnit unit) {
+        this.base   = unit.toMillis(base);
+        this.max    = unit.toMillis(max);
+        this.random = new Random();
+        if (this.base < 1 || this.max < this.base) {
+            throw new IllegalArgumentException("require 1ms <= base <= max");
+        }
+    }
+
+    @Override
+    public long delay(int attempt) {
+        long backoff = base;
+        for (int i = 1; i < attempt && backoff < max; i++) backoff <<= 1;
+        backoff = Math.min(backoff, max);
+        long half = backoff / 2;
+        return backoff - half + (long) (random.nextDouble() * (half + 1));
+    }
+}
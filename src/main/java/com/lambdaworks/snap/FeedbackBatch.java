@@ -0,0 +1,131 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A batch of feedback service entries, viewed in place in the buffer they were
+ * received in. The same instance is reused for each batch delivered to a
+ * {@link FeedbackBatchListener} and is only valid for the duration of the
+ * callback, so tokens must be copied if they are retained.
+ *
+ * @author Will Glozer
+ */
+public class FeedbackBatch {
+    private ChannelBuffer buffer;
+    private int[] offsets;
+    private int size;
+
+    public FeedbackBatch(int capacity) {
+        this.offsets = new int[capacity];
+    }
+
+    /**
+     * Get the number of entries in this batch.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the time at which the feedback service determined the app no longer
+     * exists on the device.
+     *
+     * @param index Index of the entry.
+     *
+     * @return Seconds since the epoch.
+     */
+    public long timestamp(int index) {
+        return buffer.getUnsignedInt(offset(index));
+    }
+
+    /**
+     * Get the length of an entry's device token.
+     *
+     * @param index Index of the entry.
+     *
+     * @return Token length in bytes.
+     */
+    public int tokenLength(int index) {
+        return buffer.getUnsignedShort(offset(index) + 4);
+    }
+
+    /**
+     * Copy an entry's device token to the start of dst.
+     *
+     * @param index Index of the entry.
+     * @param dst   Destination, at least {@link #tokenLength tokenLength} bytes long.
+     */
+    public void token(int index, byte[] dst) {
+        int offset = offset(index);
+        buffer.getBytes(offset + 6, dst, 0, buffer.getUnsignedShort(offset + 4));
+    }
+
+    /**
+     * Copy an entry's device token to a new array.
+     *
+     * @param index Index of the entry.
+     *
+     * @return The device token.
+     */
+    public byte[] token(int index) {
+        byte[] token = new byte[tokenLength(index)];
+        token(index, token);
+        return token;
+    }
+
+    /**
+     * Get an entry's device token as a {@link DeviceToken}.
+     *
+     * @param index Index of the entry.
+     *
+     * @return The device token.
+     *
+     * @throws IllegalStateException if the token is not 32 bytes.
+     */
+    public DeviceToken deviceToken(int index) {
+        int offset = offset(index);
+        if (buffer.getUnsignedShort(offset + 4) != DeviceToken.LENGTH) {
+            throw new IllegalStateException("Token is not " + DeviceToken.LENGTH + " bytes");
+        }
+        offset += 6;
+        return new DeviceToken(buffer.getLong(offset),      buffer.getLong(offset + 8),
+                               buffer.getLong(offset + 16), buffer.getLong(offset + 24));
+    }
+
+    /**
+     * Check whether this batch has room for more entries.
+     *
+     * @return true if the batch is full.
+     */
+    public boolean isFull() {
+        return size == offsets.length;
+    }
+
+    /**
+     * Reset this batch to an empty view of buffer.
+     *
+     * @param buffer    Buffer containing the entries.
+     */
+    public void clear(ChannelBuffer buffer) {
+        this.buffer = buffer;
+        this.size   = 0;
+    }
+
+    /**
+     * Add the complete entry beginning at offset in the buffer.
+     *
+     * @param offset    Absolute offset of the entry.
+     */
+    public void add(int offset) {
+        offsets[size++] = offset;
+    }
+
+    private int offset(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index: " + index);
+        return offsets[index];
+    }
+}
@@ -0,0 +1,13 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Feedback service listener that receives entries in batches, without the
+ * per-token allocation of a {@link FeedbackListener}.
+ *
+ * @author Will Glozer
+ */
+public interface FeedbackBatchListener {
+    void feedback(FeedbackBatch batch);
+}
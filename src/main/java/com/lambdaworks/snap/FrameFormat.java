@@ -0,0 +1,18 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Binary frame format used to write notifications to the gateway.
+ *
+ * @author Will Glozer
+ */
+public enum FrameFormat {
+    /** Command 1: fixed fields for id, expiry, token and payload. */
+    COMMAND_1,
+    /**
+     * Command 2: a frame of items for token, payload, id, expiry and priority.
+     * Required for notification priority.
+     */
+    COMMAND_2
+}
@@ -0,0 +1,209 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.lambdaworks.snap.protocol.*;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.*;
+
+/**
+ * Push notification client that sends notifications via the APNS HTTP/2 provider
+ * API. Each connection multiplexes many concurrent requests, and every request
+ * receives a response, so a notification's future completes when the server has
+ * accepted or rejected it and tokens reported invalid in responses replace the
+ * feedback service. Requests may be authenticated with a {@link ProviderToken}
+ * instead of a client certificate, so that one client sends notifications to
+ * every app of a team by setting each notification's topic.
+ *
+ * @author Will Glozer
+ */
+public class Http2PushNotificationClient extends AbstractPushNotificationClient<Http2Connection> {
+    private static final long TOKEN_CHECK_INTERVAL = 60;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private ProviderToken token;
+    private Timeout refresh;
+    private boolean shutdown;
+
+    /**
+     * Create a new client that connects to the provider API of the specified
+     * {@link Environment environment}, authenticating with a client certificate.
+     * The server certificate is verified with the JVM's default trust store.
+     *
+     * @param env           Push notification environment.
+     * @param keystore      Keystore containing client private key and certificate.
+     * @param passwd        Keystore password.
+     * @param connections   Number of connections.
+     */
+    public Http2PushNotificationClient(Environment env, KeyStore keystore, char[] passwd, int connections) throws GeneralSecurityException {
+        this(new ClientRuntime(), true, env, keystore, passwd, connections);
+    }
+
+    /**
+     * Create a new client that connects to the provider API of the specified
+     * {@link Environment environment}, authenticating with a provider token.
+     * The server certificate is verified with the JVM's default trust store.
+     *
+     * @param env           Push notification environment.
+     * @param token         Provider token.
+     * @param connections   Number of connections.
+     */
+    public Http2PushNotificationClient(Environment env, ProviderToken token, int connections) throws GeneralSecurityException {
+        this(new ClientRuntime(), true, env, token, connections);
+    }
+
+    /**
+     * Create a new client that connects to the specified provider API address,
+     * such as a local simulator or proxy.
+     *
+     * @param address       Address of the provider API.
+     * @param sslContext    TLS context for connections.
+     * @param connections   Number of connections.
+     */
+    public Http2PushNotificationClient(InetSocketAddress address, SSLContext sslContext, int connections) {
+        this(new ClientRuntime(), true, address, sslContext, connections);
+    }
+
+    /**
+     * Create a new client that connects to the specified provider API address using
+     * the threads of a shared {@link ClientRuntime}.
+     *
+     * @param runtime       Shared runtime.
+     * @param address       Address of the provider API.
+     * @param sslContext    TLS context for connections.
+     * @param connections   Number of connections.
+     */
+    public Http2PushNotificationClient(ClientRuntime runtime, InetSocketAddress address, SSLContext sslContext, int connections) {
+        this(runtime, false, address, sslContext, connections);
+    }
+
+    private Http2PushNotificationClient(ClientRuntime runtime, boolean owner, Environment env, KeyStore keystore, char[] passwd, int connections) throws GeneralSecurityException {
+        this(runtime, owner, env.api, runtime.createApiSSLContext(keystore, passwd), connections);
+    }
+
+    private Http2PushNotificationClient(ClientRuntime runtime, boolean owner, Environment env, ProviderToken token, int connections) throws GeneralSecurityException {
+        this(runtime, owner, env.api, runtime.createApiSSLContext(), connections);
+        setProviderToken(token);
+    }
+
+    private Http2PushNotificationClient(ClientRuntime runtime, boolean owner, InetSocketAddress address, SSLContext sslContext, int connections) {
+        super(runtime, owner, connections);
+
+        this.connections = new Http2Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            connect(i, address, sslContext);
+        }
+        start();
+    }
+
+    /**
+     * Authenticate requests with a provider token, which is checked every minute
+     * and signed again in the background when it reaches {@link ProviderToken#MAX_AGE}.
+     * A token may be shared by many clients.
+     *
+     * @param token Provider token, or null to authenticate with the client certificate.
+     */
+    public synchronized void setProviderToken(ProviderToken token) {
+        this.token = token;
+        for (Http2Connection connection : connections) {
+            connection.setProviderToken(token);
+        }
+        if (token != null && refresh == null && !shutdown) {
+            refresh = runtime.getTimer().newTimeout(new Refresh(), TOKEN_CHECK_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Set the policy determining how long each connection pauses sending after the
+     * server refuses a stream or responds that it is unavailable, given the number
+     * of consecutive such responses.
+     *
+     * @param policy    Retry policy.
+     */
+    public void setRetryPolicy(ReconnectPolicy policy) {
+        for (Http2Connection connection : connections) {
+            connection.setRetryPolicy(policy);
+        }
+    }
+
+    /**
+     * Shutdown this client and close all open connections. Notifications awaiting
+     * a response are discarded.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (refresh != null) refresh.cancel();
+        }
+        super.shutdown();
+    }
+
+    @Override
+    protected long inFlight() {
+        long n = 0;
+        for (Http2Connection connection : connections) n += connection.streams();
+        return n;
+    }
+
+    private void connect(int index, final InetSocketAddress address, final SSLContext sslContext) {
+        Timer timer = runtime.getTimer();
+        ClientBootstrap bootstrap = new ClientBootstrap(runtime.getChannelFactory());
+
+        String authority = address.getHostName();
+        if (address.getPort() != 443) authority += ":" + address.getPort();
+
+        final ConnectionWatchdog watchdog = new ConnectionWatchdog(bootstrap, channels, timer, DEFAULT_RECONNECT_POLICY, metrics);
+        final Http2Connection connection = new Http2Connection(queue, listeners, mapper, timer, metrics, authority);
+
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                SSLEngine engine = sslContext.createSSLEngine(address.getHostName(), address.getPort());
+                engine.setUseClientMode(true);
+                Http2Connection.enableAlpn(engine);
+                Http2FrameDecoder decoder = new Http2FrameDecoder(false, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+                return Channels.pipeline(watchdog, new SslHandler(engine), decoder, connection);
+            }
+        });
+
+        watchdogs[index]   = watchdog;
+        connections[index] = connection;
+
+        bootstrap.setOption("remoteAddress", address);
+        bootstrap.connect();
+    }
+
+    /**
+     * Periodic check of the provider token's age, run on the timer thread so the
+     * token is never signed when sending.
+     */
+    private class Refresh implements TimerTask {
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            synchronized (Http2PushNotificationClient.this) {
+                if (shutdown) return;
+                try {
+                    if (token != null) token.refresh(ProviderToken.MAX_AGE, TimeUnit.MILLISECONDS);
+                } catch (GeneralSecurityException e) {
+                    logger.error("Failed to sign provider token", e);
+                }
+                refresh = runtime.getTimer().newTimeout(this, TOKEN_CHECK_INTERVAL, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
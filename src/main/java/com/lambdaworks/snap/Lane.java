@@ -0,0 +1,25 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Queue lane of a notification. Each lane has its own queue limit, and lanes are
+ * drained in proportion to their weights, so notifications in a lane with a higher
+ * weight wait less when other lanes hold a large backlog.
+ *
+ * @author Will Glozer
+ */
+public enum Lane {
+    /** Time-critical notifications, such as login codes. Default weight 16. */
+    URGENT(16),
+    /** Notifications that do not specify a lane. Default weight 4. */
+    NORMAL(4),
+    /** Bulk notifications, such as marketing broadcasts. Default weight 1. */
+    BULK(1);
+
+    public final int weight;
+
+    Lane(int weight) {
+        this.weight = weight;
+    }
+}
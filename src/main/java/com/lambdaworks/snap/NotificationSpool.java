@@ -0,0 +1,294 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent spool of outbound notifications stored in memory-mapped, append-only
+ * segment files. Each record holds the notification id, lane, priority, expiry,
+ * token, and encoded payload, and is marked acknowledged in place when the
+ * notification's future completes. Segments whose records have all been
+ * acknowledged are deleted, and unacknowledged records are recovered when the
+ * spool is reopened.
+ *
+ * <p>
+ * A record is written as its length, state, lane, priority, id, expiry, token, and
+ * payload. Records are written in full while holding the spool's lock and the
+ * length is written last, so the only record recovery may ignore is one partially
+ * written at the end of a segment. Spooled notifications send their payload
+ * directly from the mapped segment.
+ * </p>
+ *
+ * @author Will Glozer
+ */
+class NotificationSpool {
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String SUFFIX = ".spool";
+    private static final byte PENDING  = 0;
+    private static final byte ACKED    = 1;
+    private static final int HEADER    = 4 + 1 + 1 + 1 + 4 + 8;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private File directory;
+    private int segmentSize;
+    private List<Segment> segments;
+    private Segment active;
+    private long sequence;
+    private boolean closed;
+
+    /**
+     * Open a spool in the specified directory, which is created if necessary.
+     *
+     * @param directory     Directory containing segment files.
+     * @param segmentSize   Size of each segment file in bytes.
+     *
+     * @throws IOException when the directory cannot be created.
+     */
+    NotificationSpool(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        this.directory   = directory;
+        this.segmentSize = segmentSize;
+        this.segments    = new ArrayList<Segment>();
+    }
+
+    /**
+     * Recover all unacknowledged, unexpired notifications from existing segments.
+     * Recovered notifications are assigned new ids from the counter.
+     *
+     * @param counter   Notification id counter.
+     *
+     * @return Recovered notifications in the order they were spooled.
+     *
+     * @throws IOException when a segment cannot be read.
+     */
+    synchronized List<PushNotification> recover(AtomicLong counter) throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+
+        SortedMap<Long, File> sorted = new TreeMap<Long, File>();
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                sorted.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring unexpected spool file {}", file);
+            }
+        }
+
+        List<PushNotification> list = new ArrayList<PushNotification>();
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<Long, File> e : sorted.entrySet()) {
+            Segment segment = new Segment(e.getValue(), map(e.getValue(), e.getValue().length()));
+            segment.sealed = true;
+            sequence = e.getKey() + 1;
+
+            ByteBuffer buf = segment.buf;
+            int offset = 0;
+            while (offset + HEADER <= buf.capacity()) {
+                int len = buf.getInt(offset);
+                if (len <= 0 || offset + 4 + len > buf.capacity()) break;
+
+                if (buf.get(offset + 4) == PENDING) {
+                    long expiry = buf.getLong(offset + 11);
+                    if (expiry == 0 || expiry > now) {
+                        list.add(recover(segment, offset, counter.incrementAndGet(), expiry));
+                        segment.pending++;
+                    } else {
+                        buf.put(offset + 4, ACKED);
+                    }
+                }
+                offset += 4 + len;
+            }
+
+            if (segment.pending > 0) {
+                segments.add(segment);
+            } else {
+                delete(segment);
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Append a notification to the spool, and use the spooled copy of its payload
+     * when it is written to the gateway.
+     *
+     * @param n         Notification.
+     * @param mapper    Object mapper for payload.
+     *
+     * @throws IOException when the notification cannot be encoded or spooled.
+     */
+    void append(PushNotification n, ObjectMapper mapper) throws IOException {
+        ChannelBuffer payload = n.payload();
+        if (payload == null) {
+            payload = ChannelBuffers.dynamicBuffer(256);
+            n.encodePayload(mapper, payload);
+        }
+
+        int len = HEADER - 4 + 2 + n.token.length + payload.readableBytes();
+        if (len + 4 > segmentSize) throw new IOException("Notification too large for spool segment");
+
+        Date expiry = n.expiry();
+        Segment segment;
+        int offset;
+        ByteBuffer spooled;
+
+        synchronized (this) {
+            if (closed) throw new IOException("Spool closed");
+            if (active == null || active.position + 4 + len > segmentSize) roll();
+
+            segment = active;
+            offset  = segment.position;
+
+            ByteBuffer buf = segment.buf.duplicate();
+            buf.position(offset + 4);
+            buf.put(PENDING);
+            buf.put((byte) n.lane().ordinal());
+            buf.put((byte) n.priority());
+            buf.putInt((int) n.id);
+            buf.putLong(expiry != null ? expiry.getTime() : 0);
+            buf.putShort((short) n.token.length);
+            buf.put(n.token);
+            buf.limit(buf.position() + payload.readableBytes());
+            spooled = buf.slice();
+            payload.getBytes(payload.readerIndex(), buf);
+            segment.buf.putInt(offset, len);
+
+            segment.position += 4 + len;
+            segment.pending++;
+        }
+
+        n.payload(ChannelBuffers.wrappedBuffer(spooled));
+        n.future().addListener(new Ack(segment, offset));
+    }
+
+    /**
+     * Close the spool. Notifications that complete after the spool is closed remain
+     * unacknowledged and will be recovered when the spool is reopened.
+     */
+    synchronized void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buf.force();
+        }
+    }
+
+    private PushNotification recover(Segment segment, int offset, long id, long expiry) {
+        ByteBuffer buf = segment.buf.duplicate();
+        buf.position(offset + HEADER);
+        byte[] token = new byte[buf.getShort()];
+        buf.get(token);
+
+        int len = buf.getShort(buf.position()) & 0xFFFF;
+        buf.limit(buf.position() + 2 + len);
+        ChannelBuffer payload = ChannelBuffers.wrappedBuffer(buf.slice());
+
+        PushNotification n = new PushNotification(id, token, expiry != 0 ? new Date(expiry) : null, payload);
+        n.lane(Lane.values()[segment.buf.get(offset + 5)]);
+        int priority = segment.buf.get(offset + 6);
+        if (priority != 0) n.priority(priority);
+        n.future().addListener(new Ack(segment, offset));
+        return n;
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.sealed = true;
+            active.buf.force();
+            if (active.pending == 0) {
+                segments.remove(active);
+                delete(active);
+            }
+        }
+        File file = new File(directory, String.format("%016d%s", sequence++, SUFFIX));
+        active = new Segment(file, map(file, segmentSize));
+        segments.add(active);
+    }
+
+    private synchronized void acked(Segment segment) {
+        if (--segment.pending == 0 && segment.sealed && !closed) {
+            segments.remove(segment);
+            delete(segment);
+        }
+    }
+
+    private void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            logger.warn("Unable to delete spool segment {}", segment.file);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Segment file and its mapped buffer.
+     */
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buf;
+        int position;
+        int pending;
+        boolean sealed;
+
+        Segment(File file, MappedByteBuffer buf) {
+            this.file = file;
+            this.buf  = buf;
+        }
+    }
+
+    /**
+     * Listener that acknowledges a spooled record when its notification has been
+     * sent, rejected, or deliberately discarded.
+     */
+    private class Ack implements PushNotificationFutureListener {
+        private Segment segment;
+        private int offset;
+
+        Ack(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset  = offset;
+        }
+
+        @Override
+        public void operationComplete(PushNotificationFuture future) {
+            synchronized (NotificationSpool.this) {
+                if (closed) return;
+                segment.buf.put(offset + 4, ACKED);
+            }
+            acked(segment);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Policy applied when a notification is sent and the queue of pending
+ * notifications is full.
+ *
+ * @author Will Glozer
+ */
+public enum OverflowPolicy {
+    /** Block until space is available. */
+    BLOCK,
+    /** Reject the new notification. */
+    FAIL,
+    /** Discard the oldest pending notification. */
+    DROP_OLDEST
+}
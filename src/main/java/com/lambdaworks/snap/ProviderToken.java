@@ -0,0 +1,233 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.lambdaworks.snap.protocol.Hpack;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.base64.Base64Dialect;
+import org.jboss.netty.util.CharsetUtil;
+
+import java.io.*;
+import java.security.*;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ES256 signed JSON web token that authenticates requests to the HTTP/2 provider
+ * API on behalf of a team, allowing one connection to send notifications to the
+ * apps of every topic the team owns. Signing is slow relative to sending, so the
+ * signed token is cached along with its encoded authorization header, and clients
+ * periodically {@link #refresh refresh} it in the background before the server
+ * considers it expired.
+ *
+ * @author Will Glozer
+ */
+public class ProviderToken {
+    /** Age at which clients replace a token; the server rejects tokens older than an hour. */
+    public static final long MAX_AGE = TimeUnit.MINUTES.toMillis(50);
+
+    private final String teamId;
+    private final String keyId;
+    private final PrivateKey key;
+    private volatile Issued current;
+    private final AtomicReference<Issued> claimed = new AtomicReference<Issued>();
+
+    /**
+     * Create a new provider token and sign its first value.
+     *
+     * @param teamId    Team ID of the developer account.
+     * @param keyId     Key ID of the signing key.
+     * @param key       EC P-256 signing key.
+     *
+     * @throws GeneralSecurityException when the token cannot be signed.
+     */
+    public ProviderToken(String teamId, String keyId, PrivateKey key) throws GeneralSecurityException {
+        this.teamId  = teamId;
+        this.keyId   = keyId;
+        this.key     = key;
+        this.current = sign(System.currentTimeMillis());
+    }
+
+    /**
+     * Load a signing key from a PEM encoded PKCS #8 file as downloaded from the
+     * developer account, such as AuthKey_KEYID.p8.
+     *
+     * @param is    Input stream of the key file.
+     *
+     * @return The private key.
+     *
+     * @throws IOException when the key file cannot be read.
+     * @throws GeneralSecurityException when the key is invalid.
+     */
+    public static PrivateKey loadKey(InputStream is) throws IOException, GeneralSecurityException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, CharsetUtil.US_ASCII));
+        StringBuilder pem = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("-----")) pem.append(line.trim());
+        }
+
+        ChannelBuffer der = Base64.decode(ChannelBuffers.copiedBuffer(pem, CharsetUtil.US_ASCII));
+        byte[] bytes = new byte[der.readableBytes()];
+        der.readBytes(bytes);
+        return KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(bytes));
+    }
+
+    /**
+     * Get the current signed token.
+     *
+     * @return The token.
+     */
+    public String get() {
+        return current.token;
+    }
+
+    /**
+     * Get the current signed token and its issue time.
+     *
+     * @return The current token.
+     */
+    public Issued current() {
+        return current;
+    }
+
+    /**
+     * Sign a new token if the current token is older than maxAge.
+     *
+     * @param maxAge    Maximum age of the current token.
+     * @param unit      Unit of time for maxAge.
+     *
+     * @return true if a new token was signed.
+     * @throws GeneralSecurityException when the token cannot be signed.
+     */
+    public synchronized boolean refresh(long maxAge, TimeUnit unit) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        if (now - current.issuedAt < unit.toMillis(maxAge)) return false;
+        current = sign(now);
+        return true;
+    }
+
+    /**
+     * Claim the replacement of a token the server has rejected as expired. Many
+     * requests using the token may be rejected at once, and only the first claim
+     * of the current token succeeds, so that the token is signed again once per
+     * rejected generation and without blocking the others.
+     *
+     * @param expired   Token rejected by the server.
+     *
+     * @return true if the caller should replace the token with {@link #expired}.
+     */
+    public boolean claim(Issued expired) {
+        Issued last = claimed.get();
+        return current == expired && last != expired && claimed.compareAndSet(last, expired);
+    }
+
+    /**
+     * Sign a new token after the server has rejected the specified token as expired,
+     * unless it has already been replaced. When signing fails the token may be
+     * {@link #claim claimed} again.
+     *
+     * @param expired   Token rejected by the server.
+     *
+     * @throws GeneralSecurityException when the token cannot be signed.
+     */
+    public synchronized void expired(Issued expired) throws GeneralSecurityException {
+        if (current != expired) return;
+        try {
+            current = sign(System.currentTimeMillis());
+        } catch (GeneralSecurityException e) {
+            claimed.compareAndSet(expired, null);
+            throw e;
+        }
+    }
+
+    private Issued sign(long now) throws GeneralSecurityException {
+        String header = "{\"alg\":\"ES256\",\"kid\":\"" + keyId + "\"}";
+        String claims = "{\"iss\":\"" + teamId + "\",\"iat\":" + now / 1000 + "}";
+        String input  = encode(header.getBytes(CharsetUtil.UTF_8)) + "." + encode(claims.getBytes(CharsetUtil.UTF_8));
+
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(key);
+        signature.update(input.getBytes(CharsetUtil.US_ASCII));
+        byte[] jws = concatenate(signature.sign());
+
+        return new Issued(input + "." + encode(jws), now);
+    }
+
+    /**
+     * Encode bytes as unpadded base64url.
+     *
+     * @param bytes Bytes.
+     *
+     * @return The encoded string.
+     */
+    static String encode(byte[] bytes) {
+        ChannelBuffer buf = Base64.encode(ChannelBuffers.wrappedBuffer(bytes), false, Base64Dialect.URL_SAFE);
+        String s = buf.toString(CharsetUtil.US_ASCII);
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == '=') end--;
+        return s.substring(0, end);
+    }
+
+    /**
+     * Convert a DER encoded ECDSA signature to the concatenated 32 byte R and S
+     * values required by JWS.
+     *
+     * @param der   DER encoded signature.
+     *
+     * @return The 64 byte signature.
+     * @throws SignatureException when the signature is malformed.
+     */
+    static byte[] concatenate(byte[] der) throws SignatureException {
+        try {
+            int offset = (der[1] & 0x80) != 0 ? 3 : 2;
+            byte[] jws = new byte[64];
+            for (int i = 0; i < 2; i++) {
+                if (der[offset] != 0x02) throw new SignatureException("Invalid ECDSA signature");
+                int length = der[offset + 1];
+                int start  = offset + 2;
+                while (length > 32 && der[start] == 0) {
+                    start++;
+                    length--;
+                }
+                if (length > 32) throw new SignatureException("Invalid ECDSA signature");
+                System.arraycopy(der, start, jws, i * 32 + 32 - length, length);
+                offset = start + length;
+            }
+            return jws;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new SignatureException("Invalid ECDSA signature");
+        }
+    }
+
+    /**
+     * Signed token with its issue time and pre-encoded authorization header.
+     */
+    public static final class Issued {
+        public final String token;
+        public final long issuedAt;
+        private final byte[] header;
+
+        Issued(String token, long issuedAt) {
+            this.token    = token;
+            this.issuedAt = issuedAt;
+
+            ChannelBuffer buf = ChannelBuffers.dynamicBuffer(token.length() + 16);
+            Hpack.encode(buf, "authorization", "bearer " + token);
+            this.header = new byte[buf.readableBytes()];
+            buf.readBytes(header);
+        }
+
+        /**
+         * Write the HPACK encoded authorization header of this token.
+         *
+         * @param buf   Buffer.
+         */
+        public void encodeHeader(ChannelBuffer buf) {
+            buf.writeBytes(header);
+        }
+    }
+}
@@ -2,34 +2,96 @@
 
 package com.lambdaworks.snap;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.jboss.netty.buffer.ChannelBuffer;
+import com.lambdaworks.snap.protocol.Hpack;
+import org.jboss.netty.buffer.*;
 
 import java.io.IOException;
 import java.util.*;
 
-import static com.fasterxml.jackson.annotation.JsonInclude.Include.*;
-
 /**
  * Push notification.
  *
  * @author Will Glozer
  */
 public class PushNotification {
+    /** Priority of a notification that is delivered immediately. */
+    public static final int PRIORITY_IMMEDIATE = 10;
+    /** Priority of a notification that may be delayed to conserve device power. */
+    public static final int PRIORITY_CONSERVE_POWER = 5;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     public final long id;
     public final byte[] token;
 
+    private final PushNotificationFuture future;
+
     private Object alert;
     private Integer badge;
     private Date expiry;
+    private int priority;
+    private Lane lane = Lane.NORMAL;
     private String sound;
+    private String topic;
     private Map<String, Object> extra;
+    private ChannelBuffer payload;
+    private int retries;
 
     PushNotification(long id, byte[] token) {
-        this.id    = id;
-        this.token = token;
+        this.id     = id;
+        this.token  = token;
+        this.future = new PushNotificationFuture(this);
+    }
+
+    /**
+     * Create a notification with a pre-encoded payload that may be shared by many
+     * notifications. The payload must not be modified after construction.
+     *
+     * @param id        Notification id.
+     * @param token     Target device token.
+     * @param expiry    Expiry date or null.
+     * @param payload   Length-prefixed payload.
+     */
+    PushNotification(long id, byte[] token, Date expiry, ChannelBuffer payload) {
+        this.id      = id;
+        this.token   = token;
+        this.expiry  = expiry;
+        this.payload = payload;
+        this.future  = new PushNotificationFuture(this);
+    }
+
+    /**
+     * Get the time after which this notification is no longer delivered, and is
+     * discarded if still queued.
+     *
+     * @return The expiry date, or null if the notification does not expire.
+     */
+    public Date expiry() {
+        return expiry;
+    }
+
+    int priority() {
+        return priority;
+    }
+
+    ChannelBuffer payload() {
+        return payload;
+    }
+
+    void payload(ChannelBuffer payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * Get the future that completes when this notification has been sent.
+     *
+     * @return The future.
+     */
+    public PushNotificationFuture future() {
+        return future;
     }
 
     public PushNotification alert(String message) {
@@ -53,11 +115,70 @@ public class PushNotification {
         return this;
     }
 
+    /**
+     * Set the priority of this notification, which is only sent to the gateway
+     * with the {@link FrameFormat#COMMAND_2 command 2} frame format.
+     *
+     * @param priority  {@link #PRIORITY_IMMEDIATE} or {@link #PRIORITY_CONSERVE_POWER}.
+     *
+     * @return This notification.
+     */
+    public PushNotification priority(int priority) {
+        if (priority != PRIORITY_IMMEDIATE && priority != PRIORITY_CONSERVE_POWER) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Set the queue lane of this notification, which determines how soon it is
+     * sent relative to notifications in other lanes. The default is
+     * {@link Lane#NORMAL}.
+     *
+     * @param lane  Lane.
+     *
+     * @return This notification.
+     */
+    public PushNotification lane(Lane lane) {
+        if (lane == null) throw new NullPointerException("lane");
+        this.lane = lane;
+        return this;
+    }
+
+    public Lane lane() {
+        return lane;
+    }
+
+    /**
+     * Record that the server declined this notification temporarily and it will be
+     * sent again.
+     *
+     * @return The number of times the notification has been retried.
+     */
+    public int retried() {
+        return ++retries;
+    }
+
     public PushNotification sound(String file) {
         this.sound = file;
         return this;
     }
 
+    /**
+     * Set the topic of this notification, usually the bundle ID of the target app,
+     * which is required by the HTTP/2 provider API when authenticating with a
+     * {@link ProviderToken} and ignored by the binary gateway.
+     *
+     * @param topic Topic.
+     *
+     * @return This notification.
+     */
+    public PushNotification topic(String topic) {
+        this.topic = topic;
+        return this;
+    }
+
     public Map<String, Object> extra() {
         this.extra = new HashMap<String, Object>();
         return this.extra;
@@ -66,14 +187,12 @@ public class PushNotification {
     /**
      * Complex alert.
      */
-    @JsonInclude(NON_NULL)
     public class Alert {
-        @JsonProperty("body")           private String body;
-        @JsonInclude(ALWAYS)
-        @JsonProperty("action-loc-key") private String actionLocKey;
-        @JsonProperty("loc-key")        private String locKey;
-        @JsonProperty("loc-args")       private String[] locArgs;
-        @JsonProperty("launch-image")   private String launchImage;
+        private String body;
+        private String actionLocKey;
+        private String locKey;
+        private String[] locArgs;
+        private String launchImage;
 
         public Alert body(String body) {
             this.body = body;
@@ -99,26 +218,227 @@ public class PushNotification {
             this.launchImage = filename;
             return this;
         }
+
+        /**
+         * Write this alert as a JSON object. All null fields are omitted except
+         * action-loc-key, since a null action-loc-key causes the alert to be
+         * displayed with a single OK button.
+         *
+         * @param gen   JSON generator.
+         *
+         * @throws IOException when the alert cannot be written.
+         */
+        protected void encode(JsonGenerator gen) throws IOException {
+            gen.writeStartObject();
+            if (body != null) gen.writeStringField("body", body);
+            if (actionLocKey != null) {
+                gen.writeStringField("action-loc-key", actionLocKey);
+            } else {
+                gen.writeNullField("action-loc-key");
+            }
+            if (locKey != null) gen.writeStringField("loc-key", locKey);
+            if (locArgs != null) {
+                gen.writeArrayFieldStart("loc-args");
+                for (String arg : locArgs) gen.writeString(arg);
+                gen.writeEndArray();
+            }
+            if (launchImage != null) gen.writeStringField("launch-image", launchImage);
+            gen.writeEndObject();
+        }
     }
 
     public void encode(ObjectMapper mapper, ChannelBuffer buf) throws IOException {
+        encode(mapper, buf, FrameFormat.COMMAND_1);
+    }
+
+    /**
+     * Encode this notification in the specified frame format.
+     *
+     * @param mapper    Object mapper used for values of extra properties.
+     * @param buf       Buffer.
+     * @param format    Frame format.
+     *
+     * @throws IOException when the payload cannot be written.
+     */
+    public void encode(ObjectMapper mapper, ChannelBuffer buf, FrameFormat format) throws IOException {
+        int index = buf.writerIndex();
+        encodeHeader(buf, format);
+        if (payload != null) {
+            buf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        } else {
+            encodePayload(mapper, buf);
+        }
+        if (format == FrameFormat.COMMAND_2) {
+            buf.setInt(index + 1, buf.writerIndex() - index - 5);
+        }
+    }
+
+    /**
+     * Encode this notification into a new buffer. When the payload is pre-encoded and
+     * shared, the returned buffer wraps the frame header and the shared payload
+     * rather than copying it.
+     *
+     * @param mapper    Object mapper used for values of extra properties.
+     * @param factory   Factory for new buffers.
+     *
+     * @return A buffer containing the encoded notification.
+     *
+     * @throws IOException when the payload cannot be written.
+     */
+    public ChannelBuffer encode(ObjectMapper mapper, ChannelBufferFactory factory) throws IOException {
+        return encode(mapper, factory, FrameFormat.COMMAND_1);
+    }
+
+    /**
+     * Encode this notification into a new buffer in the specified frame format.
+     *
+     * @param mapper    Object mapper used for values of extra properties.
+     * @param factory   Factory for new buffers.
+     * @param format    Frame format.
+     *
+     * @return A buffer containing the encoded notification.
+     *
+     * @throws IOException when the payload cannot be written.
+     */
+    public ChannelBuffer encode(ObjectMapper mapper, ChannelBufferFactory factory, FrameFormat format) throws IOException {
+        if (payload != null) {
+            ChannelBuffer header = factory.getBuffer(headerLength(format));
+            encodeHeader(header, format);
+            if (format == FrameFormat.COMMAND_2) {
+                header.setInt(1, header.readableBytes() - 5 + payload.readableBytes());
+            }
+            return ChannelBuffers.wrappedBuffer(header, payload.duplicate());
+        }
+        ChannelBuffer buf = ChannelBuffers.dynamicBuffer(factory);
+        encode(mapper, buf, format);
+        return buf;
+    }
+
+    private int headerLength(FrameFormat format) {
+        if (format == FrameFormat.COMMAND_1) return 11 + token.length;
+        return 5 + 3 + token.length + 7 + 7 + (priority != 0 ? 4 : 0) + 1;
+    }
+
+    /**
+     * Write the frame up to the length-prefixed payload. A command 2 frame is written
+     * with the token, identifier, expiry and optional priority items followed by the
+     * id of the payload item, whose length and data are the length-prefixed payload.
+     * The frame length is written as zero and must be set once the payload is written.
+     *
+     * @param buf       Buffer.
+     * @param format    Frame format.
+     */
+    private void encodeHeader(ChannelBuffer buf, FrameFormat format) {
+        int expiry = (int) (this.expiry != null ? this.expiry.getTime() / 1000 : 0);
+        if (format == FrameFormat.COMMAND_1) {
+            buf.writeByte(1);
+            buf.writeInt((int) id);
+            buf.writeInt(expiry);
+            buf.writeShort(token.length);
+            buf.writeBytes(token);
+            return;
+        }
+
+        buf.writeByte(2);
+        buf.writeInt(0);
         buf.writeByte(1);
-        buf.writeInt((int) id);
-        buf.writeInt((int) (expiry != null ? expiry.getTime() / 1000 : 0));
         buf.writeShort(token.length);
         buf.writeBytes(token);
+        buf.writeByte(3);
+        buf.writeShort(4);
+        buf.writeInt((int) id);
+        buf.writeByte(4);
+        buf.writeShort(4);
+        buf.writeInt(expiry);
+        if (priority != 0) {
+            buf.writeByte(5);
+            buf.writeShort(1);
+            buf.writeByte(priority);
+        }
+        buf.writeByte(2);
+    }
 
-        Map<String, Object> map = new HashMap<String, Object>();
-        Map<String, Object> aps = new HashMap<String, Object>();
+    /**
+     * Encode the HPACK header fields of this notification's HTTP/2 provider API
+     * request that follow the :method, :scheme and :authority pseudo-headers.
+     *
+     * @param buf   Buffer.
+     */
+    public void encodeHeaders(ChannelBuffer buf) {
+        char[] path = new char[10 + token.length * 2];
+        "/3/device/".getChars(0, 10, path, 0);
+        for (int i = 0; i < token.length; i++) {
+            path[10 + i * 2]     = HEX[(token[i] >> 4) & 0xF];
+            path[10 + i * 2 + 1] = HEX[token[i] & 0xF];
+        }
+        Hpack.encode(buf, ":path", new String(path));
+        Hpack.encode(buf, "apns-expiration", expiry != null ? String.valueOf(expiry.getTime() / 1000) : "0");
+        if (priority != 0) Hpack.encode(buf, "apns-priority", String.valueOf(priority));
+        if (topic != null) Hpack.encode(buf, "apns-topic", topic);
+    }
 
-        if (alert != null) aps.put("alert", alert);
-        if (badge != null) aps.put("badge", badge);
-        if (sound != null) aps.put("sound", sound);
-        if (extra != null) map.putAll(extra);
+    /**
+     * Encode the JSON payload without the length prefix, as the body of an HTTP/2
+     * provider API request. A pre-encoded payload is not copied.
+     *
+     * @param mapper    Object mapper used for values of extra properties.
+     * @param factory   Factory for new buffers.
+     *
+     * @return A buffer containing the payload.
+     *
+     * @throws IOException when the payload cannot be written.
+     */
+    public ChannelBuffer encodeBody(ObjectMapper mapper, ChannelBufferFactory factory) throws IOException {
+        ChannelBuffer buf = payload;
+        if (buf == null) {
+            buf = ChannelBuffers.dynamicBuffer(factory);
+            encodePayload(mapper, buf);
+        }
+        return buf.slice(buf.readerIndex() + 2, buf.readableBytes() - 2);
+    }
+
+    /**
+     * Write the length-prefixed JSON payload directly to the buffer with a streaming
+     * {@link JsonGenerator}, then backfill the 2-byte length. The aps dictionary is
+     * always written first, with its badge, alert and sound in that order, followed
+     * by the extra properties in the iteration order of {@link #extra}.
+     *
+     * @param mapper    Object mapper used for values of extra properties.
+     * @param buf       Buffer.
+     *
+     * @throws IOException when the payload cannot be written.
+     */
+    public void encodePayload(ObjectMapper mapper, ChannelBuffer buf) throws IOException {
+        int index = buf.writerIndex();
+        buf.writeShort(0);
+
+        ChannelBufferOutputStream os = new ChannelBufferOutputStream(buf);
+        JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+        try {
+            gen.writeStartObject();
+            gen.writeObjectFieldStart("aps");
+            if (badge != null) gen.writeNumberField("badge", badge);
+            if (alert instanceof Alert) {
+                gen.writeFieldName("alert");
+                ((Alert) alert).encode(gen);
+            } else if (alert != null) {
+                gen.writeStringField("alert", (String) alert);
+            }
+            if (sound != null) gen.writeStringField("sound", sound);
+            gen.writeEndObject();
+
+            if (extra != null) {
+                for (Map.Entry<String, Object> e : extra.entrySet()) {
+                    if (e.getKey().equals("aps")) continue;
+                    gen.writeFieldName(e.getKey());
+                    gen.writeObject(e.getValue());
+                }
+            }
+            gen.writeEndObject();
+        } finally {
+            gen.close();
+        }
 
-        map.put("aps", aps);
-        byte[] bytes = mapper.writeValueAsBytes(map);
-        buf.writeShort(bytes.length);
-        buf.writeBytes(bytes);
+        buf.setShort(index, buf.writerIndex() - index - 2);
     }
 }
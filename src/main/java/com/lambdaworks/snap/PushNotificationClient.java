@@ -2,39 +2,46 @@
 
 package com.lambdaworks.snap;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.lambdaworks.snap.protocol.*;
 import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.channel.group.*;
 import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.ssl.SslHandler;
-import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.*;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Client for Apple's Push Notification Service. This client maintains a persistent connection
- * to the notification gateway, and also periodically connects to the feedback service.
+ * Client for Apple's Push Notification Service. This client maintains a pool of persistent
+ * connections to the notification gateway, and also periodically connects to the feedback
+ * service.
  *
  * @author Will Glozer
  */
-public class PushNotificationClient {
+public class PushNotificationClient extends AbstractPushNotificationClient<PushNotificationConnection> {
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
     private ClientBootstrap bootstrap;
     private SSLContext sslContext;
-    private ChannelGroup channels;
-    private PushNotificationConnection connection;
+    private ClientBootstrap[] bootstraps;
+    private PushNotificationHandler[] handlers;
+    private SentWindow[] windows;
+    private volatile NotificationSpool spool;
+    private volatile int breakerThreshold;
     private FeedbackServiceConnection feedback;
-    private AtomicLong counter;
-    private ObjectMapper mapper;
 
     /**
      * Create a new client that connects to the specified {@link Environment environment}.
@@ -44,40 +51,89 @@ public class PushNotificationClient {
      * @param passwd    Keystore password.
      */
     public PushNotificationClient(Environment env, KeyStore keystore, char[] passwd) throws GeneralSecurityException {
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        kmf.init(keystore, passwd);
+        this(env, keystore, passwd, 1);
+    }
 
-        sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(kmf.getKeyManagers(), loadTrustManagers(), null);
+    /**
+     * Create a new client that maintains a pool of gateway connections to the specified
+     * {@link Environment environment}. All connections drain a shared queue and reconnect
+     * independently, so notifications continue to drain via the remaining connections
+     * when one is lost.
+     *
+     * @param env           Push notification environment.
+     * @param keystore      Keystore containing client private key and certificate.
+     * @param passwd        Keystore password.
+     * @param connections   Number of gateway connections.
+     */
+    public PushNotificationClient(Environment env, KeyStore keystore, char[] passwd, int connections) throws GeneralSecurityException {
+        this(new ClientRuntime(), true, env, keystore, passwd, connections);
+    }
 
-        Timer timer = new HashedWheelTimer();
+    /**
+     * Create a new client that uses the threads of a shared {@link ClientRuntime}.
+     *
+     * @param runtime       Shared runtime.
+     * @param env           Push notification environment.
+     * @param keystore      Keystore containing client private key and certificate.
+     * @param passwd        Keystore password.
+     * @param connections   Number of gateway connections.
+     */
+    public PushNotificationClient(ClientRuntime runtime, Environment env, KeyStore keystore, char[] passwd, int connections) throws GeneralSecurityException {
+        this(runtime, false, env, keystore, passwd, connections);
+    }
 
-        ExecutorService connectors = Executors.newFixedThreadPool(1);
-        ExecutorService workers    = Executors.newCachedThreadPool();
-        ClientSocketChannelFactory factory = new NioClientSocketChannelFactory(connectors, workers);
+    /**
+     * Create a new client that maintains a pool of connections to the specified
+     * gateway and periodically connects to the specified feedback service, such as
+     * a local simulator or proxy. The {@link SSLContext} must be initialized with
+     * the client's key and trust managers that accept the servers' certificates.
+     *
+     * @param gateway       Address of the notification gateway.
+     * @param feedback      Address of the feedback service.
+     * @param sslContext    TLS context for gateway and feedback connections.
+     * @param connections   Number of gateway connections.
+     */
+    public PushNotificationClient(InetSocketAddress gateway, InetSocketAddress feedback, SSLContext sslContext, int connections) {
+        this(new ClientRuntime(), true, gateway, feedback, sslContext, connections);
+    }
 
-        bootstrap = new ClientBootstrap(factory);
-        channels  = new DefaultChannelGroup();
-        counter   = new AtomicLong(0);
-        mapper    = new ObjectMapper();
+    /**
+     * Create a new client that connects to the specified gateway and feedback service
+     * using the threads of a shared {@link ClientRuntime}.
+     *
+     * @param runtime       Shared runtime.
+     * @param gateway       Address of the notification gateway.
+     * @param feedback      Address of the feedback service.
+     * @param sslContext    TLS context for gateway and feedback connections.
+     * @param connections   Number of gateway connections.
+     */
+    public PushNotificationClient(ClientRuntime runtime, InetSocketAddress gateway, InetSocketAddress feedback, SSLContext sslContext, int connections) {
+        this(runtime, false, gateway, feedback, sslContext, connections);
+    }
 
-        final BlockingQueue<PushNotification> queue = new LinkedBlockingQueue<PushNotification>();
-        final ConnectionWatchdog watchdog = new ConnectionWatchdog(bootstrap, channels, timer);
-        final PushNotificationHandler handler = new PushNotificationHandler(queue, mapper);
-        connection = new PushNotificationConnection(queue);
+    private PushNotificationClient(ClientRuntime runtime, boolean owner, Environment env, KeyStore keystore, char[] passwd, int connections) throws GeneralSecurityException {
+        this(runtime, owner, env.gateway, env.feedback, runtime.createSSLContext(keystore, passwd), connections);
+    }
 
-        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
-            @Override
-            public ChannelPipeline getPipeline() throws Exception {
-                SSLEngine engine = sslContext.createSSLEngine();
-                engine.setUseClientMode(true);
-                return Channels.pipeline(watchdog, new SslHandler(engine), handler, connection);
-            }
-        });
+    private PushNotificationClient(ClientRuntime runtime, boolean owner, InetSocketAddress gateway, InetSocketAddress feedback, SSLContext sslContext, int connections) {
+        super(runtime, owner, connections);
+        this.sslContext = sslContext;
 
-        feedback = new FeedbackServiceConnection(env, bootstrap, sslContext, timer);
+        Timer timer = runtime.getTimer();
+        ClientSocketChannelFactory factory = runtime.getChannelFactory();
 
-        bootstrap.connect(env.gateway);
+        this.bootstrap   = new ClientBootstrap(factory);
+        this.bootstraps  = new ClientBootstrap[connections];
+        this.connections = new PushNotificationConnection[connections];
+        this.handlers    = new PushNotificationHandler[connections];
+        this.windows     = new SentWindow[connections];
+        for (int i = 0; i < connections; i++) {
+            bootstraps[i] = new ClientBootstrap(factory);
+            connect(i, bootstraps[i], gateway, timer);
+        }
+
+        this.feedback = new FeedbackServiceConnection(feedback, bootstrap, sslContext, timer, metrics);
+        start();
     }
 
     /**
@@ -90,6 +146,190 @@ public class PushNotificationClient {
         feedback.setInterval(interval, unit);
     }
 
+    /**
+     * Configure the TLS client session cache, which allows reconnects and feedback
+     * polls to resume a previous session instead of performing a full handshake.
+     * The cache belongs to the {@link SSLContext} and is shared by all clients
+     * using it.
+     *
+     * @param size      Maximum number of cached sessions, or 0 for no limit.
+     * @param timeout   Time after which a cached session is no longer resumed.
+     * @param unit      Unit of time for the timeout.
+     */
+    public void setSessionCache(int size, long timeout, TimeUnit unit) {
+        SSLSessionContext context = sslContext.getClientSessionContext();
+        context.setSessionCacheSize(size);
+        context.setSessionTimeout((int) unit.toSeconds(timeout));
+    }
+
+    /**
+     * Set the write buffer water marks of gateway connections. Notifications remain
+     * in the queue while a connection has more than high bytes waiting to be written,
+     * until it drops below low bytes.
+     *
+     * @param low   Low water mark in bytes.
+     * @param high  High water mark in bytes.
+     */
+    public void setWriteBufferWaterMarks(int low, int high) {
+        if (low > high) throw new IllegalArgumentException("low water mark must be <= high");
+
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("writeBufferLowWaterMark",  low);
+        options.put("writeBufferHighWaterMark", high);
+
+        for (ClientBootstrap bootstrap : bootstraps) {
+            bootstrap.setOptions(options);
+        }
+        for (Channel c : channels) {
+            c.getConfig().setOptions(options);
+        }
+    }
+
+    /**
+     * Enable the persistent spool. Notifications are appended to memory-mapped
+     * segment files in the directory before being queued, and acknowledged when
+     * their futures complete. Any unacknowledged, unexpired notifications remaining
+     * in the directory from a previous client are sent again with new ids.
+     *
+     * @param directory Spool directory.
+     *
+     * @throws IOException when the spool cannot be opened or recovered.
+     */
+    public void enableSpool(File directory) throws IOException {
+        enableSpool(directory, NotificationSpool.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Enable the persistent spool with the specified segment file size.
+     *
+     * @param directory     Spool directory.
+     * @param segmentSize   Size of each segment file in bytes.
+     *
+     * @throws IOException when the spool cannot be opened or recovered.
+     */
+    public void enableSpool(File directory, int segmentSize) throws IOException {
+        if (spool != null) throw new IllegalStateException("Spool already enabled");
+        NotificationSpool spool = new NotificationSpool(directory, segmentSize);
+        List<PushNotification> recovered = spool.recover(counter);
+        this.spool = spool;
+        for (PushNotification n : recovered) {
+            connection().send(n);
+        }
+        logger.info("Recovered {} notifications from spool {}", recovered.size(), directory);
+    }
+
+    /**
+     * Enable a circuit breaker that fails notifications immediately while the
+     * gateway is unreachable, rather than buffering them in the queue until a
+     * connection is re-established. The circuit opens when every gateway connection
+     * has failed to connect the specified number of consecutive times, and closes
+     * as soon as any connection succeeds.
+     *
+     * @param failures  Consecutive failures per connection before the circuit opens.
+     */
+    public void enableCircuitBreaker(int failures) {
+        if (failures < 1) throw new IllegalArgumentException("failures must be >= 1");
+        breakerThreshold = failures;
+    }
+
+    /**
+     * Check whether the gateway is considered reachable. This is always true unless
+     * the {@link #enableCircuitBreaker circuit breaker} is enabled and open.
+     *
+     * @return true if notifications will be queued for sending.
+     */
+    public boolean isAvailable() {
+        int threshold = breakerThreshold;
+        if (threshold == 0) return true;
+        for (ConnectionWatchdog watchdog : watchdogs) {
+            if (watchdog.getFailures() < threshold) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Enable suppression of notifications to tokens known to be invalid. Tokens
+     * reported by the feedback service or rejected by the gateway as invalid are
+     * held off-heap for the ttl, and notifications sent to them fail immediately
+     * with an {@link ErrorResponseException} with status 8, as if the gateway had
+     * rejected them.
+     *
+     * @param limit Maximum number of tokens held.
+     * @param ttl   Time after which a token is no longer suppressed.
+     * @param unit  Unit of time for the ttl.
+     */
+    @Override
+    public void enableDeadTokenCache(int limit, long ttl, TimeUnit unit) {
+        super.enableDeadTokenCache(limit, ttl, unit);
+        final DeadTokenCache cache = deadTokens;
+
+        feedback.addBatchListener(new FeedbackBatchListener() {
+            @Override
+            public void feedback(FeedbackBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    cache.add(batch, i);
+                }
+            }
+        });
+    }
+
+    /**
+     * Set the quiet period after a notification is written, after which its future
+     * completes successfully unless the gateway has rejected it. By default the
+     * quiet period is zero and futures complete as soon as notifications are written.
+     *
+     * @param period    Quiet period.
+     * @param unit      Unit of time for the period.
+     */
+    public void setQuietPeriod(long period, TimeUnit unit) {
+        for (PushNotificationHandler handler : handlers) {
+            handler.setQuietPeriod(period, unit);
+        }
+    }
+
+    /**
+     * Set the number of written notifications each gateway connection retains so
+     * they can be retransmitted when the gateway rejects an earlier notification,
+     * {@link SentWindow#DEFAULT_CAPACITY} by default. A connection stops writing
+     * while this many notifications are in flight, so the size should cover the
+     * notifications written during the quiet period.
+     *
+     * @param size  Window size, rounded up to the next power of two.
+     */
+    public void setWindowSize(int size) {
+        for (SentWindow window : windows) {
+            window.setCapacity(size);
+        }
+    }
+
+    /**
+     * Set the frame format notifications are written to the gateway in. The default
+     * is {@link FrameFormat#COMMAND_1}, and {@link FrameFormat#COMMAND_2} is required
+     * to send notification {@link PushNotification#priority priority}.
+     *
+     * @param format    Frame format.
+     */
+    public void setFrameFormat(FrameFormat format) {
+        for (PushNotificationHandler handler : handlers) {
+            handler.setFrameFormat(format);
+        }
+    }
+
+    /**
+     * Enable batching of notification writes. Encoded notifications are coalesced
+     * into a single write, reducing the number of TLS records and system calls, and
+     * flushed when the batch reaches size bytes or delay has elapsed.
+     *
+     * @param size  Batch size in bytes, or 0 to disable batching.
+     * @param delay Maximum delay before a partial batch is flushed.
+     * @param unit  Unit of time for the delay.
+     */
+    public void setWriteBatching(int size, long delay, TimeUnit unit) {
+        for (PushNotificationHandler handler : handlers) {
+            handler.setBatching(size, delay, unit);
+        }
+    }
+
     /**
      * Add a feedback listener.
      *
@@ -109,66 +349,173 @@ public class PushNotificationClient {
     }
 
     /**
-     * Create a new push notification. The notification will be assigned a monotonically increasing
-     * unsigned int id that begins at zero and wraps around at 2^32-1.
+     * Add a feedback listener that receives entries in batches, viewed in place in
+     * the received data.
+     *
+     * @param listener  Listener.
+     */
+    public void addFeedbackBatchListener(FeedbackBatchListener listener) {
+        feedback.addBatchListener(listener);
+    }
+
+    /**
+     * Remove a batch feedback listener.
+     *
+     * @param listener  Listener.
+     */
+    public void removeFeedbackBatchListener(FeedbackBatchListener listener) {
+        feedback.removeBatchListener(listener);
+    }
+
+    /**
+     * Add a feedback listener that receives tokens as {@link DeviceToken}s.
      *
-     * @param token Target device token.
+     * @param listener  Listener.
+     */
+    public void addDeviceTokenListener(DeviceTokenListener listener) {
+        feedback.addDeviceTokenListener(listener);
+    }
+
+    /**
+     * Remove a device token feedback listener.
      *
-     * @return A new notification instance.
+     * @param listener  Listener.
      */
-    public PushNotification create(byte[] token) {
-        return new PushNotification(counter.incrementAndGet(), token);
+    public void removeDeviceTokenListener(DeviceTokenListener listener) {
+        feedback.removeDeviceTokenListener(listener);
     }
 
     /**
-     * Send a push notification.
+     * Create a notification template without a target device, for use with
+     * {@link #broadcast broadcast}. A template cannot be sent directly.
      *
-     * @param notification  Push notification.
+     * @return A new notification template.
      */
-    public void send(PushNotification notification) {
-        connection.send(notification);
+    public PushNotification create() {
+        return new PushNotification(0, null);
+    }
+
+    /**
+     * Send the same notification to many devices. The template's payload is encoded
+     * once and shared by the notifications sent to each token, which are assigned ids
+     * in the same manner as {@link #create(byte[]) create}.
+     *
+     * @param template  Notification template.
+     * @param tokens    Target device tokens.
+     *
+     * @return The number of notifications sent.
+     *
+     * @throws IOException when the payload cannot be encoded.
+     */
+    public int broadcast(PushNotification template, Iterable<byte[]> tokens) throws IOException {
+        ChannelBuffer payload = ChannelBuffers.dynamicBuffer();
+        template.encodePayload(mapper, payload);
+
+        int count = 0;
+        for (byte[] token : tokens) {
+            PushNotification n = new PushNotification(counter.incrementAndGet(), token, template.expiry(), payload);
+            if (template.priority() != 0) n.priority(template.priority());
+            n.lane(template.lane());
+            send(n);
+            count++;
+        }
+        return count;
     }
 
     /**
      * Shutdown this client and close all open connections. The client should be
      * discarded after calling shutdown.
      */
+    @Override
     public void shutdown() {
-        for (Channel c : channels) {
-            ChannelPipeline pipeline = c.getPipeline();
-            PushNotificationConnection connection = pipeline.get(PushNotificationConnection.class);
-            connection.close();
-        }
-        ChannelGroupFuture future = channels.close();
-        future.awaitUninterruptibly();
-        bootstrap.releaseExternalResources();
+        if (spool != null) spool.close();
+        feedback.close();
+        super.shutdown();
+    }
+
+    @Override
+    protected long inFlight() {
+        long n = 0;
+        for (SentWindow window : windows) n += window.inFlight();
+        return n;
     }
 
     /**
-     * Create an array of {@link TrustManager}s that only trust certificates issued
-     * by the APNS CA, Entrust.
+     * Reject notifications suppressed by the dead token cache or sent while the
+     * circuit breaker is open, and spool the rest, if enabled.
      *
-     * @return The trust managers.
-     * @throws GeneralSecurityException when the trust managers cannot be loaded.
+     * @param n Notification.
+     *
+     * @return true if the notification should be queued.
+     */
+    @Override
+    protected boolean accept(PushNotification n) {
+        if (!super.accept(n) || unavailable(n)) return false;
+        spool(n);
+        return true;
+    }
+
+    /**
+     * Fail a notification if the circuit breaker is open.
+     *
+     * @param n Notification.
+     *
+     * @return true if the notification was failed.
      */
-    private TrustManager[] loadTrustManagers() throws GeneralSecurityException {
+    private boolean unavailable(PushNotification n) {
+        if (isAvailable()) return false;
+        metrics.unavailable.increment();
+        n.future().setFailure(new IllegalStateException("Gateway unavailable"));
+        return true;
+    }
+
+    /**
+     * Append a notification to the spool, if enabled. A notification that cannot be
+     * spooled is still sent.
+     *
+     * @param n Notification.
+     */
+    private void spool(PushNotification n) {
+        NotificationSpool spool = this.spool;
+        if (spool == null) return;
         try {
-            InputStream is = getClass().getResourceAsStream("/entrust.keystore");
-            try {
-                KeyStore keystore = KeyStore.getInstance("JKS");
-                keystore.load(is, "changeit".toCharArray());
-
-                String alg = TrustManagerFactory.getDefaultAlgorithm();
-                TrustManagerFactory tmf = TrustManagerFactory.getInstance(alg);
-                tmf.init(keystore);
-
-                return tmf.getTrustManagers();
-            } finally {
-                is.close();
-            }
+            spool.append(n, mapper);
         } catch (IOException e) {
-            throw new GeneralSecurityException("Error loading CA keystore", e);
+            logger.error("Failed to spool notification id {}", n.id, e);
         }
     }
-}
 
+    /**
+     * Configure a new gateway connection with its own handler and watchdog, and
+     * initiate the connection.
+     *
+     * @param index     Index of the connection in the pool.
+     * @param bootstrap Bootstrap for the connection.
+     * @param gateway   Address of the notification gateway.
+     * @param timer     Timer used for delayed reconnect and batch flushes.
+     */
+    private void connect(int index, ClientBootstrap bootstrap, final InetSocketAddress gateway, Timer timer) {
+        final ConnectionWatchdog watchdog = new ConnectionWatchdog(bootstrap, channels, timer, DEFAULT_RECONNECT_POLICY, metrics);
+        final SentWindow window = new SentWindow();
+        final PushNotificationHandler handler = new PushNotificationHandler(queue, window, listeners, mapper, timer, metrics);
+        final PushNotificationConnection connection = new PushNotificationConnection(queue, window, metrics);
+
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                SSLEngine engine = sslContext.createSSLEngine(gateway.getHostName(), gateway.getPort());
+                engine.setUseClientMode(true);
+                return Channels.pipeline(watchdog, new SslHandler(engine), new ErrorResponseDecoder(), handler, connection);
+            }
+        });
+
+        watchdogs[index]   = watchdog;
+        connections[index] = connection;
+        handlers[index]    = handler;
+        windows[index]     = window;
+
+        bootstrap.setOption("remoteAddress", gateway);
+        bootstrap.connect();
+    }
+
+}
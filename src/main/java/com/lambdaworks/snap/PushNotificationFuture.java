@@ -0,0 +1,196 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * The result of sending a {@link PushNotification}. The future completes successfully
+ * once the notification has been written to the gateway and the client's quiet period
+ * has elapsed without an error response for it, and fails with an
+ * {@link ErrorResponseException} if the gateway rejects it. A notification the client
+ * discards without sending, because its queue lane overflowed or it expired, fails
+ * with a {@link CancellationException} and its future is reported as cancelled.
+ *
+ * @author Will Glozer
+ */
+public class PushNotificationFuture implements Future<PushNotification> {
+    private static final Logger logger = LoggerFactory.getLogger(PushNotificationFuture.class);
+
+    private final PushNotification notification;
+    private List<PushNotificationFutureListener> listeners;
+    private boolean done;
+    private Throwable cause;
+
+    public PushNotificationFuture(PushNotification notification) {
+        this.notification = notification;
+    }
+
+    public PushNotification getNotification() {
+        return notification;
+    }
+
+    public synchronized boolean isSuccess() {
+        return done && cause == null;
+    }
+
+    public synchronized Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * Get the APNS status code of the error response that caused this future to
+     * fail.
+     *
+     * @return The status code, or -1 if not failed due to an error response.
+     */
+    public synchronized int getStatus() {
+        return cause instanceof ErrorResponseException ? ((ErrorResponseException) cause).status : -1;
+    }
+
+    /**
+     * Mark this future as a success and notify all listeners.
+     *
+     * @return true if this future was not already complete.
+     */
+    public boolean setSuccess() {
+        return complete(null);
+    }
+
+    /**
+     * Mark this future as a failure and notify all listeners.
+     *
+     * @param cause Cause of the failure.
+     *
+     * @return true if this future was not already complete.
+     */
+    public boolean setFailure(Throwable cause) {
+        return complete(cause);
+    }
+
+    /**
+     * Add a listener that is notified when this future completes, or immediately
+     * if it is already complete.
+     *
+     * @param listener  Listener.
+     */
+    public void addListener(PushNotificationFutureListener listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) listeners = new ArrayList<PushNotificationFutureListener>(1);
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    public synchronized void removeListener(PushNotificationFutureListener listener) {
+        if (listeners != null) listeners.remove(listener);
+    }
+
+    /**
+     * Wait for this future to complete.
+     *
+     * @return This future.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public synchronized PushNotificationFuture await() throws InterruptedException {
+        while (!done) wait();
+        return this;
+    }
+
+    /**
+     * Wait for this future to complete within the specified time limit.
+     *
+     * @param timeout   Maximum time to wait.
+     * @param unit      Unit of time for the timeout.
+     *
+     * @return true if the future completed.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Notifications cannot be cancelled once sent, so this always returns false.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    /**
+     * Check whether the notification was discarded by the client without being
+     * sent.
+     *
+     * @return true if this future failed with a CancellationException.
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return cause instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public PushNotification get() throws InterruptedException, ExecutionException {
+        await();
+        return result();
+    }
+
+    @Override
+    public PushNotification get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!await(timeout, unit)) throw new TimeoutException();
+        return result();
+    }
+
+    private synchronized PushNotification result() throws ExecutionException {
+        if (cause instanceof CancellationException) throw (CancellationException) cause;
+        if (cause != null) throw new ExecutionException(cause);
+        return notification;
+    }
+
+    private boolean complete(Throwable cause) {
+        List<PushNotificationFutureListener> listeners;
+        synchronized (this) {
+            if (done) return false;
+            this.done  = true;
+            this.cause = cause;
+            listeners = this.listeners;
+            this.listeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (PushNotificationFutureListener l : listeners) {
+                notifyListener(l);
+            }
+        }
+        return true;
+    }
+
+    private void notifyListener(PushNotificationFutureListener listener) {
+        try {
+            listener.operationComplete(this);
+        } catch (Throwable t) {
+            logger.warn("Exception thrown by listener", t);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Listener notified when a {@link PushNotificationFuture} completes.
+ *
+ * @author Will Glozer
+ */
+public interface PushNotificationFutureListener {
+    void operationComplete(PushNotificationFuture future);
+}
@@ -0,0 +1,19 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+/**
+ * Policy determining the delay before each attempt to reconnect to the gateway.
+ *
+ * @author Will Glozer
+ */
+public interface ReconnectPolicy {
+    /**
+     * Get the delay before a reconnection attempt.
+     *
+     * @param attempt   Number of consecutive failed connections, starting at 1.
+     *
+     * @return The delay in milliseconds.
+     */
+    long delay(int attempt);
+}
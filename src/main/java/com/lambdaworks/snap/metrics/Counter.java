@@ -0,0 +1,50 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter striped across multiple cells, selected by thread id, so concurrent
+ * updates rarely contend. Each cell is padded to its own cache line and the
+ * value is the sum of all cells.
+ *
+ * @author Will Glozer
+ */
+public class Counter implements Metric {
+    private static final int PAD    = 8;
+    private static final int STRIPES;
+
+    static {
+        int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        STRIPES = Math.min(n, 64);
+    }
+
+    private final AtomicLongArray cells;
+
+    public Counter() {
+        this.cells = new AtomicLongArray(STRIPES * PAD);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long n) {
+        cells.getAndAdd(cell(), n);
+    }
+
+    public long getCount() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((h >>> 16) & (STRIPES - 1)) * PAD;
+    }
+}
@@ -0,0 +1,12 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+/**
+ * Metric whose value is sampled when read.
+ *
+ * @author Will Glozer
+ */
+public interface Gauge extends Metric {
+    long getValue();
+}
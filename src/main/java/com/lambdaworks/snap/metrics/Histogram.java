@@ -0,0 +1,88 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values recorded in log-linear buckets, with four
+ * buckets per power of two, so percentiles are accurate to within 25% while
+ * recording is a single atomic increment.
+ *
+ * @author Will Glozer
+ */
+public class Histogram implements Metric {
+    private static final int BUCKETS = 4 * 62;
+
+    private final AtomicLongArray buckets;
+    private final Counter count;
+    private final Counter sum;
+
+    public Histogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count   = new Counter();
+        this.sum     = new Counter();
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.getAndIncrement(bucket(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return count.getCount();
+    }
+
+    public double getMean() {
+        long n = count.getCount();
+        return n > 0 ? sum.getCount() / (double) n : 0;
+    }
+
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (buckets.get(i) > 0) return upper(i);
+        }
+        return 0;
+    }
+
+    /**
+     * Get the value at the specified percentile, reported as the upper bound of
+     * the bucket containing it.
+     *
+     * @param percentile    Percentile between 0 and 1.
+     *
+     * @return The value at the percentile.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) return upper(i);
+        }
+        return getMax();
+    }
+
+    static int bucket(long value) {
+        if (value < 4) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return 4 * (exp - 1) + (int) ((value >>> (exp - 2)) & 3);
+    }
+
+    static long upper(int bucket) {
+        if (bucket < 4) return bucket;
+        int exp = bucket / 4 + 1;
+        long lower = (long) (4 + bucket % 4) << (exp - 2);
+        return lower + (1L << (exp - 2)) - 1;
+    }
+}
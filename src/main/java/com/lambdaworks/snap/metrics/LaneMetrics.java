@@ -0,0 +1,26 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+/**
+ * Metrics of a single {@link com.lambdaworks.snap.Lane queue lane}.
+ *
+ * @author Will Glozer
+ */
+public class LaneMetrics {
+    /** Notifications waiting in the lane. */
+    public final Counter queued;
+    /** Time from adding a notification to the lane until it is removed to be sent. */
+    public final Histogram queueTime;
+    /** Notifications rejected or discarded because the lane was full. */
+    public final Counter overflows;
+    /** Notifications discarded because they expired while queued. */
+    public final Counter expired;
+
+    public LaneMetrics() {
+        this.queued    = new Counter();
+        this.queueTime = new Histogram();
+        this.overflows = new Counter();
+        this.expired   = new Counter();
+    }
+}
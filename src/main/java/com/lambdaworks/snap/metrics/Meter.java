@@ -0,0 +1,56 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counter of events that also tracks the mean rate and an exponentially weighted
+ * one minute rate of events per second. The one minute rate is updated each
+ * time {@link #tick} is called, which must occur every {@link #TICK_INTERVAL}
+ * seconds.
+ *
+ * @author Will Glozer
+ */
+public class Meter extends Counter {
+    public static final int TICK_INTERVAL = 5;
+
+    private static final double ALPHA = 1 - Math.exp(-TICK_INTERVAL / 60.0);
+
+    private final long start;
+    private long last;
+    private volatile double rate;
+    private boolean initialized;
+
+    public Meter() {
+        this.start = System.nanoTime();
+    }
+
+    public void mark() {
+        increment();
+    }
+
+    /**
+     * Update the one minute rate with the events counted since the last tick.
+     */
+    public synchronized void tick() {
+        long count = getCount();
+        double instant = (count - last) / (double) TICK_INTERVAL;
+        last = count;
+        if (initialized) {
+            rate += ALPHA * (instant - rate);
+        } else {
+            rate = instant;
+            initialized = true;
+        }
+    }
+
+    public double getOneMinuteRate() {
+        return rate;
+    }
+
+    public double getMeanRate() {
+        long elapsed = System.nanoTime() - start;
+        return elapsed > 0 ? getCount() / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)) : 0;
+    }
+}
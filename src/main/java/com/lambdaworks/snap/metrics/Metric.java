@@ -0,0 +1,11 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+/**
+ * Marker interface of all metrics.
+ *
+ * @author Will Glozer
+ */
+public interface Metric {
+}
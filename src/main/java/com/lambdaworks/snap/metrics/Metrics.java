@@ -0,0 +1,181 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+import com.lambdaworks.snap.Lane;
+import org.jboss.netty.util.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of a {@link com.lambdaworks.snap.PushNotificationClient}'s gateway and
+ * feedback connections. Times are recorded in nanoseconds, except for reconnect
+ * backoff which is recorded in milliseconds.
+ *
+ * @author Will Glozer
+ */
+public class Metrics implements TimerTask {
+    /** Status codes that may be reported in an error response. */
+    private static final int[] STATUS = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 10, 255 };
+
+    /** Notifications waiting to be written. */
+    public final Gauge queued;
+    /** Notifications being written, or awaiting a response or the end of their quiet period. */
+    public final Gauge inFlight;
+    /** Notifications written to the gateway. */
+    public final Meter sent;
+    /** Bytes of encoded notifications. */
+    public final Counter bytes;
+    /** Time taken to encode a notification. */
+    public final Histogram encodeTime;
+    /**
+     * Time from a write request until the notification has been written to the
+     * gateway connection. This excludes the gateway's processing, which the binary
+     * protocol only acknowledges when it rejects a notification.
+     */
+    public final Histogram writeLatency;
+    /** Time from a request to the HTTP/2 provider API until its response is received. */
+    public final Histogram responseLatency;
+    /** Gateway reconnection attempts. */
+    public final Counter reconnects;
+    /** Delay before each reconnection attempt. */
+    public final Histogram backoff;
+    /** Tokens received from the feedback service. */
+    public final Counter feedback;
+    /** Notifications not sent because their token is known to be invalid. */
+    public final Counter suppressed;
+    /** Notifications failed because the gateway was unreachable. */
+    public final Counter unavailable;
+    /** Time taken to complete each TLS handshake. */
+    public final Histogram handshakeTime;
+    /** TLS handshakes that resumed a cached session. */
+    public final Counter resumed;
+
+    private final LaneMetrics[] lanes;
+    private final AtomicLongArray errors;
+    private Timer timer;
+    private Timeout timeout;
+
+    /**
+     * Create a new set of metrics.
+     *
+     * @param queued    Number of notifications waiting to be written.
+     * @param inFlight  Number of notifications being written or awaiting a response,
+     *                  excluding those only held for retransmission.
+     */
+    public Metrics(Gauge queued, Gauge inFlight) {
+        this.queued          = queued;
+        this.inFlight        = inFlight;
+        this.sent            = new Meter();
+        this.bytes           = new Counter();
+        this.encodeTime      = new Histogram();
+        this.writeLatency    = new Histogram();
+        this.responseLatency = new Histogram();
+        this.reconnects      = new Counter();
+        this.backoff         = new Histogram();
+        this.feedback        = new Counter();
+        this.suppressed      = new Counter();
+        this.unavailable     = new Counter();
+        this.handshakeTime   = new Histogram();
+        this.resumed         = new Counter();
+        this.lanes           = new LaneMetrics[Lane.values().length];
+        this.errors          = new AtomicLongArray(256);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new LaneMetrics();
+        }
+    }
+
+    /**
+     * Get the metrics of a queue lane.
+     *
+     * @param lane  Lane.
+     *
+     * @return The lane's metrics.
+     */
+    public LaneMetrics lane(Lane lane) {
+        return lanes[lane.ordinal()];
+    }
+
+    /**
+     * Count an error response.
+     *
+     * @param status    Status code.
+     */
+    public void error(int status) {
+        errors.getAndIncrement(status & 0xFF);
+    }
+
+    /**
+     * Get the number of error responses received with the specified status code.
+     *
+     * @param status    Status code.
+     *
+     * @return The number of error responses.
+     */
+    public long getErrors(int status) {
+        return errors.get(status & 0xFF);
+    }
+
+    /**
+     * Publish all metrics to a registry.
+     *
+     * @param registry  Registry.
+     * @param prefix    Prefix of metric names.
+     */
+    public void register(MetricsRegistry registry, String prefix) {
+        registry.register(prefix + "queued",          queued);
+        registry.register(prefix + "inFlight",        inFlight);
+        registry.register(prefix + "sent",            sent);
+        registry.register(prefix + "bytes",           bytes);
+        registry.register(prefix + "encodeTime",      encodeTime);
+        registry.register(prefix + "writeLatency",    writeLatency);
+        registry.register(prefix + "responseLatency", responseLatency);
+        registry.register(prefix + "reconnects",      reconnects);
+        registry.register(prefix + "backoff",         backoff);
+        registry.register(prefix + "feedback",        feedback);
+        registry.register(prefix + "suppressed",      suppressed);
+        registry.register(prefix + "unavailable",     unavailable);
+        registry.register(prefix + "handshakeTime",   handshakeTime);
+        registry.register(prefix + "resumed",         resumed);
+        for (Lane lane : Lane.values()) {
+            String name = prefix + "lanes." + lane.name().toLowerCase() + ".";
+            registry.register(name + "queued",    lane(lane).queued);
+            registry.register(name + "queueTime", lane(lane).queueTime);
+            registry.register(name + "overflows", lane(lane).overflows);
+            registry.register(name + "expired",   lane(lane).expired);
+        }
+        for (final int status : STATUS) {
+            registry.register(prefix + "errors." + status, new Gauge() {
+                @Override
+                public long getValue() {
+                    return getErrors(status);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start updating rates at the {@link Meter#TICK_INTERVAL tick interval}.
+     *
+     * @param timer Timer.
+     */
+    public synchronized void start(Timer timer) {
+        this.timer   = timer;
+        this.timeout = timer.newTimeout(this, Meter.TICK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop updating rates.
+     */
+    public synchronized void stop() {
+        if (timeout != null) timeout.cancel();
+        timer = null;
+    }
+
+    @Override
+    public synchronized void run(Timeout timeout) throws Exception {
+        sent.tick();
+        if (timer != null) this.timeout = timer.newTimeout(this, Meter.TICK_INTERVAL, TimeUnit.SECONDS);
+    }
+}
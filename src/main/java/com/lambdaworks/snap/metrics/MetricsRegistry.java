@@ -0,0 +1,13 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+/**
+ * Registry that metrics are published to, for example by exposing them
+ * as JMX attributes.
+ *
+ * @author Will Glozer
+ */
+public interface MetricsRegistry {
+    void register(String name, Metric metric);
+}
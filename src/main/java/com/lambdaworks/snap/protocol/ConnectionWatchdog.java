@@ -2,6 +2,8 @@
 
 package com.lambdaworks.snap.protocol;
 
+import com.lambdaworks.snap.ReconnectPolicy;
+import com.lambdaworks.snap.metrics.Metrics;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.ChannelGroup;
@@ -9,11 +11,17 @@ import org.jboss.netty.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.concurrent.TimeUnit;
 
 /**
  * A netty {@link ChannelHandler} responsible for monitoring the channel and
- * reconnecting when the connection is lost.
+ * reconnecting when the connection is lost. The delay before each attempt is
+ * determined by a {@link ReconnectPolicy}, and the gateway host name is resolved
+ * again before each attempt, cycling through all of its addresses so a single
+ * unreachable address is not retried indefinitely.
  *
  * @author Will Glozer
  */
@@ -21,11 +29,13 @@ public class ConnectionWatchdog extends SimpleChannelUpstreamHandler implements
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     private ClientBootstrap bootstrap;
-    private Channel channel;
     private ChannelGroup channels;
     private Timer timer;
-    private boolean reconnect;
-    private int attempts;
+    private Metrics metrics;
+    private volatile ReconnectPolicy policy;
+    private volatile boolean reconnect;
+    private volatile int attempts;
+    private int next;
 
     /**
      * Create a new watchdog that adds to new connections to the supplied {@link ChannelGroup}
@@ -34,23 +44,53 @@ public class ConnectionWatchdog extends SimpleChannelUpstreamHandler implements
      * @param bootstrap Configuration for new channels.
      * @param channels  ChannelGroup to add new channels to.
      * @param timer     Timer used for delayed reconnect.
+     * @param policy    Policy determining the delay before each reconnect.
+     * @param metrics   Metrics.
      */
-    public ConnectionWatchdog(ClientBootstrap bootstrap, ChannelGroup channels, Timer timer) {
+    public ConnectionWatchdog(ClientBootstrap bootstrap, ChannelGroup channels, Timer timer, ReconnectPolicy policy, Metrics metrics) {
         this.bootstrap = bootstrap;
         this.channels  = channels;
         this.timer     = timer;
+        this.policy    = policy;
+        this.metrics   = metrics;
         this.reconnect = true;
     }
 
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Get the number of consecutive times the connection was lost or could not be
+     * established, which is reset once a connection is {@link #ready ready}. A
+     * connection that is accepted but fails its TLS handshake counts as a failure.
+     *
+     * @return The number of failures.
+     */
+    public int getFailures() {
+        return attempts;
+    }
+
     public void setReconnect(boolean reconnect) {
         this.reconnect = reconnect;
     }
 
+    /**
+     * Reset the failure count after the connection has completed its handshake
+     * and is ready to send notifications.
+     */
+    public void ready() {
+        attempts = 0;
+    }
+
     @Override
     public synchronized void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        channel = ctx.getChannel();
+        Channel channel = ctx.getChannel();
+        if (!reconnect) {
+            channel.close();
+            return;
+        }
         channels.add(channel);
-        attempts = 0;
         logger.info("Connected to {}", channel.getRemoteAddress());
         ctx.sendUpstream(e);
     }
@@ -58,9 +98,11 @@ public class ConnectionWatchdog extends SimpleChannelUpstreamHandler implements
     @Override
     public synchronized void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         if (reconnect) {
-            if (attempts < 8) attempts++;
-            int timeout = 2 << attempts;
+            if (attempts < Integer.MAX_VALUE) attempts++;
+            long timeout = policy.delay(attempts);
             timer.newTimeout(this, timeout, TimeUnit.MILLISECONDS);
+            metrics.reconnects.increment();
+            metrics.backoff.record(timeout);
             logger.info("Disconnected, reconnecting in {}ms", timeout);
         }
         ctx.sendUpstream(e);
@@ -73,7 +115,8 @@ public class ConnectionWatchdog extends SimpleChannelUpstreamHandler implements
     }
 
     /**
-     * Reconnect to the remote address that the closed channel was connected to.
+     * Reconnect to the next address of the remote host the bootstrap is configured
+     * with.
      *
      * @param timeout Timer task handle.
      *
@@ -81,6 +124,25 @@ public class ConnectionWatchdog extends SimpleChannelUpstreamHandler implements
      */
     @Override
     public void run(Timeout timeout) throws Exception {
-        bootstrap.connect(channel.getRemoteAddress());
+        if (reconnect) bootstrap.connect(resolve((InetSocketAddress) bootstrap.getOption("remoteAddress")));
+    }
+
+    /**
+     * Resolve all addresses of a host and select the next one in turn. The JVM's
+     * DNS cache policy determines how often the host is actually looked up.
+     *
+     * @param address   Configured remote address.
+     *
+     * @return The address to connect to.
+     */
+    private synchronized InetSocketAddress resolve(InetSocketAddress address) {
+        try {
+            InetAddress[] all = InetAddress.getAllByName(address.getHostName());
+            next = (next + 1) % all.length;
+            return new InetSocketAddress(all[next], address.getPort());
+        } catch (UnknownHostException e) {
+            logger.warn("Unable to resolve {}", address.getHostName());
+            return address;
+        }
     }
 }
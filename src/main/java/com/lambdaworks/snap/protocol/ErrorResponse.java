@@ -0,0 +1,18 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+/**
+ * Error response sent by the gateway when it rejects a notification.
+ *
+ * @author Will Glozer
+ */
+public class ErrorResponse {
+    public final int status;
+    public final long id;
+
+    public ErrorResponse(int status, long id) {
+        this.status = status;
+        this.id     = id;
+    }
+}
@@ -0,0 +1,39 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoder of the 6 byte error response frames sent by the gateway, which may
+ * arrive split across any number of reads.
+ *
+ * @author Will Glozer
+ */
+public class ErrorResponseDecoder extends FrameDecoder {
+    public static final int COMMAND = 8;
+    public static final int LENGTH  = 6;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (buffer.readableBytes() < LENGTH) return null;
+
+        int command = buffer.readUnsignedByte();
+        int status  = buffer.readUnsignedByte();
+        long id     = buffer.readUnsignedInt();
+
+        if (command != COMMAND) {
+            logger.warn("Ignoring unknown response command {}", command);
+            return null;
+        }
+
+        return new ErrorResponse(status, id);
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.lambdaworks.snap.FeedbackBatch;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+/**
+ * Decoder of feedback service entries, which may arrive split across any number
+ * of reads. Complete entries are decoded in place into a reused {@link FeedbackBatch}
+ * that is only valid until the next entries are decoded.
+ *
+ * @author Will Glozer
+ */
+public class FeedbackDecoder extends FrameDecoder {
+    private FeedbackBatch batch;
+
+    public FeedbackDecoder(int capacity) {
+        this.batch = new FeedbackBatch(capacity);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        batch.clear(buffer);
+        while (!batch.isFull() && buffer.readableBytes() >= 6) {
+            int start = buffer.readerIndex();
+            int len   = buffer.getUnsignedShort(start + 4);
+            if (buffer.readableBytes() < 6 + len) break;
+
+            batch.add(start);
+            buffer.skipBytes(6 + len);
+        }
+        return batch.size() > 0 ? batch : null;
+    }
+}
@@ -2,17 +2,20 @@
 
 package com.lambdaworks.snap.protocol;
 
-import com.lambdaworks.snap.Environment;
+import com.lambdaworks.snap.DeviceToken;
+import com.lambdaworks.snap.DeviceTokenListener;
+import com.lambdaworks.snap.FeedbackBatch;
+import com.lambdaworks.snap.FeedbackBatchListener;
 import com.lambdaworks.snap.FeedbackListener;
+import com.lambdaworks.snap.metrics.Metrics;
 import org.jboss.netty.bootstrap.ClientBootstrap;
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.util.*;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
@@ -23,32 +26,48 @@ import java.util.concurrent.TimeUnit;
  * @author Will Glozer
  */
 public class FeedbackServiceConnection extends SimpleChannelHandler implements TimerTask {
-    private Environment environment;
+    public static final int BATCH_SIZE = 1024;
+
+    private InetSocketAddress address;
     private ClientBootstrap bootstrap;
     private SSLContext sslContext;
-    private ChannelBuffer buffer;
     private List<FeedbackListener> listeners;
+    private List<FeedbackBatchListener> batchListeners;
+    private List<DeviceTokenListener> tokenListeners;
     private Timer timer;
+    private Metrics metrics;
     private int interval;
     private TimeUnit unit;
     private Timeout timeout;
-
-    public FeedbackServiceConnection(Environment env, ClientBootstrap bootstrap, SSLContext sslContext, Timer timer) {
-        this.environment = env;
-        this.bootstrap   = bootstrap;
-        this.sslContext  = sslContext;
-        this.timer       = timer;
-        this.listeners   = new CopyOnWriteArrayList<FeedbackListener>();
+    private volatile boolean closed;
+
+    public FeedbackServiceConnection(InetSocketAddress address, ClientBootstrap bootstrap, SSLContext sslContext, Timer timer, Metrics metrics) {
+        this.address        = address;
+        this.bootstrap      = bootstrap;
+        this.sslContext     = sslContext;
+        this.timer          = timer;
+        this.metrics        = metrics;
+        this.listeners      = new CopyOnWriteArrayList<FeedbackListener>();
+        this.batchListeners = new CopyOnWriteArrayList<FeedbackBatchListener>();
+        this.tokenListeners = new CopyOnWriteArrayList<DeviceTokenListener>();
         setInterval(10, TimeUnit.MINUTES);
     }
 
-    public void setInterval(int interval, TimeUnit unit) {
+    public synchronized void setInterval(int interval, TimeUnit unit) {
         this.interval = interval;
         this.unit     = unit;
         if (timeout != null) timeout.cancel();
         timeout = timer.newTimeout(this, interval, unit);
     }
 
+    /**
+     * Stop polling the feedback service.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (timeout != null) timeout.cancel();
+    }
+
     public void addListener(FeedbackListener listener) {
         listeners.add(listener);
     }
@@ -57,52 +76,89 @@ public class FeedbackServiceConnection extends SimpleChannelHandler implements T
         listeners.remove(listener);
     }
 
+    public void addBatchListener(FeedbackBatchListener listener) {
+        batchListeners.add(listener);
+    }
+
+    public void removeBatchListener(FeedbackBatchListener listener) {
+        batchListeners.remove(listener);
+    }
+
+    public void addDeviceTokenListener(DeviceTokenListener listener) {
+        tokenListeners.add(listener);
+    }
+
+    public void removeDeviceTokenListener(DeviceTokenListener listener) {
+        tokenListeners.remove(listener);
+    }
+
     @Override
     public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        timeout = timer.newTimeout(this, interval, unit);
+        synchronized (this) {
+            if (!closed) timeout = timer.newTimeout(this, interval, unit);
+        }
         super.channelClosed(ctx, e);
     }
 
     @Override
-    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        buffer = ChannelBuffers.dynamicBuffer(ctx.getChannel().getConfig().getBufferFactory());
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        SslHandler ssl = ctx.getPipeline().get(SslHandler.class);
+        if (ssl != null) Handshake.start(ssl, metrics);
+        super.channelConnected(ctx, e);
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        ChannelBuffer input = (ChannelBuffer) e.getMessage();
-        if (!input.readable()) return;
-
-        buffer.discardReadBytes();
-        buffer.writeBytes(input);
-
-        decode(buffer);
+        deliver((FeedbackBatch) e.getMessage());
     }
 
-    protected void decode(ChannelBuffer buffer) {
-        while (buffer.readableBytes() >= 6) {
-            int time = buffer.readInt();
-            int len  = buffer.readShort();
+    /**
+     * Deliver a batch to all batch listeners, and each entry to all per-token
+     * listeners. Entries whose tokens are not 32 bytes long are not delivered to
+     * {@link DeviceTokenListener}s.
+     *
+     * @param batch Batch of entries.
+     */
+    protected void deliver(FeedbackBatch batch) {
+        metrics.feedback.add(batch.size());
+
+        for (FeedbackBatchListener l : batchListeners) {
+            l.feedback(batch);
+        }
 
-            byte[] token = new byte[len];
-            buffer.readBytes(token);
+        if (!tokenListeners.isEmpty()) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.tokenLength(i) != DeviceToken.LENGTH) continue;
+                DeviceToken token = batch.deviceToken(i);
+                long time = batch.timestamp(i);
+                for (DeviceTokenListener l : tokenListeners) {
+                    l.feedback(token, time);
+                }
+            }
+        }
 
-            for (FeedbackListener l : listeners) {
-                l.feedback(token, time);
+        if (!listeners.isEmpty()) {
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] token = batch.token(i);
+                long time = batch.timestamp(i);
+                for (FeedbackListener l : listeners) {
+                    l.feedback(token, time);
+                }
             }
         }
     }
 
     @Override
     public void run(Timeout timeout) throws Exception {
-        if (listeners.size() > 0) {
-            SSLEngine engine = sslContext.createSSLEngine();
+        if (closed) return;
+        if (listeners.size() > 0 || batchListeners.size() > 0 || tokenListeners.size() > 0) {
+            SSLEngine engine = sslContext.createSSLEngine(address.getHostName(), address.getPort());
             engine.setUseClientMode(true);
 
-            ChannelPipeline pipeline = Channels.pipeline(new SslHandler(engine), this);
+            ChannelPipeline pipeline = Channels.pipeline(new SslHandler(engine), new FeedbackDecoder(BATCH_SIZE), this);
 
             Channel c = bootstrap.getFactory().newChannel(pipeline);
-            c.connect(environment.feedback);
+            c.connect(address);
         }
     }
 }
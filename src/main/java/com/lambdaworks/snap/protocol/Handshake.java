@@ -0,0 +1,44 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.lambdaworks.snap.metrics.Metrics;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Starts TLS handshakes and records their duration. A handshake resumed a cached
+ * session when the session was created before the handshake began.
+ *
+ * @author Will Glozer
+ */
+class Handshake {
+    private Handshake() {
+    }
+
+    /**
+     * Start the handshake of a {@link SslHandler}.
+     *
+     * @param ssl       SSL handler.
+     * @param metrics   Metrics to record the handshake in.
+     *
+     * @return The handshake future.
+     */
+    static ChannelFuture start(final SslHandler ssl, final Metrics metrics) {
+        final long start = System.nanoTime();
+        final long now   = System.currentTimeMillis();
+        ChannelFuture future = ssl.handshake();
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) return;
+                metrics.handshakeTime.record(System.nanoTime() - start);
+                SSLSession session = ssl.getEngine().getSession();
+                if (session.getCreationTime() < now) metrics.resumed.increment();
+            }
+        });
+        return future;
+    }
+}
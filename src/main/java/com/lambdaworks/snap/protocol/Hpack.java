@@ -0,0 +1,320 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal HPACK (RFC 7541) header compression for HTTP/2. Headers are encoded as
+ * fully indexed static table entries when possible, and otherwise as literals
+ * without indexing and without Huffman coding, so the encoder needs no state.
+ * The {@link Decoder} supports the full format including the dynamic table and
+ * Huffman coded strings.
+ *
+ * @author Will Glozer
+ */
+public class Hpack {
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final String[][] STATIC = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+        { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+        { "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+        { "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+        { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+        { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+        { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+        { "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+        { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+        { "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+        { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+        { "www-authenticate", "" }
+    };
+
+    private static final int[] HUFFMAN_CODES = {
+        0x00001ff8, 0x007fffd8, 0x0fffffe2, 0x0fffffe3, 0x0fffffe4, 0x0fffffe5,
+        0x0fffffe6, 0x0fffffe7, 0x0fffffe8, 0x00ffffea, 0x3ffffffc, 0x0fffffe9,
+        0x0fffffea, 0x3ffffffd, 0x0fffffeb, 0x0fffffec, 0x0fffffed, 0x0fffffee,
+        0x0fffffef, 0x0ffffff0, 0x0ffffff1, 0x0ffffff2, 0x3ffffffe, 0x0ffffff3,
+        0x0ffffff4, 0x0ffffff5, 0x0ffffff6, 0x0ffffff7, 0x0ffffff8, 0x0ffffff9,
+        0x0ffffffa, 0x0ffffffb, 0x00000014, 0x000003f8, 0x000003f9, 0x00000ffa,
+        0x00001ff9, 0x00000015, 0x000000f8, 0x000007fa, 0x000003fa, 0x000003fb,
+        0x000000f9, 0x000007fb, 0x000000fa, 0x00000016, 0x00000017, 0x00000018,
+        0x00000000, 0x00000001, 0x00000002, 0x00000019, 0x0000001a, 0x0000001b,
+        0x0000001c, 0x0000001d, 0x0000001e, 0x0000001f, 0x0000005c, 0x000000fb,
+        0x00007ffc, 0x00000020, 0x00000ffb, 0x000003fc, 0x00001ffa, 0x00000021,
+        0x0000005d, 0x0000005e, 0x0000005f, 0x00000060, 0x00000061, 0x00000062,
+        0x00000063, 0x00000064, 0x00000065, 0x00000066, 0x00000067, 0x00000068,
+        0x00000069, 0x0000006a, 0x0000006b, 0x0000006c, 0x0000006d, 0x0000006e,
+        0x0000006f, 0x00000070, 0x00000071, 0x00000072, 0x000000fc, 0x00000073,
+        0x000000fd, 0x00001ffb, 0x0007fff0, 0x00001ffc, 0x00003ffc, 0x00000022,
+        0x00007ffd, 0x00000003, 0x00000023, 0x00000004, 0x00000024, 0x00000005,
+        0x00000025, 0x00000026, 0x00000027, 0x00000006, 0x00000074, 0x00000075,
+        0x00000028, 0x00000029, 0x0000002a, 0x00000007, 0x0000002b, 0x00000076,
+        0x0000002c, 0x00000008, 0x00000009, 0x0000002d, 0x00000077, 0x00000078,
+        0x00000079, 0x0000007a, 0x0000007b, 0x00007ffe, 0x000007fc, 0x00003ffd,
+        0x00001ffd, 0x0ffffffc, 0x000fffe6, 0x003fffd2, 0x000fffe7, 0x000fffe8,
+        0x003fffd3, 0x003fffd4, 0x003fffd5, 0x007fffd9, 0x003fffd6, 0x007fffda,
+        0x007fffdb, 0x007fffdc, 0x007fffdd, 0x007fffde, 0x00ffffeb, 0x007fffdf,
+        0x00ffffec, 0x00ffffed, 0x003fffd7, 0x007fffe0, 0x00ffffee, 0x007fffe1,
+        0x007fffe2, 0x007fffe3, 0x007fffe4, 0x001fffdc, 0x003fffd8, 0x007fffe5,
+        0x003fffd9, 0x007fffe6, 0x007fffe7, 0x00ffffef, 0x003fffda, 0x001fffdd,
+        0x000fffe9, 0x003fffdb, 0x003fffdc, 0x007fffe8, 0x007fffe9, 0x001fffde,
+        0x007fffea, 0x003fffdd, 0x003fffde, 0x00fffff0, 0x001fffdf, 0x003fffdf,
+        0x007fffeb, 0x007fffec, 0x001fffe0, 0x001fffe1, 0x003fffe0, 0x001fffe2,
+        0x007fffed, 0x003fffe1, 0x007fffee, 0x007fffef, 0x000fffea, 0x003fffe2,
+        0x003fffe3, 0x003fffe4, 0x007ffff0, 0x003fffe5, 0x003fffe6, 0x007ffff1,
+        0x03ffffe0, 0x03ffffe1, 0x000fffeb, 0x0007fff1, 0x003fffe7, 0x007ffff2,
+        0x003fffe8, 0x01ffffec, 0x03ffffe2, 0x03ffffe3, 0x03ffffe4, 0x07ffffde,
+        0x07ffffdf, 0x03ffffe5, 0x00fffff1, 0x01ffffed, 0x0007fff2, 0x001fffe3,
+        0x03ffffe6, 0x07ffffe0, 0x07ffffe1, 0x03ffffe7, 0x07ffffe2, 0x00fffff2,
+        0x001fffe4, 0x001fffe5, 0x03ffffe8, 0x03ffffe9, 0x0ffffffd, 0x07ffffe3,
+        0x07ffffe4, 0x07ffffe5, 0x000fffec, 0x00fffff3, 0x000fffed, 0x001fffe6,
+        0x003fffe9, 0x001fffe7, 0x001fffe8, 0x007ffff3, 0x003fffea, 0x003fffeb,
+        0x01ffffee, 0x01ffffef, 0x00fffff4, 0x00fffff5, 0x03ffffea, 0x007ffff4,
+        0x03ffffeb, 0x07ffffe6, 0x03ffffec, 0x03ffffed, 0x07ffffe7, 0x07ffffe8,
+        0x07ffffe9, 0x07ffffea, 0x07ffffeb, 0x0ffffffe, 0x07ffffec, 0x07ffffed,
+        0x07ffffee, 0x07ffffef, 0x07fffff0, 0x03ffffee, 0x3fffffff
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+    private static final int EOS = 256;
+
+    private static final int[] TREE = tree();
+
+    private Hpack() {
+    }
+
+    /**
+     * Encode a header field.
+     *
+     * @param buf   Buffer.
+     * @param name  Lower case header name.
+     * @param value Header value.
+     */
+    public static void encode(ChannelBuffer buf, String name, String value) {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC.length; i++) {
+            if (!STATIC[i][0].equals(name)) continue;
+            if (STATIC[i][1].equals(value)) {
+                writeInt(buf, 0x80, 7, i + 1);
+                return;
+            }
+            if (nameIndex == 0) nameIndex = i + 1;
+        }
+
+        writeInt(buf, 0x00, 4, nameIndex);
+        if (nameIndex == 0) writeString(buf, name);
+        writeString(buf, value);
+    }
+
+    private static void writeString(ChannelBuffer buf, String s) {
+        byte[] bytes = s.getBytes(CHARSET);
+        writeInt(buf, 0x00, 7, bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    private static void writeInt(ChannelBuffer buf, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            buf.writeByte(flags | value);
+            return;
+        }
+        buf.writeByte(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    /**
+     * Build the Huffman decoding tree, where node n has children at 2n and 2n + 1
+     * of the returned array and leaves hold the complement of their symbol.
+     */
+    private static int[] tree() {
+        int[] tree = new int[2 * 2 * (EOS + 1)];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((code >>> bit) & 1);
+                if (bit == 0) {
+                    tree[child] = ~symbol;
+                } else {
+                    if (tree[child] == 0) tree[child] = nodes++;
+                    node = tree[child];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Stateful decoder of the header blocks received on one connection.
+     */
+    public static class Decoder {
+        private List<String[]> table;
+        private int size;
+        private int maxSize;
+        private int limit;
+
+        public Decoder() {
+            this.table   = new ArrayList<String[]>();
+            this.maxSize = 4096;
+            this.limit   = 4096;
+        }
+
+        /**
+         * Decode a complete header block.
+         *
+         * @param buf       Header block.
+         * @param headers   Map to add decoded headers to.
+         *
+         * @throws IOException when the block is malformed.
+         */
+        public void decode(ChannelBuffer buf, Map<String, String> headers) throws IOException {
+            try {
+                while (buf.readable()) {
+                    int b = buf.getUnsignedByte(buf.readerIndex());
+                    if ((b & 0x80) != 0) {
+                        String[] entry = entry(readInt(buf, 7));
+                        headers.put(entry[0], entry[1]);
+                    } else if ((b & 0x40) != 0) {
+                        String[] entry = literal(buf, 6);
+                        add(entry);
+                        headers.put(entry[0], entry[1]);
+                    } else if ((b & 0x20) != 0) {
+                        int size = readInt(buf, 5);
+                        if (size > limit) throw new IOException("Invalid dynamic table size " + size);
+                        maxSize = size;
+                        evict(0);
+                    } else {
+                        String[] entry = literal(buf, 4);
+                        headers.put(entry[0], entry[1]);
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Truncated header block");
+            }
+        }
+
+        private String[] literal(ChannelBuffer buf, int prefix) throws IOException {
+            int index = readInt(buf, prefix);
+            String name = index == 0 ? readString(buf) : entry(index)[0];
+            return new String[] { name, readString(buf) };
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index > 0 && index <= STATIC.length) return STATIC[index - 1];
+            index -= STATIC.length + 1;
+            if (index < 0 || index >= table.size()) throw new IOException("Invalid header index");
+            return table.get(index);
+        }
+
+        private void add(String[] entry) {
+            int entrySize = entry[0].length() + entry[1].length() + 32;
+            if (entrySize > maxSize) {
+                table.clear();
+                size = 0;
+                return;
+            }
+            evict(entrySize);
+            table.add(0, entry);
+            size += entrySize;
+        }
+
+        private void evict(int needed) {
+            while (size + needed > maxSize && !table.isEmpty()) {
+                String[] entry = table.remove(table.size() - 1);
+                size -= entry[0].length() + entry[1].length() + 32;
+            }
+        }
+
+        private static int readInt(ChannelBuffer buf, int prefix) throws IOException {
+            int mask  = (1 << prefix) - 1;
+            int value = buf.readUnsignedByte() & mask;
+            if (value < mask) return value;
+
+            int shift = 0, b;
+            do {
+                if (shift > 21) throw new IOException("Integer overflow");
+                b = buf.readUnsignedByte();
+                value += (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private static String readString(ChannelBuffer buf) throws IOException {
+            boolean huffman = (buf.getUnsignedByte(buf.readerIndex()) & 0x80) != 0;
+            int length = readInt(buf, 7);
+            byte[] bytes = new byte[length];
+            buf.readBytes(bytes);
+            if (huffman) bytes = huffman(bytes);
+            return new String(bytes, CHARSET);
+        }
+
+        private static byte[] huffman(byte[] bytes) throws IOException {
+            byte[] decoded = new byte[bytes.length * 8 / 5];
+            int length = 0, node = 0, depth = 0;
+            boolean ones = true;
+
+            for (byte b : bytes) {
+                for (int bit = 7; bit >= 0; bit--) {
+                    int set = (b >>> bit) & 1;
+                    int next = TREE[2 * node + set];
+                    ones &= set == 1;
+                    depth++;
+                    if (next < 0) {
+                        int symbol = ~next;
+                        if (symbol == EOS) throw new IOException("EOS in Huffman string");
+                        decoded[length++] = (byte) symbol;
+                        node  = 0;
+                        depth = 0;
+                        ones  = true;
+                    } else {
+                        node = next;
+                    }
+                }
+            }
+
+            if (depth > 7 || !ones) throw new IOException("Invalid Huffman padding");
+
+            byte[] result = new byte[length];
+            System.arraycopy(decoded, 0, result, 0, length);
+            return result;
+        }
+    }
+}
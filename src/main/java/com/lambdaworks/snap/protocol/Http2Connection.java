@@ -0,0 +1,685 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.ErrorListener;
+import com.lambdaworks.snap.ErrorResponseException;
+import com.lambdaworks.snap.ExponentialBackoff;
+import com.lambdaworks.snap.ProviderToken;
+import com.lambdaworks.snap.PushNotification;
+import com.lambdaworks.snap.ReconnectPolicy;
+import com.lambdaworks.snap.metrics.Metrics;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.lambdaworks.snap.protocol.Http2Frame.*;
+
+/**
+ * Connection to the APNS HTTP/2 provider API. Each notification is sent as a
+ * request on its own stream, and notifications are written from the queue while
+ * fewer streams are open than the server allows, so many requests share the
+ * connection concurrently. Every request receives a response, so a notification's
+ * future completes when its response arrives, and requests that did not complete
+ * when the connection is lost are returned to the queue. When the server refuses
+ * a stream or is unavailable the notification is retried at most
+ * {@link #MAX_RETRIES} times, and sending pauses for a delay determined by the
+ * retry policy that grows while the server keeps declining requests.
+ *
+ * @author Will Glozer
+ */
+public class Http2Connection extends SimpleChannelUpstreamHandler implements NotificationConnection {
+    public static final int INVALID_PAYLOAD_SIZE = 7;
+    public static final int UNKNOWN              = 255;
+    public static final int MAX_RETRIES          = 5;
+
+    private static final ReconnectPolicy DEFAULT_RETRY_POLICY = new ExponentialBackoff(100, 10000, TimeUnit.MILLISECONDS);
+
+    private static final int REFUSED_STREAM = 0x7;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private NotificationQueue queue;
+    private List<ErrorListener> listeners;
+    private ObjectMapper mapper;
+    private Timer timer;
+    private Metrics metrics;
+    private String authority;
+    private volatile ProviderToken token;
+    private volatile ReconnectPolicy retryPolicy;
+
+    private volatile Channel channel;
+    private volatile boolean ready;
+    private boolean closed;
+
+    private Map<Integer, Stream> streams;
+    private Hpack.Decoder decoder;
+    private int nextStream;
+    private int maxStreams;
+    private int sendWindow;
+    private int initialWindow;
+    private int maxFrameSize;
+    private int unacked;
+    private boolean draining;
+    private boolean paused;
+    private volatile int declined;
+    private ChannelBuffer headerBlock;
+    private int headerStream;
+    private boolean headerEndStream;
+
+    /**
+     * Create a new connection.
+     *
+     * @param queue     Queue of notifications to send.
+     * @param listeners Error response listeners.
+     * @param mapper    Object mapper for payload.
+     * @param timer     Timer used to resume sending after a retry delay.
+     * @param metrics   Metrics.
+     * @param authority Value of the :authority pseudo-header.
+     */
+    public Http2Connection(NotificationQueue queue, List<ErrorListener> listeners, ObjectMapper mapper,
+                           Timer timer, Metrics metrics, String authority) {
+        this.queue       = queue;
+        this.listeners   = listeners;
+        this.mapper      = mapper;
+        this.timer       = timer;
+        this.metrics     = metrics;
+        this.authority   = authority;
+        this.retryPolicy = DEFAULT_RETRY_POLICY;
+        this.streams     = new HashMap<Integer, Stream>();
+    }
+
+    /**
+     * Offer "h2" via TLS application layer protocol negotiation when supported by
+     * the JVM, as required by the provider API.
+     *
+     * @param engine    SSL engine.
+     */
+    public static void enableAlpn(SSLEngine engine) {
+        try {
+            SSLParameters params = engine.getSSLParameters();
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            method.invoke(params, (Object) new String[] { "h2" });
+            engine.setSSLParameters(params);
+        } catch (NoSuchMethodException e) {
+            LoggerFactory.getLogger(Http2Connection.class).warn("ALPN is not supported by this JVM");
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to enable ALPN", e);
+        }
+    }
+
+    /**
+     * Authenticate requests with a provider token rather than the TLS client
+     * certificate.
+     *
+     * @param token Provider token, or null to authenticate with the certificate.
+     */
+    public void setProviderToken(ProviderToken token) {
+        this.token = token;
+    }
+
+    /**
+     * Set the policy determining how long sending pauses after the server refuses
+     * a stream or is unavailable, given the number of consecutive such responses.
+     *
+     * @param policy    Retry policy.
+     */
+    public void setRetryPolicy(ReconnectPolicy policy) {
+        this.retryPolicy = policy;
+    }
+
+    /**
+     * Check whether this connection is currently connected and has received the
+     * server's settings.
+     *
+     * @return true if connected.
+     */
+    @Override
+    public boolean isConnected() {
+        Channel channel = this.channel;
+        return ready && channel != null && channel.isConnected();
+    }
+
+    /**
+     * Check whether this connection is connected and can accept writes without
+     * exceeding the channel's write buffer high water mark.
+     *
+     * @return true if writable.
+     */
+    @Override
+    public boolean isWritable() {
+        Channel channel = this.channel;
+        return isConnected() && channel.isWritable();
+    }
+
+    /**
+     * Wait until this connection has connected and received the server's settings.
+     *
+     * @param timeout   Maximum time to wait.
+     * @param unit      Unit of time for the timeout.
+     *
+     * @return true if connected.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Override
+    public synchronized boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (!isConnected() && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return isConnected();
+    }
+
+    /**
+     * Get the number of requests awaiting a response.
+     *
+     * @return The number of open streams.
+     */
+    public synchronized int streams() {
+        return streams.size();
+    }
+
+    /**
+     * Close the connection.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed && channel != null) {
+            ConnectionWatchdog watchdog = channel.getPipeline().get(ConnectionWatchdog.class);
+            if (watchdog != null) watchdog.setReconnect(false);
+            closed = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * Queue a notification, applying the queue's overflow policy, and send queued
+     * notifications if connected.
+     *
+     * @param notification  Notification.
+     */
+    @Override
+    public void send(PushNotification notification) {
+        try {
+            queue.put(notification);
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted sending notification id {}", notification.id);
+            notification.future().setFailure(e);
+        }
+    }
+
+    /**
+     * Queue a notification without blocking, and send queued notifications if
+     * connected.
+     *
+     * @param notification  Notification.
+     *
+     * @return true if the notification was queued.
+     */
+    @Override
+    public boolean offer(PushNotification notification) {
+        if (!queue.offer(notification)) return false;
+        drain();
+        return true;
+    }
+
+    /**
+     * Send queued notifications while the channel is writable, the server allows
+     * more concurrent streams, and the flow control window has room for their
+     * payload, unless sending is paused after the server declined a request.
+     * Requests are encoded into a single buffer and written at once.
+     */
+    public void drain() {
+        Channel channel = this.channel;
+        if (channel == null || !ready) return;
+
+        synchronized (this) {
+            if (!ready || draining || paused) return;
+
+            ChannelBuffer buf = null;
+            PushNotification n;
+            while (channel.isWritable() && streams.size() < maxStreams && (n = queue.poll()) != null) {
+                long start = System.nanoTime();
+                ChannelBuffer body;
+                try {
+                    body = n.encodeBody(mapper, channel.getConfig().getBufferFactory());
+                } catch (IOException e) {
+                    logger.error("Failed to encode notification id {}", n.id, e);
+                    n.future().setFailure(e);
+                    continue;
+                }
+
+                int length = body.readableBytes();
+                if (length > maxFrameSize) {
+                    n.future().setFailure(new IOException("Payload of notification id " + n.id + " too large"));
+                    continue;
+                }
+                if (length > sendWindow || length > initialWindow) {
+                    queue.requeue(n);
+                    break;
+                }
+
+                if (buf == null) buf = ChannelBuffers.dynamicBuffer(4096, channel.getConfig().getBufferFactory());
+                int index = buf.writerIndex();
+                int stream = nextStream;
+                ProviderToken.Issued issued = token != null ? token.current() : null;
+                writeRequest(buf, stream, n, issued, body);
+
+                metrics.encodeTime.record(System.nanoTime() - start);
+                metrics.bytes.add(buf.writerIndex() - index);
+
+                streams.put(stream, new Stream(n, issued, start));
+                sendWindow -= length;
+                nextStream += 2;
+                if (nextStream < 0) {
+                    draining = true;
+                    break;
+                }
+            }
+
+            if (buf != null) channel.write(buf);
+        }
+    }
+
+    @Override
+    public synchronized void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        final Channel channel = ctx.getChannel();
+        this.channel = channel;
+
+        decoder       = new Hpack.Decoder();
+        nextStream    = 1;
+        maxStreams    = Integer.MAX_VALUE;
+        sendWindow    = DEFAULT_WINDOW_SIZE;
+        initialWindow = DEFAULT_WINDOW_SIZE;
+        maxFrameSize  = DEFAULT_MAX_FRAME_SIZE;
+        unacked       = 0;
+        draining      = false;
+        headerBlock   = null;
+
+        SslHandler ssl = ctx.getPipeline().get(SslHandler.class);
+        if (ssl != null) {
+            Handshake.start(ssl, metrics).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) preface(channel);
+                }
+            });
+        } else {
+            preface(channel);
+        }
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        drain();
+        ctx.sendUpstream(e);
+    }
+
+    @Override
+    public synchronized void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ready = false;
+        List<Integer> ids = new ArrayList<Integer>(streams.keySet());
+        Collections.sort(ids, Collections.reverseOrder());
+        for (Integer id : ids) {
+            queue.requeue(streams.get(id).notification);
+        }
+        streams.clear();
+        if (closed) channel = null;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Http2Frame frame = (Http2Frame) e.getMessage();
+        List<Stream> completed = new ArrayList<Stream>(1);
+
+        synchronized (this) {
+            if (headerBlock != null && frame.type != CONTINUATION) {
+                throw new IOException("Expected CONTINUATION frame");
+            }
+
+            switch (frame.type) {
+                case DATA:          data(frame, completed);         break;
+                case HEADERS:       headers(frame, completed);      break;
+                case CONTINUATION:  continuation(frame, completed); break;
+                case RST_STREAM:    reset(frame, completed);        break;
+                case SETTINGS:      settings(frame);                break;
+                case PING:          ping(frame);                    break;
+                case GOAWAY:        goaway(frame);                  break;
+                case WINDOW_UPDATE: windowUpdate(frame);            break;
+                case PUSH_PROMISE:  throw new IOException("Unexpected PUSH_PROMISE frame");
+            }
+
+            if (draining && streams.isEmpty()) ctx.getChannel().close();
+        }
+
+        for (Stream stream : completed) {
+            complete(stream);
+        }
+        drain();
+    }
+
+    private void preface(Channel channel) {
+        ChannelBuffer buf = ChannelBuffers.buffer(PREFACE.length + HEADER_LENGTH + 6);
+        buf.writeBytes(PREFACE);
+        writeHeader(buf, 6, SETTINGS, 0, 0);
+        buf.writeShort(SETTINGS_ENABLE_PUSH);
+        buf.writeInt(0);
+        channel.write(buf);
+    }
+
+    private void writeRequest(ChannelBuffer buf, int stream, PushNotification n, ProviderToken.Issued issued, ChannelBuffer body) {
+        int index = buf.writerIndex();
+        writeHeader(buf, 0, HEADERS, END_HEADERS, stream);
+        Hpack.encode(buf, ":method", "POST");
+        Hpack.encode(buf, ":scheme", "https");
+        Hpack.encode(buf, ":authority", authority);
+        if (issued != null) issued.encodeHeader(buf);
+        n.encodeHeaders(buf);
+        buf.setMedium(index, buf.writerIndex() - index - HEADER_LENGTH);
+
+        int length = body.readableBytes();
+        writeHeader(buf, length, DATA, END_STREAM, stream);
+        buf.writeBytes(body, body.readerIndex(), length);
+    }
+
+    private void data(Http2Frame frame, List<Stream> completed) {
+        int length = frame.payload.readableBytes();
+        unacked += length;
+        if (unacked >= DEFAULT_WINDOW_SIZE / 2) {
+            ChannelBuffer buf = ChannelBuffers.buffer(HEADER_LENGTH + 4);
+            writeHeader(buf, 4, WINDOW_UPDATE, 0, 0);
+            buf.writeInt(unacked);
+            channel.write(buf);
+            unacked = 0;
+        }
+
+        Stream stream = streams.get(frame.stream);
+        if (stream == null) return;
+        ChannelBuffer data = unpad(frame);
+        if (stream.body == null) stream.body = ChannelBuffers.dynamicBuffer(data.readableBytes());
+        stream.body.writeBytes(data);
+        if (frame.hasFlag(END_STREAM)) completed.add(streams.remove(frame.stream));
+    }
+
+    private void headers(Http2Frame frame, List<Stream> completed) throws IOException {
+        ChannelBuffer block = unpad(frame);
+        if (frame.hasFlag(PRIORITY)) block.skipBytes(5);
+
+        if (frame.hasFlag(END_HEADERS)) {
+            headers(frame.stream, block, frame.hasFlag(END_STREAM), completed);
+        } else {
+            headerBlock     = ChannelBuffers.dynamicBuffer();
+            headerStream    = frame.stream;
+            headerEndStream = frame.hasFlag(END_STREAM);
+            headerBlock.writeBytes(block);
+        }
+    }
+
+    private void continuation(Http2Frame frame, List<Stream> completed) throws IOException {
+        if (headerBlock == null || frame.stream != headerStream) throw new IOException("Unexpected CONTINUATION frame");
+        headerBlock.writeBytes(frame.payload);
+        if (frame.hasFlag(END_HEADERS)) {
+            ChannelBuffer block = headerBlock;
+            headerBlock = null;
+            headers(headerStream, block, headerEndStream, completed);
+        }
+    }
+
+    private void headers(int id, ChannelBuffer block, boolean end, List<Stream> completed) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        decoder.decode(block, headers);
+
+        Stream stream = streams.get(id);
+        if (stream == null) return;
+
+        String status = headers.get(":status");
+        if (status != null) {
+            try {
+                stream.status = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status " + status);
+            }
+        }
+        if (end) completed.add(streams.remove(id));
+    }
+
+    private void reset(Http2Frame frame, List<Stream> completed) {
+        Stream stream = streams.remove(frame.stream);
+        if (stream == null) return;
+        stream.reset = frame.payload.readInt();
+        completed.add(stream);
+    }
+
+    private void settings(Http2Frame frame) {
+        if (frame.hasFlag(ACK)) return;
+
+        ChannelBuffer payload = frame.payload;
+        while (payload.readableBytes() >= 6) {
+            int id    = payload.readUnsignedShort();
+            int value = payload.readInt();
+            switch (id) {
+                case SETTINGS_MAX_CONCURRENT_STREAMS: maxStreams    = value; break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:    initialWindow = value; break;
+                case SETTINGS_MAX_FRAME_SIZE:         maxFrameSize  = value; break;
+            }
+        }
+
+        ChannelBuffer buf = ChannelBuffers.buffer(HEADER_LENGTH);
+        writeHeader(buf, 0, SETTINGS, ACK, 0);
+        channel.write(buf);
+
+        if (!ready) {
+            ready = true;
+            notifyAll();
+            ConnectionWatchdog watchdog = channel.getPipeline().get(ConnectionWatchdog.class);
+            if (watchdog != null) watchdog.ready();
+        }
+    }
+
+    private void ping(Http2Frame frame) {
+        if (frame.hasFlag(ACK)) return;
+        ChannelBuffer buf = ChannelBuffers.buffer(HEADER_LENGTH + 8);
+        writeHeader(buf, 8, PING, ACK, 0);
+        buf.writeBytes(frame.payload, 0, 8);
+        channel.write(buf);
+    }
+
+    private void goaway(Http2Frame frame) {
+        int last  = frame.payload.readInt() & 0x7FFFFFFF;
+        int error = frame.payload.readInt();
+        logger.info("Received GOAWAY with last stream {}, error code {}", last, error);
+
+        draining = true;
+        List<Integer> ids = new ArrayList<Integer>(streams.keySet());
+        Collections.sort(ids, Collections.reverseOrder());
+        for (Integer id : ids) {
+            if (id > last) queue.requeue(streams.remove(id).notification);
+        }
+    }
+
+    private void windowUpdate(Http2Frame frame) {
+        int increment = frame.payload.readInt() & 0x7FFFFFFF;
+        if (frame.stream == 0) sendWindow += increment;
+    }
+
+    private static ChannelBuffer unpad(Http2Frame frame) {
+        ChannelBuffer payload = frame.payload;
+        if (!frame.hasFlag(PADDED)) return payload;
+        int padding = payload.readUnsignedByte();
+        return payload.readSlice(payload.readableBytes() - padding);
+    }
+
+    /**
+     * Complete the future of a notification whose response has been received,
+     * reporting rejected notifications to the error listeners. Notifications on
+     * streams refused by the server or rejected because the server is unavailable
+     * are returned to the queue until retried {@link #MAX_RETRIES} times, and
+     * sending pauses before they are resent. Notifications rejected because their
+     * provider token expired are likewise returned to the queue, and the first
+     * rejection of each token replaces it on the timer thread, since signing is too
+     * slow for the I/O thread.
+     *
+     * @param stream    Completed stream.
+     */
+    private void complete(Stream stream) {
+        PushNotification n = stream.notification;
+
+        if (stream.reset >= 0) {
+            if (stream.reset == REFUSED_STREAM && retry(n)) return;
+            n.future().setFailure(new IOException("Stream reset with error code " + stream.reset));
+            return;
+        }
+
+        if (stream.status == 200) {
+            if (declined > 0) declined = 0;
+            metrics.sent.mark();
+            metrics.responseLatency.record(System.nanoTime() - stream.start);
+            n.future().setSuccess();
+            return;
+        }
+
+        if (stream.status == 503 && retry(n)) return;
+
+        String reason = reason(stream.body);
+        ProviderToken token = this.token;
+        if (stream.status == 403 && "ExpiredProviderToken".equals(reason) && token != null && n.retried() <= MAX_RETRIES) {
+            if (token.claim(stream.issued)) {
+                timer.newTimeout(new Reissue(token, stream.issued), 0, TimeUnit.MILLISECONDS);
+            }
+            queue.requeue(n);
+            return;
+        }
+
+        int status = status(stream.status, reason);
+        logger.error("Error response for notification id {}, HTTP status {}, reason {}",
+                new Object[] { n.id, stream.status, reason });
+
+        metrics.error(status);
+        for (ErrorListener listener : listeners) {
+            listener.error(n.id, n.token, status);
+        }
+        n.future().setFailure(new ErrorResponseException(n.id, status, stream.status, reason));
+    }
+
+    /**
+     * Return a notification the server declined temporarily to the queue, unless
+     * it has already been retried {@link #MAX_RETRIES} times, and pause sending
+     * for the retry delay.
+     *
+     * @param n Notification.
+     *
+     * @return true if the notification will be retried.
+     */
+    private boolean retry(PushNotification n) {
+        if (n.retried() > MAX_RETRIES) return false;
+        queue.requeue(n);
+
+        synchronized (this) {
+            declined++;
+            if (paused) return true;
+            paused = true;
+        }
+
+        long delay = retryPolicy.delay(declined);
+        logger.info("Server declined notification id {}, resuming in {}ms", n.id, delay);
+        timer.newTimeout(new Resume(), delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private String reason(ChannelBuffer body) {
+        if (body == null || !body.readable()) return null;
+        try {
+            JsonNode reason = mapper.readTree(new ChannelBufferInputStream(body)).get("reason");
+            return reason != null ? reason.asText() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Map a response to the nearest status code of the binary protocol.
+     *
+     * @param status    HTTP status.
+     * @param reason    Reason from the response body.
+     *
+     * @return The status code.
+     */
+    static int status(int status, String reason) {
+        if (status == 410 || "BadDeviceToken".equals(reason) || "DeviceTokenNotForTopic".equals(reason)) {
+            return PushNotificationHandler.INVALID_TOKEN;
+        }
+        if (status == 413) return INVALID_PAYLOAD_SIZE;
+        return UNKNOWN;
+    }
+
+    /**
+     * Timer task that replaces a provider token the server rejected as expired.
+     */
+    private class Reissue implements TimerTask {
+        private ProviderToken token;
+        private ProviderToken.Issued expired;
+
+        Reissue(ProviderToken token, ProviderToken.Issued expired) {
+            this.token   = token;
+            this.expired = expired;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            try {
+                token.expired(expired);
+            } catch (GeneralSecurityException e) {
+                logger.error("Failed to sign provider token", e);
+            }
+        }
+    }
+
+    /**
+     * Timer task that resumes sending after the retry delay.
+     */
+    private class Resume implements TimerTask {
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            synchronized (Http2Connection.this) {
+                paused = false;
+            }
+            drain();
+        }
+    }
+
+    private static class Stream {
+        final PushNotification notification;
+        final ProviderToken.Issued issued;
+        final long start;
+        ChannelBuffer body;
+        int status;
+        int reset;
+
+        Stream(PushNotification notification, ProviderToken.Issued issued, long start) {
+            this.notification = notification;
+            this.issued       = issued;
+            this.start        = start;
+            this.reset        = -1;
+        }
+    }
+}
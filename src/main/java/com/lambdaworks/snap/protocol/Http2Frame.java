@@ -0,0 +1,79 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * HTTP/2 frame (RFC 7540) consisting of a type, flags, stream id and payload.
+ *
+ * @author Will Glozer
+ */
+public class Http2Frame {
+    public static final int DATA          = 0x0;
+    public static final int HEADERS       = 0x1;
+    public static final int RST_STREAM    = 0x3;
+    public static final int SETTINGS      = 0x4;
+    public static final int PUSH_PROMISE  = 0x5;
+    public static final int PING          = 0x6;
+    public static final int GOAWAY        = 0x7;
+    public static final int WINDOW_UPDATE = 0x8;
+    public static final int CONTINUATION  = 0x9;
+
+    public static final int END_STREAM    = 0x1;
+    public static final int ACK           = 0x1;
+    public static final int END_HEADERS   = 0x4;
+    public static final int PADDED        = 0x8;
+    public static final int PRIORITY      = 0x20;
+
+    public static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+    public static final int SETTINGS_ENABLE_PUSH            = 0x2;
+    public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    public static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+    public static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+
+    /** Length of the frame header. */
+    public static final int HEADER_LENGTH = 9;
+    /** Maximum frame payload length unless the peer allows larger frames. */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    /** Initial flow control window of the connection and each stream. */
+    public static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    /** Connection preface sent by the client before its first frame. */
+    public static final byte[] PREFACE = {
+        'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+        '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+    };
+
+    public final int type;
+    public final int flags;
+    public final int stream;
+    public final ChannelBuffer payload;
+
+    public Http2Frame(int type, int flags, int stream, ChannelBuffer payload) {
+        this.type    = type;
+        this.flags   = flags;
+        this.stream  = stream;
+        this.payload = payload;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Write a frame header.
+     *
+     * @param buf       Buffer.
+     * @param length    Length of the payload that follows.
+     * @param type      Frame type.
+     * @param flags     Frame flags.
+     * @param stream    Stream id.
+     */
+    public static void writeHeader(ChannelBuffer buf, int length, int type, int flags, int stream) {
+        buf.writeMedium(length);
+        buf.writeByte(type);
+        buf.writeByte(flags);
+        buf.writeInt(stream & 0x7FFFFFFF);
+    }
+}
@@ -0,0 +1,59 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decoder of {@link Http2Frame}s. A decoder for the server side of a connection
+ * first verifies the client's connection preface.
+ *
+ * @author Will Glozer
+ */
+public class Http2FrameDecoder extends FrameDecoder {
+    private boolean preface;
+    private int maxFrameSize;
+
+    /**
+     * Create a new decoder.
+     *
+     * @param server        Whether to expect the client connection preface.
+     * @param maxFrameSize  Maximum accepted frame payload length.
+     */
+    public Http2FrameDecoder(boolean server, int maxFrameSize) {
+        this.preface      = server;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (preface) {
+            if (buffer.readableBytes() < Http2Frame.PREFACE.length) return null;
+            byte[] bytes = new byte[Http2Frame.PREFACE.length];
+            buffer.readBytes(bytes);
+            if (!Arrays.equals(bytes, Http2Frame.PREFACE)) throw new IOException("Invalid connection preface");
+            preface = false;
+        }
+
+        if (buffer.readableBytes() < Http2Frame.HEADER_LENGTH) return null;
+
+        int start  = buffer.readerIndex();
+        int length = buffer.getUnsignedMedium(start);
+        if (length > maxFrameSize) throw new TooLongFrameException("Frame length " + length);
+        if (buffer.readableBytes() < Http2Frame.HEADER_LENGTH + length) return null;
+
+        int type   = buffer.getUnsignedByte(start + 3);
+        int flags  = buffer.getUnsignedByte(start + 4);
+        int stream = buffer.getInt(start + 5) & 0x7FFFFFFF;
+        buffer.skipBytes(Http2Frame.HEADER_LENGTH);
+
+        return new Http2Frame(type, flags, stream, buffer.readBytes(length));
+    }
+}
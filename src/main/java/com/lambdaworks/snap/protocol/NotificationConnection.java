@@ -0,0 +1,64 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.lambdaworks.snap.PushNotification;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection that sends notifications from a queue shared by all connections of
+ * a client, to either the binary gateway or the HTTP/2 provider API.
+ *
+ * @author Will Glozer
+ */
+public interface NotificationConnection {
+    /**
+     * Check whether this connection is connected and ready to send.
+     *
+     * @return true if connected.
+     */
+    boolean isConnected();
+
+    /**
+     * Check whether this connection is connected and can accept writes without
+     * exceeding the channel's write buffer high water mark.
+     *
+     * @return true if writable.
+     */
+    boolean isWritable();
+
+    /**
+     * Wait until this connection is connected and ready to send.
+     *
+     * @param timeout   Maximum time to wait.
+     * @param unit      Unit of time for the timeout.
+     *
+     * @return true if connected.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Queue a notification, applying the queue's overflow policy, and send queued
+     * notifications if connected.
+     *
+     * @param notification  Notification.
+     */
+    void send(PushNotification notification);
+
+    /**
+     * Queue a notification without blocking, and send queued notifications if
+     * connected.
+     *
+     * @param notification  Notification.
+     *
+     * @return true if the notification was queued.
+     */
+    boolean offer(PushNotification notification);
+
+    /**
+     * Close the connection.
+     */
+    void close();
+}
@@ -0,0 +1,678 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.lambdaworks.snap.Lane;
+import com.lambdaworks.snap.OverflowPolicy;
+import com.lambdaworks.snap.PushNotification;
+import com.lambdaworks.snap.metrics.LaneMetrics;
+import com.lambdaworks.snap.metrics.Metrics;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of notifications waiting to be written to the gateway, divided into one
+ * FIFO queue per {@link Lane}. Each lane holds at most limit notifications added
+ * via {@link #put put} or {@link #offer offer}, and applies its own
+ * {@link OverflowPolicy} when full. Notifications returned to the queue for
+ * retransmission are placed at the head of their lane and are not subject to the
+ * limit. The futures of discarded notifications fail with a
+ * {@link CancellationException}.
+ * <p>
+ * {@link #poll Poll} selects among non-empty lanes by smooth weighted round-robin,
+ * so a lane with weight w receives w of every total weight of notifications while
+ * the others are backlogged, interleaved rather than in bursts, and no lane with
+ * waiting notifications is starved.
+ * <p>
+ * Notifications whose expiry has passed are discarded rather than returned by
+ * poll, including notifications requeued for retransmission, and their futures
+ * fail with a CancellationException. Each lane tracks the earliest expiry it
+ * holds, so the periodic {@link #sweep sweep} run once the queue is
+ * {@link #start started} only scans lanes that hold an expired notification,
+ * and examines at most {@link #SWEEP_LIMIT} notifications of a lane per sweep,
+ * resuming where the previous sweep stopped. Lanes may instead be ordered by
+ * expiry, in which case each lane is a heap and notifications nearest their
+ * expiry are sent first.
+ *
+ * @author Will Glozer
+ */
+public class NotificationQueue implements TimerTask {
+    /** Interval between sweeps of expired notifications, in milliseconds. */
+    public static final long SWEEP_INTERVAL = 1000;
+
+    /** Maximum number of notifications of a lane examined by one sweep. */
+    public static final int SWEEP_LIMIT = 4096;
+
+    /** Interval between sweeps while a lane is partially swept, in milliseconds. */
+    private static final long RESWEEP_INTERVAL = 100;
+
+    private final ReentrantLock lock;
+    private final LaneQueue[] lanes;
+    private int size;
+    private Timer timer;
+    private Timeout timeout;
+
+    /**
+     * Create a new queue whose lane metrics are not published.
+     */
+    public NotificationQueue() {
+        this(null);
+    }
+
+    /**
+     * Create a new queue that records the lane metrics of a client.
+     *
+     * @param metrics   Client metrics.
+     */
+    public NotificationQueue(Metrics metrics) {
+        this.lock  = new ReentrantLock();
+        this.lanes = new LaneQueue[Lane.values().length];
+        for (Lane lane : Lane.values()) {
+            LaneMetrics m = metrics != null ? metrics.lane(lane) : new LaneMetrics();
+            lanes[lane.ordinal()] = new LaneQueue(lane.weight, lock.newCondition(), m);
+        }
+    }
+
+    /**
+     * Set the limit and overflow policy of every lane.
+     *
+     * @param limit     Maximum number of queued notifications per lane.
+     * @param policy    Policy applied when a lane is full.
+     */
+    public void setLimit(int limit, OverflowPolicy policy) {
+        for (Lane lane : Lane.values()) {
+            setLimit(lane, limit, policy);
+        }
+    }
+
+    /**
+     * Set the limit and overflow policy of a lane.
+     *
+     * @param lane      Lane.
+     * @param limit     Maximum number of queued notifications.
+     * @param policy    Policy applied when the lane is full.
+     */
+    public void setLimit(Lane lane, int limit, OverflowPolicy policy) {
+        if (limit < 1) throw new IllegalArgumentException("limit must be >= 1");
+        lock.lock();
+        try {
+            LaneQueue q = lanes[lane.ordinal()];
+            q.limit  = limit;
+            q.policy = policy;
+            q.notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the scheduling weight of a lane.
+     *
+     * @param lane      Lane.
+     * @param weight    Weight relative to the other lanes.
+     */
+    public void setWeight(Lane lane, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight must be >= 1");
+        lock.lock();
+        try {
+            lanes[lane.ordinal()].weight = weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Order each lane by expiry rather than FIFO. Notifications with the earliest
+     * expiry are sent first, followed by those without an expiry, and notifications
+     * with equal expiries remain in FIFO order. When a lane is full the DROP_OLDEST
+     * policy discards the notification nearest its expiry.
+     *
+     * @param ordered   true to order lanes by expiry.
+     */
+    public void setDeadlineOrdering(boolean ordered) {
+        lock.lock();
+        try {
+            for (LaneQueue q : lanes) {
+                if (q.ordered != ordered) q.reorder(ordered);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start sweeping expired notifications every {@link #SWEEP_INTERVAL}.
+     *
+     * @param timer Timer.
+     */
+    public synchronized void start(Timer timer) {
+        this.timer   = timer;
+        this.timeout = timer.newTimeout(this, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sweeping expired notifications.
+     */
+    public synchronized void stop() {
+        if (timeout != null) timeout.cancel();
+        timer = null;
+    }
+
+    @Override
+    public synchronized void run(Timeout timeout) throws Exception {
+        List<PushNotification> expired = new ArrayList<PushNotification>();
+        long delay = prune(expired) ? RESWEEP_INTERVAL : SWEEP_INTERVAL;
+        for (PushNotification e : expired) discard(e, "Notification expired");
+        if (timer != null) this.timeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a notification to the tail of its lane, applying the lane's overflow
+     * policy when the lane is full.
+     *
+     * @param n Notification.
+     *
+     * @throws IllegalStateException when the lane is full and the policy is FAIL.
+     * @throws InterruptedException when interrupted while waiting for space.
+     */
+    public void put(PushNotification n) throws InterruptedException {
+        LaneQueue q = lanes[n.lane().ordinal()];
+        PushNotification dropped = null;
+        lock.lockInterruptibly();
+        try {
+            while (q.count >= q.limit) {
+                switch (q.policy) {
+                    case BLOCK:
+                        q.notFull.await();
+                        break;
+                    case FAIL:
+                        q.metrics.overflows.increment();
+                        throw new IllegalStateException("Notification queue full");
+                    case DROP_OLDEST:
+                        q.metrics.overflows.increment();
+                        dropped = remove(q);
+                        break;
+                }
+            }
+            add(q, n, false);
+        } finally {
+            lock.unlock();
+        }
+        if (dropped != null) discard(dropped, "Notification discarded");
+    }
+
+    /**
+     * Add a notification to the tail of its lane without blocking. When the lane
+     * is full the oldest notification is discarded if the policy is DROP_OLDEST,
+     * otherwise the notification is rejected.
+     *
+     * @param n Notification.
+     *
+     * @return true if the notification was queued.
+     */
+    public boolean offer(PushNotification n) {
+        LaneQueue q = lanes[n.lane().ordinal()];
+        PushNotification dropped = null;
+        lock.lock();
+        try {
+            if (q.count >= q.limit) {
+                q.metrics.overflows.increment();
+                if (q.policy != OverflowPolicy.DROP_OLDEST) return false;
+                dropped = remove(q);
+            }
+            add(q, n, false);
+        } finally {
+            lock.unlock();
+        }
+        if (dropped != null) discard(dropped, "Notification discarded");
+        return true;
+    }
+
+    /**
+     * Return a notification to the head of its lane for retransmission,
+     * regardless of the limit.
+     *
+     * @param n Notification.
+     */
+    public void requeue(PushNotification n) {
+        lock.lock();
+        try {
+            add(lanes[n.lane().ordinal()], n, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the notification at the head of the next lane chosen by weighted
+     * round-robin among the non-empty lanes, discarding expired notifications
+     * found at the head of any lane.
+     *
+     * @return The notification or null if the queue is empty.
+     */
+    public PushNotification poll() {
+        List<PushNotification> expired = null;
+        PushNotification n = null;
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            LaneQueue selected = null;
+            int total = 0;
+            for (LaneQueue q : lanes) {
+                if (q.count > 0 && q.earliest <= now) {
+                    while (q.count > 0 && q.headDeadline() <= now) {
+                        if (expired == null) expired = new ArrayList<PushNotification>();
+                        expired.add(expire(q));
+                    }
+                }
+                if (q.count == 0) continue;
+                q.credit += q.weight;
+                total += q.weight;
+                if (selected == null || q.credit > selected.credit) selected = q;
+            }
+
+            if (selected != null) {
+                selected.credit -= total;
+                n = remove(selected);
+                selected.metrics.queueTime.record(System.nanoTime() - selected.removed);
+                if (selected.count < selected.limit) selected.notFull.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (expired != null) {
+            for (PushNotification e : expired) discard(e, "Notification expired");
+        }
+        return n;
+    }
+
+    /**
+     * Discard expired notifications from lanes whose earliest expiry has passed,
+     * examining at most {@link #SWEEP_LIMIT} notifications of each lane. A lane
+     * that is not completely examined is resumed by the next sweep.
+     *
+     * @return The number of notifications discarded.
+     */
+    public int sweep() {
+        List<PushNotification> expired = new ArrayList<PushNotification>();
+        prune(expired);
+        for (PushNotification e : expired) discard(e, "Notification expired");
+        return expired.size();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(Lane lane) {
+        lock.lock();
+        try {
+            return lanes[lane.ordinal()].count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        List<PushNotification> list = new ArrayList<PushNotification>();
+        lock.lock();
+        try {
+            for (LaneQueue q : lanes) {
+                while (q.count > 0) list.add(remove(q));
+                q.notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PushNotification n : list) discard(n, "Notification discarded");
+    }
+
+    private boolean prune(List<PushNotification> expired) {
+        boolean partial = false;
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (LaneQueue q : lanes) {
+                if (q.count == 0 || q.earliest > now) continue;
+                int before = q.count;
+                partial |= q.prune(now, SWEEP_LIMIT, expired);
+                int n = before - q.count;
+                q.metrics.expired.add(n);
+                q.metrics.queued.add(-n);
+                size -= n;
+                if (q.count < q.limit) q.notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return partial;
+    }
+
+    private void add(LaneQueue q, PushNotification n, boolean first) {
+        Date expiry = n.expiry();
+        long deadline = expiry != null && expiry.getTime() > 0 ? expiry.getTime() : Long.MAX_VALUE;
+        q.add(n, System.nanoTime(), deadline, first);
+        q.metrics.queued.increment();
+        size++;
+    }
+
+    private PushNotification remove(LaneQueue q) {
+        PushNotification n = q.removeFirst();
+        if (q.count == 0) q.credit = 0;
+        q.metrics.queued.add(-1);
+        size--;
+        return n;
+    }
+
+    private PushNotification expire(LaneQueue q) {
+        q.metrics.expired.increment();
+        PushNotification n = remove(q);
+        if (q.count < q.limit) q.notFull.signal();
+        return n;
+    }
+
+    private void discard(PushNotification n, String reason) {
+        n.future().setFailure(new CancellationException(reason));
+    }
+
+    /**
+     * Notifications in a lane along with the times they were queued and their
+     * expiry times. Notifications are held in a circular buffer in FIFO order,
+     * or in a binary heap ordered by expiry and then sequence number when the
+     * lane is ordered by expiry.
+     * <p>
+     * Sequence numbers increase from head to tail of the circular buffer, so an
+     * incremental prune records the sequence number it stopped at and resumes
+     * from there. Notifications pruned from the middle of the buffer leave a
+     * null hole that is skipped once it reaches the head. The buffer is compacted
+     * once holes outnumber the notifications, or fill a quarter of a full buffer,
+     * so the cost of compaction is proportional to the number of notifications
+     * pruned and a lane whose head is not moving does not grow past its limit.
+     */
+    private static class LaneQueue {
+        final Condition notFull;
+        final LaneMetrics metrics;
+        PushNotification[] elements;
+        long[] times;
+        long[] deadlines;
+        long[] seqs;
+        int head;
+        int count;
+        int holes;
+        int limit;
+        OverflowPolicy policy;
+        int weight;
+        int credit;
+        boolean ordered;
+        long earliest;
+        long pending;
+        long cursor;
+        long firstSeq;
+        long lastSeq;
+        long removed;
+
+        LaneQueue(int weight, Condition notFull, LaneMetrics metrics) {
+            this.notFull   = notFull;
+            this.metrics   = metrics;
+            this.elements  = new PushNotification[16];
+            this.times     = new long[16];
+            this.deadlines = new long[16];
+            this.seqs      = new long[16];
+            this.limit     = Integer.MAX_VALUE;
+            this.policy    = OverflowPolicy.BLOCK;
+            this.weight    = weight;
+            this.earliest  = Long.MAX_VALUE;
+            this.pending   = Long.MAX_VALUE;
+            this.cursor    = Long.MIN_VALUE;
+        }
+
+        void add(PushNotification n, long time, long deadline, boolean first) {
+            if (count + holes == elements.length) {
+                if (holes >= elements.length / 4) {
+                    compact();
+                } else {
+                    grow();
+                }
+            }
+            long seq = first ? --firstSeq : ++lastSeq;
+            int index;
+            if (ordered) {
+                index = count;
+            } else if (first) {
+                head  = (head - 1) & (elements.length - 1);
+                index = head;
+            } else {
+                index = (head + count + holes) & (elements.length - 1);
+            }
+            elements[index]  = n;
+            times[index]     = time;
+            deadlines[index] = deadline;
+            seqs[index]      = seq;
+            count++;
+            if (ordered) up(index);
+            if (deadline < earliest) earliest = deadline;
+            if (deadline < pending) pending = deadline;
+        }
+
+        long headDeadline() {
+            return deadlines[head];
+        }
+
+        PushNotification removeFirst() {
+            PushNotification n = elements[head];
+            removed = times[head];
+            if (ordered) {
+                count--;
+                move(count, 0);
+                elements[count] = null;
+                if (count > 0) down(0);
+            } else {
+                elements[head] = null;
+                head = (head + 1) & (elements.length - 1);
+                count--;
+                skip();
+            }
+            if (count == 0) reset();
+            return n;
+        }
+
+        /**
+         * Remove notifications that expired at or before now, examining at most
+         * limit notifications when the lane is in FIFO order. The earliest expiry
+         * is recomputed once every notification has been examined.
+         *
+         * @param now       Current time in milliseconds.
+         * @param limit     Maximum number of notifications to examine.
+         * @param expired   List to which removed notifications are added.
+         *
+         * @return true if notifications remain to be examined.
+         */
+        boolean prune(long now, int limit, List<PushNotification> expired) {
+            if (ordered) {
+                while (count > 0 && deadlines[0] <= now) expired.add(removeFirst());
+                earliest = count > 0 ? deadlines[0] : Long.MAX_VALUE;
+                return false;
+            }
+
+            if (cursor == Long.MIN_VALUE) pending = Long.MAX_VALUE;
+
+            int mask = elements.length - 1;
+            int length = count + holes;
+            int i = offset(cursor);
+            int end = Math.min(length, i + limit);
+            for (; i < end; i++) {
+                int index = (head + i) & mask;
+                if (elements[index] == null) continue;
+                if (deadlines[index] <= now) {
+                    expired.add(elements[index]);
+                    elements[index] = null;
+                    count--;
+                    holes++;
+                } else if (deadlines[index] < pending) {
+                    pending = deadlines[index];
+                }
+            }
+
+            boolean partial = i < length;
+            if (partial) {
+                cursor = seqs[(head + i) & mask];
+            } else {
+                earliest = pending;
+                cursor   = Long.MIN_VALUE;
+            }
+
+            skip();
+            if (count == 0) reset();
+            if (holes > count) compact();
+            return partial && count > 0;
+        }
+
+        /**
+         * Rebuild this lane as a heap ordered by expiry, or as a FIFO in the
+         * current order of the heap.
+         *
+         * @param ordered   true to order by expiry.
+         */
+        void reorder(boolean ordered) {
+            int n = count;
+            PushNotification[] e = new PushNotification[n];
+            long[] t = new long[n];
+            long[] d = new long[n];
+            for (int i = 0; i < n; i++) {
+                d[i] = headDeadline();
+                e[i] = removeFirst();
+                t[i] = removed;
+            }
+            this.ordered = ordered;
+            this.head    = 0;
+            for (int i = 0; i < n; i++) {
+                add(e[i], t[i], d[i], false);
+            }
+        }
+
+        /**
+         * Find the offset from the head of the first notification or hole with a
+         * sequence number of at least seq.
+         */
+        private int offset(long seq) {
+            int mask = elements.length - 1;
+            int lo = 0, hi = count + holes;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seqs[(head + mid) & mask] < seq) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Remove all holes, moving notifications towards the head.
+         */
+        private void compact() {
+            int mask = elements.length - 1;
+            int length = count + holes;
+            int kept = 0;
+            for (int i = 0; i < length; i++) {
+                int index = (head + i) & mask;
+                if (elements[index] == null) continue;
+                if (kept != i) move(index, (head + kept) & mask);
+                kept++;
+            }
+            for (int i = kept; i < length; i++) elements[(head + i) & mask] = null;
+            holes = 0;
+        }
+
+        private void skip() {
+            while (holes > 0 && elements[head] == null) {
+                head = (head + 1) & (elements.length - 1);
+                holes--;
+            }
+        }
+
+        private void reset() {
+            earliest = Long.MAX_VALUE;
+            pending  = Long.MAX_VALUE;
+            cursor   = Long.MIN_VALUE;
+        }
+
+        private void up(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(i, parent)) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void down(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= count) break;
+                if (child + 1 < count && less(child + 1, child)) child++;
+                if (!less(child, i)) break;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private boolean less(int a, int b) {
+            return deadlines[a] < deadlines[b] || (deadlines[a] == deadlines[b] && seqs[a] < seqs[b]);
+        }
+
+        private void swap(int a, int b) {
+            PushNotification e = elements[a];
+            long t = times[a], d = deadlines[a], s = seqs[a];
+            move(b, a);
+            elements[b]  = e;
+            times[b]     = t;
+            deadlines[b] = d;
+            seqs[b]      = s;
+        }
+
+        private void move(int from, int to) {
+            elements[to]  = elements[from];
+            times[to]     = times[from];
+            deadlines[to] = deadlines[from];
+            seqs[to]      = seqs[from];
+        }
+
+        private void grow() {
+            int length = elements.length;
+            PushNotification[] e = new PushNotification[length * 2];
+            long[] t = new long[length * 2];
+            long[] d = new long[length * 2];
+            long[] s = new long[length * 2];
+            int tail = length - head;
+            System.arraycopy(elements,  head, e, 0, tail);
+            System.arraycopy(elements,  0, e, tail, head);
+            System.arraycopy(times,     head, t, 0, tail);
+            System.arraycopy(times,     0, t, tail, head);
+            System.arraycopy(deadlines, head, d, 0, tail);
+            System.arraycopy(deadlines, 0, d, tail, head);
+            System.arraycopy(seqs,      head, s, 0, tail);
+            System.arraycopy(seqs,      0, s, tail, head);
+            elements  = e;
+            times     = t;
+            deadlines = d;
+            seqs      = s;
+            head      = 0;
+        }
+    }
+}
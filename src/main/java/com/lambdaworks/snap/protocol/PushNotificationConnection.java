@@ -3,31 +3,73 @@
 package com.lambdaworks.snap.protocol;
 
 import com.lambdaworks.snap.PushNotification;
+import com.lambdaworks.snap.metrics.Metrics;
 import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.ssl.SslHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Connection to the APNS notification gateway.
+ * Connection to the APNS notification gateway. Notifications are written from
+ * the queue while the channel is writable and the connection's window of sent
+ * notifications has room, so the queue absorbs backpressure when the gateway is
+ * slow or the connection is down.
  *
  * @author Will Glozer
  */
-public class PushNotificationConnection extends SimpleChannelUpstreamHandler {
+public class PushNotificationConnection extends SimpleChannelUpstreamHandler implements NotificationConnection {
     private Logger logger = LoggerFactory.getLogger(getClass());
 
-    private BlockingQueue<PushNotification> queue;
-    private Channel channel;
+    private NotificationQueue queue;
+    private SentWindow window;
+    private Metrics metrics;
+    private volatile Channel channel;
+    private volatile boolean ready;
     private boolean closed;
 
-    public PushNotificationConnection(BlockingQueue<PushNotification> queue) {
-        this.queue = queue;
+    public PushNotificationConnection(NotificationQueue queue, SentWindow window, Metrics metrics) {
+        this.queue   = queue;
+        this.window  = window;
+        this.metrics = metrics;
+
+        window.setAvailableCallback(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Check whether this connection is currently connected to the gateway and
+     * has completed the TLS handshake.
+     *
+     * @return true if connected.
+     */
+    @Override
+    public boolean isConnected() {
+        Channel channel = this.channel;
+        return ready && channel != null && channel.isConnected();
+    }
+
+    /**
+     * Check whether this connection is connected and can accept writes without
+     * exceeding the channel's write buffer high water mark.
+     *
+     * @return true if writable.
+     */
+    @Override
+    public boolean isWritable() {
+        Channel channel = this.channel;
+        return isConnected() && channel.isWritable();
     }
 
     /**
      * Close the connection.
      */
+    @Override
     public synchronized void close() {
         if (!closed && channel != null) {
             ConnectionWatchdog watchdog = channel.getPipeline().get(ConnectionWatchdog.class);
@@ -40,30 +82,111 @@ public class PushNotificationConnection extends SimpleChannelUpstreamHandler {
     @Override
     public synchronized void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         channel = ctx.getChannel();
-        for (PushNotification cmd : queue) {
-            channel.write(cmd);
+
+        SslHandler ssl = ctx.getPipeline().get(SslHandler.class);
+        if (ssl != null) {
+            Handshake.start(ssl, metrics).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        ready();
+                    }
+                }
+            });
+        } else {
+            ready();
         }
     }
 
+    /**
+     * Wait until this connection has connected to the gateway and completed the
+     * TLS handshake.
+     *
+     * @param timeout   Maximum time to wait.
+     * @param unit      Unit of time for the timeout.
+     *
+     * @return true if connected.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Override
+    public synchronized boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (!isConnected() && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return isConnected();
+    }
+
+    private void ready() {
+        synchronized (this) {
+            ready = true;
+            notifyAll();
+        }
+        ConnectionWatchdog watchdog = channel.getPipeline().get(ConnectionWatchdog.class);
+        if (watchdog != null) watchdog.ready();
+        drain();
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        drain();
+        ctx.sendUpstream(e);
+    }
+
     @Override
     public synchronized void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ready = false;
         if (closed) {
-            queue.clear();
-            queue = null;
             channel = null;
         }
     }
 
+    /**
+     * Queue a notification, applying the queue's overflow policy, and write
+     * queued notifications if connected.
+     *
+     * @param notification  Notification.
+     */
+    @Override
     public void send(PushNotification notification) {
         try {
             queue.put(notification);
-            if (channel != null) {
-                channel.write(notification);
-            }
-        } catch (Exception e) {
-            logger.error("Error sending notification", e);
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted sending notification id {}", notification.id);
+            notification.future().setFailure(e);
         }
     }
 
+    /**
+     * Queue a notification without blocking, and write queued notifications if
+     * connected.
+     *
+     * @param notification  Notification.
+     *
+     * @return true if the notification was queued.
+     */
+    @Override
+    public boolean offer(PushNotification notification) {
+        if (!queue.offer(notification)) return false;
+        drain();
+        return true;
+    }
 
+    /**
+     * Write queued notifications while the channel is connected and writable,
+     * and the window has room. Notifications are only removed from the queue
+     * when written, and failed writes are requeued.
+     */
+    public void drain() {
+        Channel channel = this.channel;
+        if (channel == null || !ready) return;
+
+        PushNotification n;
+        while (channel.isConnected() && channel.isWritable() && !window.isFull() && (n = queue.poll()) != null) {
+            channel.write(n);
+        }
+    }
 }
@@ -3,91 +3,460 @@
 package com.lambdaworks.snap.protocol;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.ErrorListener;
+import com.lambdaworks.snap.ErrorResponseException;
+import com.lambdaworks.snap.FrameFormat;
 import com.lambdaworks.snap.PushNotification;
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
+import com.lambdaworks.snap.metrics.Metrics;
+import org.jboss.netty.buffer.*;
 import org.jboss.netty.channel.*;
+import org.jboss.netty.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A netty {@link ChannelHandler} responsible for writing push notifications and
- * reading responses from the server.
+ * reading responses from the server. When batching is enabled encoded notifications
+ * are coalesced into a single buffer that is flushed when it reaches the batch size
+ * or when the batch delay expires.
  *
  * @author Will Glozer
  */
-public class PushNotificationHandler extends SimpleChannelHandler implements ChannelFutureListener {
+public class PushNotificationHandler extends SimpleChannelHandler {
+    private static final long NONE = Long.MAX_VALUE;
+
+    /** Status code sent when a notification's device token is invalid. */
+    public static final int INVALID_TOKEN = 8;
+
+    /**
+     * Status code sent when the gateway is shutting down, in which case the id is
+     * that of the last notification successfully processed.
+     */
+    public static final int SHUTDOWN = 10;
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
-    protected BlockingQueue<PushNotification> queue;
-    protected ChannelBuffer buffer;
+    protected NotificationQueue queue;
+    protected SentWindow window;
+    protected List<ErrorListener> listeners;
     protected ObjectMapper mapper;
+    protected Timer timer;
+    protected Metrics metrics;
+    protected volatile long rejected;
+    protected volatile long quietPeriod;
+    protected volatile FrameFormat format;
+
+    private final Object writeLock = new Object();
+    private volatile int batchSize;
+    private long batchDelay;
+    private ChannelHandlerContext batchCtx;
+    private ChannelBuffer batch;
+    private List<ChannelFuture> batchFutures;
+    private Timeout batchTimeout;
 
     /**
      * Initialize a new instance that handles notifications from the supplied queue.
+     * Notifications are tracked in the window once written, and returned to the
+     * queue if the write fails or the gateway discards them following an error.
      *
      * @param queue     Command queue.
+     * @param window    Window of in-flight notifications.
+     * @param listeners Error response listeners.
      * @param mapper    Object mapper for payload.
+     * @param timer     Timer used for delayed batch flushes.
+     * @param metrics   Metrics.
+     */
+    public PushNotificationHandler(NotificationQueue queue, SentWindow window, List<ErrorListener> listeners,
+                                   ObjectMapper mapper, Timer timer, Metrics metrics) {
+        this.queue     = queue;
+        this.window    = window;
+        this.listeners = listeners;
+        this.mapper    = mapper;
+        this.timer     = timer;
+        this.metrics   = metrics;
+        this.rejected  = NONE;
+        this.format    = FrameFormat.COMMAND_1;
+    }
+
+    /**
+     * Set the frame format notifications are encoded in.
+     *
+     * @param format    Frame format.
+     */
+    public void setFrameFormat(FrameFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Set the quiet period after a notification is written, at which point it is
+     * retired from the window and its future completes successfully if no error
+     * response has been received for it. With a quiet period of zero futures
+     * complete as soon as the notification is written.
+     *
+     * @param period    Quiet period.
+     * @param unit      Unit of time for the period.
+     */
+    public void setQuietPeriod(long period, TimeUnit unit) {
+        this.quietPeriod = unit.toMillis(period);
+    }
+
+    /**
+     * Enable or disable batching of notification writes. A batch is flushed when
+     * it reaches size bytes, or when delay has elapsed since the first notification
+     * was added to the batch.
+     *
+     * @param size  Batch size in bytes, or 0 to disable batching.
+     * @param delay Maximum delay before a partial batch is flushed.
+     * @param unit  Unit of time for the delay.
      */
-    public PushNotificationHandler(BlockingQueue<PushNotification> queue, ObjectMapper mapper) {
-        this.queue  = queue;
-        this.mapper = mapper;
+    public void setBatching(int size, long delay, TimeUnit unit) {
+        synchronized (writeLock) {
+            ChannelHandlerContext ctx;
+            synchronized (this) {
+                this.batchSize  = size;
+                this.batchDelay = unit.toMillis(delay);
+                ctx = batchCtx;
+            }
+            if (ctx != null) flush(ctx);
+        }
     }
 
     @Override
-    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        buffer = ChannelBuffers.dynamicBuffer(ctx.getChannel().getConfig().getBufferFactory());
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        rejected = NONE;
+        super.channelConnected(ctx, e);
     }
 
+    /**
+     * Write a notification, or add it to the current batch. Notifications are
+     * assigned their window sequence number and written downstream under a single
+     * lock so that sequence order is the order in which they reach the gateway.
+     * When the window is full the notification is returned to the queue and the
+     * write fails.
+     */
     @Override
     public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         PushNotification pn = (PushNotification) e.getMessage();
+        ChannelFuture f = e.getFuture();
 
-        Channel channel = ctx.getChannel();
-        ChannelBuffer buf = ChannelBuffers.dynamicBuffer(channel.getConfig().getBufferFactory());
-        encode(pn, buf);
+        if (batchSize > 0) {
+            synchronized (writeLock) {
+                if (batchSize > 0) {
+                    batch(ctx, pn, f);
+                    return;
+                }
+            }
+        }
 
-        ChannelFuture f = e.getFuture();
-        f.addListener(this);
-        Channels.write(ctx, f, buf);
+        long start = System.nanoTime();
+        ChannelBuffer buf;
+        try {
+            buf = pn.encode(mapper, ctx.getChannel().getConfig().getBufferFactory(), format);
+        } catch (IOException ex) {
+            logger.error("Failed to encode notification id {}", pn.id, ex);
+            pn.future().setFailure(ex);
+            f.setFailure(ex);
+            return;
+        }
+        metrics.encodeTime.record(System.nanoTime() - start);
+
+        synchronized (writeLock) {
+            long seq = window.add(pn);
+            if (seq < 0) {
+                refuse(pn, f);
+                return;
+            }
+            metrics.bytes.add(buf.readableBytes());
+            f.addListener(new WriteListener(pn, seq, start));
+            Channels.write(ctx, f, buf);
+        }
     }
 
     @Override
-    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        ChannelBuffer input = (ChannelBuffer) e.getMessage();
-        if (!input.readable()) return;
-
-        buffer.discardReadBytes();
-        buffer.writeBytes(input);
-
-        decode(ctx, buffer);
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        flush(ctx);
+        super.channelClosed(ctx, e);
     }
 
     @Override
-    public void operationComplete(ChannelFuture future) throws Exception {
-        if (future.isSuccess()) {
-            queue.poll();
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ErrorResponse) {
+            ErrorResponse response = (ErrorResponse) e.getMessage();
+            logger.error("Error response for notification id {}, status code {}", response.id, response.status);
+            error(ctx, response.id, response.status);
+        } else {
+            ctx.sendUpstream(e);
         }
     }
 
-    protected void decode(ChannelHandlerContext ctx, ChannelBuffer buffer) throws InterruptedException {
-        while (buffer.readableBytes() >= 6) {
-            if (buffer.readByte() == 8) {
-                byte status = buffer.readByte();
-                long id     = buffer.readUnsignedInt();
-                logger.error("Error response for notification id {}, status code {}", id, status);
+    /**
+     * Handle an error response. The gateway closes the connection after sending an
+     * error response and discards all notifications written after the one identified,
+     * so those are returned to the queue for retransmission while the rejected
+     * notification is discarded, its future failed, and reported to all listeners.
+     * Notifications are not necessarily written in id order, so the notifications
+     * to retransmit are those with a later write sequence. When the identified
+     * notification is no longer in the window only written notifications still in
+     * flight are retransmitted, since retired notifications were most likely
+     * accepted.
+     *
+     * @param ctx       Channel handler context.
+     * @param id        Id of rejected notification.
+     * @param status    Status code.
+     */
+    protected void error(ChannelHandlerContext ctx, long id, int status) {
+        long seq = window.find(id);
+        rejected = seq;
+        metrics.error(status);
+
+        List<PushNotification> resend;
+        if (seq >= 0) {
+            resend = window.removeAfter(seq);
+        } else {
+            resend = window.removeInFlight();
+            logger.warn("Notification id {} not in window, retransmitting {} notifications in flight", id, resend.size());
+        }
+        for (int i = resend.size() - 1; i >= 0; i--) {
+            queue.requeue(resend.get(i));
+        }
+
+        if (status != SHUTDOWN) {
+            PushNotification n = seq >= 0 ? window.remove(seq) : null;
+            byte[] token = n != null ? n.token : null;
+            for (ErrorListener l : listeners) {
+                l.error(id, token, status);
             }
+            if (n != null) n.future().setFailure(new ErrorResponseException(id, status));
         }
+
+        ctx.getChannel().close();
     }
 
-    protected void encode(PushNotification n, ChannelBuffer buf) {
+    /**
+     * Encode a notification into the buffer, leaving the buffer unchanged if
+     * encoding fails.
+     *
+     * @param n     Notification.
+     * @param buf   Buffer.
+     *
+     * @return true if the notification was encoded.
+     */
+    protected boolean encode(PushNotification n, ChannelBuffer buf) {
+        int index = buf.writerIndex();
         try {
-            n.encode(mapper, buf);
+            n.encode(mapper, buf, format);
+            return true;
         } catch (IOException e) {
             logger.error("Failed to encode notification id {}", n.id, e);
+            buf.writerIndex(index);
+            return false;
+        }
+    }
+
+    /**
+     * Return a notification the window has no room for to the queue, and fail its
+     * write. The connection resumes writing once the window has room.
+     *
+     * @param pn        Notification.
+     * @param future    Write future of the notification.
+     */
+    protected void refuse(PushNotification pn, ChannelFuture future) {
+        queue.requeue(pn);
+        future.setFailure(new IOException("Window full, notification id " + pn.id + " requeued"));
+    }
+
+    /**
+     * Add a notification to the current batch, flushing the batch if it is full and
+     * otherwise scheduling a delayed flush. Called while holding the write lock.
+     *
+     * @param ctx       Channel handler context.
+     * @param pn        Notification.
+     * @param future    Write future of the notification.
+     */
+    protected void batch(ChannelHandlerContext ctx, PushNotification pn, ChannelFuture future) {
+        boolean full;
+
+        synchronized (this) {
+            if (batch == null) {
+                ChannelBufferFactory factory = ctx.getChannel().getConfig().getBufferFactory();
+                batchCtx     = ctx;
+                batch        = ChannelBuffers.dynamicBuffer(batchSize + 512, factory);
+                batchFutures = new ArrayList<ChannelFuture>();
+            }
+
+            long seq = window.add(pn);
+            if (seq < 0) {
+                refuse(pn, future);
+                return;
+            }
+
+            long start = System.nanoTime();
+            int index  = batch.writerIndex();
+            if (!encode(pn, batch)) {
+                window.remove(seq);
+                IOException ex = new IOException("Failed to encode notification id " + pn.id);
+                pn.future().setFailure(ex);
+                future.setFailure(ex);
+                return;
+            }
+            metrics.encodeTime.record(System.nanoTime() - start);
+            metrics.bytes.add(batch.writerIndex() - index);
+
+            future.addListener(new WriteListener(pn, seq, start));
+            batchFutures.add(future);
+
+            full = batch.readableBytes() >= batchSize;
+            if (!full && batchTimeout == null) {
+                batchTimeout = timer.newTimeout(new FlushTask(ctx), batchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full) flush(ctx);
+    }
+
+    /**
+     * Write the current batch, if any, completing the write futures of all notifications
+     * in the batch when the write completes.
+     *
+     * @param ctx   Channel handler context.
+     */
+    protected void flush(ChannelHandlerContext ctx) {
+        synchronized (writeLock) {
+            ChannelBuffer buf;
+            List<ChannelFuture> futures;
+
+            synchronized (this) {
+                if (batch == null || batchCtx != ctx) return;
+                if (batchTimeout != null) batchTimeout.cancel();
+                buf     = batch;
+                futures = batchFutures;
+                batch        = null;
+                batchCtx     = null;
+                batchFutures = null;
+                batchTimeout = null;
+            }
+
+            ChannelFuture f = Channels.future(ctx.getChannel());
+            f.addListener(new BatchListener(futures));
+            Channels.write(ctx, f, buf);
+        }
+    }
+
+    /**
+     * Listener that returns a notification to the queue when its write fails, or
+     * when it completes after the gateway has rejected an earlier notification.
+     * Otherwise the notification is marked written and its future completed,
+     * immediately, in which case it is retired from the window, or after the
+     * quiet period.
+     */
+    protected class WriteListener implements ChannelFutureListener {
+        private PushNotification notification;
+        private long seq;
+        private long start;
+
+        public WriteListener(PushNotification notification, long seq, long start) {
+            this.notification = notification;
+            this.seq          = seq;
+            this.start        = start;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                metrics.sent.mark();
+                metrics.writeLatency.record(System.nanoTime() - start);
+
+                long quiet = quietPeriod;
+                Timeout timeout = null;
+                if (quiet > 0) {
+                    timeout = timer.newTimeout(new QuietTask(notification, seq), quiet, TimeUnit.MILLISECONDS);
+                }
+
+                if (window.written(seq, timeout)) {
+                    if (timeout == null) {
+                        window.retire(seq);
+                        notification.future().setSuccess();
+                    }
+                    return;
+                }
+
+                if (timeout != null) timeout.cancel();
+                if (seq > rejected) {
+                    queue.requeue(notification);
+                } else {
+                    notification.future().setSuccess();
+                }
+            } else {
+                window.remove(seq);
+                queue.requeue(notification);
+            }
+        }
+    }
+
+    /**
+     * Timer task that retires a notification from the window at the end of its
+     * quiet period and completes its future.
+     */
+    protected class QuietTask implements TimerTask {
+        private PushNotification notification;
+        private long seq;
+
+        public QuietTask(PushNotification notification, long seq) {
+            this.notification = notification;
+            this.seq          = seq;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            window.remove(seq);
+            notification.future().setSuccess();
+        }
+    }
+
+    /**
+     * Listener that completes the write futures of all notifications in a batch.
+     * Failed futures are completed last to first, so that notifications requeued
+     * at the head of the queue keep their original order.
+     */
+    protected static class BatchListener implements ChannelFutureListener {
+        private List<ChannelFuture> futures;
+
+        public BatchListener(List<ChannelFuture> futures) {
+            this.futures = futures;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                for (ChannelFuture f : futures) {
+                    f.setSuccess();
+                }
+            } else {
+                for (int i = futures.size() - 1; i >= 0; i--) {
+                    futures.get(i).setFailure(future.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * Timer task that flushes a partial batch.
+     */
+    protected class FlushTask implements TimerTask {
+        private ChannelHandlerContext ctx;
+
+        public FlushTask(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            flush(ctx);
         }
     }
 }
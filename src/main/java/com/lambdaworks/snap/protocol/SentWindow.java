@@ -0,0 +1,431 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.protocol;
+
+import com.lambdaworks.snap.PushNotification;
+import org.jboss.netty.util.Timeout;
+
+import java.util.*;
+
+/**
+ * A bounded window of notifications written to a single gateway connection,
+ * indexed by a write sequence number assigned when each notification is added.
+ * The gateway discards notifications in the order they were written, which may
+ * differ from the order of their ids, so notifications sent after a rejected one
+ * are identified by sequence rather than id.
+ * <p>
+ * The window is a ring buffer where each sequence number maps directly to a slot,
+ * so retirement is O(1), along with an open-addressing index from id to the
+ * sequence number most recently added with that id, so an error response is
+ * resolved to its notification in O(1). A notification is in flight from when it is added until
+ * it is {@link #retire retired} or removed, and a slot is only reused once the
+ * notification it holds is no longer in flight; when the next slot is in flight
+ * the window is {@link #isFull full} and {@link #add add} refuses new
+ * notifications. Retired notifications remain in the window, so they can still
+ * be retransmitted following an error response, until their slot is reused. A
+ * written notification may have a pending timeout, which is cancelled if the
+ * notification is removed from the window.
+ *
+ * @author Will Glozer
+ */
+public class SentWindow {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long EMPTY = -1;
+
+    private PushNotification[] slots;
+    private long[] sequences;
+    private boolean[] written;
+    private boolean[] retired;
+    private Timeout[] timeouts;
+    private int mask;
+    private long[] ids;
+    private long[] idSequences;
+    private int idMask;
+    private long next;
+    private int size;
+    private int inFlight;
+    private boolean blocked;
+    private volatile Runnable available;
+
+    public SentWindow() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new window that holds at most the specified number of notifications,
+     * rounded up to the next power of two.
+     *
+     * @param capacity  Window capacity.
+     */
+    public SentWindow(int capacity) {
+        allocate(round(capacity));
+    }
+
+    /**
+     * Change the capacity of the window, rounded up to the next power of two.
+     * Retired notifications that no longer fit are evicted.
+     *
+     * @param capacity  Window capacity.
+     *
+     * @throws IllegalStateException if notifications in flight would not fit.
+     */
+    public void setCapacity(int capacity) {
+        int n = round(capacity);
+        boolean resume;
+        synchronized (this) {
+            long first = Math.max(0, next - slots.length);
+            long keep  = Math.max(first, next - n);
+            for (long s = first; s < keep; s++) {
+                int slot = slot(s);
+                if (slots[slot] != null && sequences[slot] == s && !retired[slot]) {
+                    throw new IllegalStateException("Notifications in flight exceed capacity " + n);
+                }
+            }
+
+            PushNotification[] oldSlots = slots;
+            boolean[] oldWritten = written;
+            boolean[] oldRetired = retired;
+            Timeout[] oldTimeouts = timeouts;
+            int oldMask = mask;
+
+            allocate(n);
+            for (long s = first; s < next; s++) {
+                int from = (int) s & oldMask;
+                if (oldSlots[from] == null) continue;
+                if (s < keep) {
+                    if (oldTimeouts[from] != null) oldTimeouts[from].cancel();
+                    size--;
+                    continue;
+                }
+                int slot = slot(s);
+                slots[slot]     = oldSlots[from];
+                sequences[slot] = s;
+                written[slot]   = oldWritten[from];
+                retired[slot]   = oldRetired[from];
+                timeouts[slot]  = oldTimeouts[from];
+                index(id(slots[slot]), s);
+            }
+            resume = resume();
+        }
+        if (resume) resumed();
+    }
+
+    /**
+     * Set a callback run when the window is no longer full after {@link #isFull}
+     * reported it full.
+     *
+     * @param available Callback.
+     */
+    public void setAvailableCallback(Runnable available) {
+        this.available = available;
+    }
+
+    /**
+     * Add a notification to the window, assigning it the next write sequence
+     * number. A retired notification in the slot is evicted, while a notification
+     * still in flight is never evicted and the new notification is refused.
+     *
+     * @param n Notification.
+     *
+     * @return The sequence number, or -1 if the window is full.
+     */
+    public synchronized long add(PushNotification n) {
+        int slot = slot(next);
+        if (slots[slot] != null) {
+            if (!retired[slot]) {
+                blocked = true;
+                return -1;
+            }
+            release(slot);
+        }
+        long seq = next++;
+        slots[slot]     = n;
+        sequences[slot] = seq;
+        written[slot]   = false;
+        retired[slot]   = false;
+        timeouts[slot]  = null;
+        size++;
+        inFlight++;
+        index(id(n), seq);
+        return seq;
+    }
+
+    /**
+     * Check whether the next notification would be refused because its slot holds
+     * a notification still in flight. Once full, or after refusing a notification,
+     * the {@link #setAvailableCallback available callback} is run when the slot is
+     * released.
+     *
+     * @return true if the window is full.
+     */
+    public synchronized boolean isFull() {
+        int slot = slot(next);
+        boolean full = slots[slot] != null && !retired[slot];
+        if (full) blocked = true;
+        return full;
+    }
+
+    /**
+     * Get the notification with the specified sequence number.
+     *
+     * @param seq   Write sequence number.
+     *
+     * @return The notification or null if not in the window.
+     */
+    public synchronized PushNotification get(long seq) {
+        int slot = slot(seq);
+        return slots[slot] != null && sequences[slot] == seq ? slots[slot] : null;
+    }
+
+    /**
+     * Find the notification most recently added with the specified id.
+     *
+     * @param id    Unsigned 32-bit notification id.
+     *
+     * @return The sequence number of the notification, or -1 if not in the window.
+     */
+    public synchronized long find(long id) {
+        id &= 0xFFFFFFFFL;
+        for (int i = hash(id); ids[i] != EMPTY; i = (i + 1) & idMask) {
+            if (ids[i] == id) return idSequences[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Mark the notification with the specified sequence number as written to the
+     * gateway.
+     *
+     * @param seq   Write sequence number.
+     *
+     * @return true if the notification is in the window.
+     */
+    public boolean written(long seq) {
+        return written(seq, null);
+    }
+
+    /**
+     * Mark the notification with the specified sequence number as written to the
+     * gateway, and associate a timeout with it.
+     *
+     * @param seq       Write sequence number.
+     * @param timeout   Timeout or null.
+     *
+     * @return true if the notification is in the window.
+     */
+    public synchronized boolean written(long seq, Timeout timeout) {
+        int slot = slot(seq);
+        if (slots[slot] == null || sequences[slot] != seq) return false;
+        written[slot]  = true;
+        timeouts[slot] = timeout;
+        return true;
+    }
+
+    /**
+     * Retire the notification with the specified sequence number, which is no
+     * longer in flight but remains in the window for retransmission.
+     *
+     * @param seq   Write sequence number.
+     */
+    public void retire(long seq) {
+        boolean resume;
+        synchronized (this) {
+            int slot = slot(seq);
+            if (slots[slot] == null || sequences[slot] != seq || retired[slot]) return;
+            retired[slot] = true;
+            inFlight--;
+            resume = resume();
+        }
+        if (resume) resumed();
+    }
+
+    /**
+     * Remove the notification with the specified sequence number.
+     *
+     * @param seq   Write sequence number.
+     *
+     * @return The notification or null if not in the window.
+     */
+    public PushNotification remove(long seq) {
+        PushNotification n;
+        boolean resume;
+        synchronized (this) {
+            int slot = slot(seq);
+            n = slots[slot];
+            if (n == null || sequences[slot] != seq) return null;
+            release(slot);
+            resume = resume();
+        }
+        if (resume) resumed();
+        return n;
+    }
+
+    /**
+     * Remove all notifications written after the specified sequence number, and
+     * return those that were written to the gateway in write order.
+     *
+     * @param seq   Write sequence number, or -1 to remove all notifications.
+     *
+     * @return The written notifications sent after seq.
+     */
+    public List<PushNotification> removeAfter(long seq) {
+        List<PushNotification> list = new ArrayList<PushNotification>();
+        boolean resume;
+        synchronized (this) {
+            long first = Math.max(seq + 1, next - slots.length);
+            for (long s = Math.max(first, 0); s < next; s++) {
+                int slot = slot(s);
+                if (slots[slot] == null || sequences[slot] != s) continue;
+                if (written[slot]) list.add(slots[slot]);
+                release(slot);
+            }
+            resume = resume();
+        }
+        if (resume) resumed();
+        return list;
+    }
+
+    /**
+     * Remove all notifications in flight, and return those that were written to
+     * the gateway in write order. Retired notifications remain in the window.
+     *
+     * @return The written notifications in flight.
+     */
+    public List<PushNotification> removeInFlight() {
+        List<PushNotification> list = new ArrayList<PushNotification>();
+        boolean resume;
+        synchronized (this) {
+            for (long s = Math.max(next - slots.length, 0); s < next; s++) {
+                int slot = slot(s);
+                if (slots[slot] == null || sequences[slot] != s || retired[slot]) continue;
+                if (written[slot]) list.add(slots[slot]);
+                release(slot);
+            }
+            resume = resume();
+        }
+        if (resume) resumed();
+        return list;
+    }
+
+    /**
+     * Remove all notifications from the window.
+     */
+    public void clear() {
+        boolean resume;
+        synchronized (this) {
+            for (int slot = 0; slot < slots.length; slot++) {
+                if (slots[slot] != null) release(slot);
+            }
+            resume = resume();
+        }
+        if (resume) resumed();
+    }
+
+    /**
+     * Get the number of notifications in the window, including retired
+     * notifications held for retransmission.
+     *
+     * @return The number of notifications.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of notifications added and not yet retired or removed.
+     *
+     * @return The number of notifications in flight.
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int capacity() {
+        return slots.length;
+    }
+
+    private void allocate(int n) {
+        this.slots       = new PushNotification[n];
+        this.sequences   = new long[n];
+        this.written     = new boolean[n];
+        this.retired     = new boolean[n];
+        this.timeouts    = new Timeout[n];
+        this.mask        = n - 1;
+        this.ids         = new long[n * 2];
+        this.idSequences = new long[n * 2];
+        this.idMask      = n * 2 - 1;
+        Arrays.fill(ids, EMPTY);
+    }
+
+    private static int round(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("invalid capacity " + capacity);
+        int n = Integer.highestOneBit(capacity);
+        return n < capacity ? n << 1 : n;
+    }
+
+    private void release(int slot) {
+        if (timeouts[slot] != null) timeouts[slot].cancel();
+        if (!retired[slot]) inFlight--;
+        unindex(id(slots[slot]), sequences[slot]);
+        slots[slot]    = null;
+        timeouts[slot] = null;
+        size--;
+    }
+
+    private boolean resume() {
+        if (!blocked) return false;
+        int slot = slot(next);
+        if (slots[slot] != null && !retired[slot]) return false;
+        blocked = false;
+        return true;
+    }
+
+    private void resumed() {
+        Runnable available = this.available;
+        if (available != null) available.run();
+    }
+
+    private int slot(long seq) {
+        return (int) seq & mask;
+    }
+
+    private void index(long id, long seq) {
+        int i = hash(id);
+        while (ids[i] != EMPTY && ids[i] != id) i = (i + 1) & idMask;
+        ids[i]         = id;
+        idSequences[i] = seq;
+    }
+
+    /**
+     * Remove an id from the index if it maps to the specified sequence number,
+     * shifting back later entries of the probe sequence to fill the gap.
+     */
+    private void unindex(long id, long seq) {
+        int i = hash(id);
+        while (ids[i] != id) {
+            if (ids[i] == EMPTY) return;
+            i = (i + 1) & idMask;
+        }
+        if (idSequences[i] != seq) return;
+
+        for (int j = (i + 1) & idMask; ids[j] != EMPTY; j = (j + 1) & idMask) {
+            int home = hash(ids[j]);
+            if (((j - home) & idMask) >= ((j - i) & idMask)) {
+                ids[i]         = ids[j];
+                idSequences[i] = idSequences[j];
+                i = j;
+            }
+        }
+        ids[i] = EMPTY;
+    }
+
+    private int hash(long id) {
+        int h = (int) id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & idMask;
+    }
+
+    private static long id(PushNotification n) {
+        return n.id & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,98 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeadTokenCacheTest {
+    private Random random = new Random(1);
+
+    @Test
+    public void addContains() throws Exception {
+        DeadTokenCache cache = new DeadTokenCache(16, 1, TimeUnit.SECONDS);
+        byte[] token = token();
+
+        assertFalse(cache.contains(token, 0));
+        assertTrue(cache.add(token, 0));
+        assertTrue(cache.contains(token, 0));
+        assertTrue(cache.contains(token.clone(), 999));
+        assertFalse(cache.contains(token(), 0));
+        assertFalse(cache.add(new byte[31], 0));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        DeadTokenCache cache = new DeadTokenCache(16, 1, TimeUnit.SECONDS);
+        byte[] token = token();
+
+        cache.add(token, 0);
+        assertFalse(cache.contains(token, 1000));
+        assertEquals(0, cache.size());
+
+        cache.add(token, 0);
+        cache.add(token, 500);
+        assertTrue(cache.contains(token, 1000));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        DeadTokenCache cache = new DeadTokenCache(100, 1, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cache.add(token(), 0));
+        }
+        assertFalse(cache.add(token(), 500));
+        assertEquals(100, cache.size());
+
+        assertTrue(cache.add(token(), 1000));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void sweepRateLimited() throws Exception {
+        DeadTokenCache cache = new DeadTokenCache(100, 1600, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cache.add(token(), i));
+        }
+        assertFalse(cache.add(token(), 1000));
+
+        assertTrue(cache.add(token(), 1600));
+        assertEquals(100, cache.size());
+        assertFalse(cache.add(token(), 1650));
+        assertEquals(100, cache.size());
+
+        assertTrue(cache.add(token(), 1700));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void sweepPreservesProbeSequences() throws Exception {
+        DeadTokenCache cache = new DeadTokenCache(1000, 1, TimeUnit.SECONDS);
+        List<byte[]> live = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] token = token();
+            cache.add(token, i % 2 == 0 ? 0 : 500);
+            if (i % 2 != 0) live.add(token);
+        }
+
+        assertEquals(500, cache.sweep(1000));
+        assertEquals(500, cache.size());
+        for (byte[] token : live) {
+            assertTrue(cache.contains(token, 1000));
+        }
+    }
+
+    private byte[] token() {
+        byte[] token = new byte[32];
+        random.nextBytes(token);
+        return token;
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeviceTokenTest {
+    private static final String HEX = "00112233445566778899aabbccddeeff0123456789abcdeffedcba9876543210";
+
+    @Test
+    public void hex() throws Exception {
+        DeviceToken token = DeviceToken.fromHex(HEX);
+        assertEquals(HEX, token.toHex());
+        assertEquals(HEX, token.toString());
+        assertEquals(token, DeviceToken.fromHex(HEX.toUpperCase()));
+
+        char[] chars = new char[66];
+        token.toHex(chars, 1);
+        assertEquals(HEX, new String(chars, 1, 64));
+    }
+
+    @Test
+    public void bytes() throws Exception {
+        byte[] bytes = new byte[32];
+        new Random(1).nextBytes(bytes);
+
+        DeviceToken token = DeviceToken.fromBytes(bytes);
+        assertArrayEquals(bytes, token.toBytes());
+
+        byte[] padded = new byte[34];
+        System.arraycopy(bytes, 0, padded, 1, 32);
+        assertEquals(token, DeviceToken.fromBytes(padded, 1));
+
+        assertEquals(0x00, DeviceToken.fromHex(HEX).toBytes()[0]);
+        assertEquals((byte) 0xFF, DeviceToken.fromHex(HEX).toBytes()[15]);
+    }
+
+    @Test
+    public void equality() throws Exception {
+        DeviceToken a = DeviceToken.fromHex(HEX);
+        DeviceToken b = DeviceToken.fromBytes(a.toBytes());
+        DeviceToken c = new DeviceToken(1, 2, 3, 4);
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(c));
+        assertFalse(c.equals(new DeviceToken(1, 2, 4, 3)));
+    }
+
+    @Test
+    public void invalid() throws Exception {
+        for (String hex : Arrays.asList(HEX.substring(1), HEX + "0", HEX.replace('a', 'g'), HEX.replace('0', '\u0660'))) {
+            try {
+                DeviceToken.fromHex(hex);
+                fail("accepted " + hex);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.lambdaworks.snap.protocol.ErrorResponse;
+import com.lambdaworks.snap.protocol.ErrorResponseDecoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ErrorResponseDecoderTest {
+    @Test
+    public void fragmented() throws Exception {
+        DecoderEmbedder<ErrorResponse> embedder = new DecoderEmbedder<ErrorResponse>(new ErrorResponseDecoder());
+
+        ChannelBuffer buf = ChannelBuffers.buffer(12);
+        buf.writeByte(8);
+        buf.writeByte(7);
+        buf.writeInt(0xFFFFFFFE);
+        buf.writeByte(8);
+        buf.writeByte(10);
+        buf.writeInt(42);
+
+        embedder.offer(buf.readBytes(1));
+        assertNull(embedder.poll());
+        embedder.offer(buf.readBytes(4));
+        assertNull(embedder.poll());
+        embedder.offer(buf.readBytes(7));
+
+        ErrorResponse r = embedder.poll();
+        assertEquals(7, r.status);
+        assertEquals(0xFFFFFFFEL, r.id);
+
+        r = embedder.poll();
+        assertEquals(10, r.status);
+        assertEquals(42, r.id);
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void unknownCommand() throws Exception {
+        DecoderEmbedder<ErrorResponse> embedder = new DecoderEmbedder<ErrorResponse>(new ErrorResponseDecoder());
+
+        ChannelBuffer buf = ChannelBuffers.buffer(12);
+        buf.writeByte(9);
+        buf.writeByte(8);
+        buf.writeInt(8);
+        buf.writeByte(8);
+        buf.writeByte(8);
+        buf.writeInt(1);
+        embedder.offer(buf);
+
+        ErrorResponse r = embedder.poll();
+        assertEquals(8, r.status);
+        assertEquals(1, r.id);
+        assertNull(embedder.poll());
+    }
+}
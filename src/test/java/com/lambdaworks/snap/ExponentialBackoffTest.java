@@ -0,0 +1,50 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExponentialBackoffTest {
+    @Test
+    public void doublesWithJitter() throws Exception {
+        ExponentialBackoff policy = new ExponentialBackoff(100, 10000, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 1000; i++) {
+            assertBetween(50,  100, policy.delay(1));
+            assertBetween(100, 200, policy.delay(2));
+            assertBetween(400, 800, policy.delay(4));
+        }
+    }
+
+    @Test
+    public void cappedAtMax() throws Exception {
+        ExponentialBackoff policy = new ExponentialBackoff(100, 1000, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 1000; i++) {
+            assertBetween(500, 1000, policy.delay(5));
+            assertBetween(500, 1000, policy.delay(Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void jittered() throws Exception {
+        ExponentialBackoff policy = new ExponentialBackoff(1, 60, TimeUnit.SECONDS);
+        long first = policy.delay(10);
+        for (int i = 0; i < 100; i++) {
+            if (policy.delay(10) != first) return;
+        }
+        fail("delay not jittered");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBase() throws Exception {
+        new ExponentialBackoff(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " < " + min, value >= min);
+        assertTrue(value + " > " + max, value <= max);
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.lambdaworks.snap.metrics.Gauge;
+import com.lambdaworks.snap.metrics.Metrics;
+import com.lambdaworks.snap.protocol.FeedbackDecoder;
+import com.lambdaworks.snap.protocol.FeedbackServiceConnection;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FeedbackServiceConnectionTest {
+    private HashedWheelTimer timer;
+    private Metrics metrics;
+    private FeedbackServiceConnection connection;
+    private DecoderEmbedder<Object> embedder;
+
+    @Before
+    public void setup() throws Exception {
+        Gauge zero = new Gauge() {
+            @Override
+            public long getValue() {
+                return 0;
+            }
+        };
+        timer      = new HashedWheelTimer();
+        metrics    = new Metrics(zero, zero);
+        connection = new FeedbackServiceConnection(null, null, null, timer, metrics);
+        embedder   = new DecoderEmbedder<Object>(new FeedbackDecoder(1024), connection);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        timer.stop();
+    }
+
+    @Test
+    public void batches() throws Exception {
+        final List<Long> times = new ArrayList<Long>();
+        final List<byte[]> tokens = new ArrayList<byte[]>();
+        final List<Integer> sizes = new ArrayList<Integer>();
+        connection.addBatchListener(new FeedbackBatchListener() {
+            @Override
+            public void feedback(FeedbackBatch batch) {
+                sizes.add(batch.size());
+                byte[] token = new byte[32];
+                for (int i = 0; i < batch.size(); i++) {
+                    assertEquals(32, batch.tokenLength(i));
+                    batch.token(i, token);
+                    tokens.add(token.clone());
+                    times.add(batch.timestamp(i));
+                }
+            }
+        });
+
+        embedder.offer(entries(0, 3000));
+
+        assertEquals(Arrays.asList(1024, 1024, 952), sizes);
+        assertEquals(3000, tokens.size());
+        assertEquals(3000, metrics.feedback.getCount());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(0xF0000000L + i, (long) times.get(i));
+            assertEquals((byte) i, tokens.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void fragmented() throws Exception {
+        final List<Long> times = new ArrayList<Long>();
+        connection.addListener(new FeedbackListener() {
+            @Override
+            public void feedback(byte[] token, long timestamp) {
+                assertEquals(32, token.length);
+                assertEquals((byte) (timestamp - 0xF0000000L), token[0]);
+                times.add(timestamp);
+            }
+        });
+
+        ChannelBuffer entries = entries(0, 100);
+        int[] sizes = { 1, 5, 6, 7, 37, 38, 39, 100, 3 };
+        for (int i = 0; entries.readable(); i++) {
+            int n = Math.min(sizes[i % sizes.length], entries.readableBytes());
+            embedder.offer(entries.readBytes(n));
+        }
+
+        assertEquals(100, times.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0xF0000000L + i, (long) times.get(i));
+        }
+    }
+
+    @Test
+    public void deviceTokens() throws Exception {
+        final List<DeviceToken> tokens = new ArrayList<DeviceToken>();
+        connection.addDeviceTokenListener(new DeviceTokenListener() {
+            @Override
+            public void feedback(DeviceToken token, long timestamp) {
+                tokens.add(token);
+            }
+        });
+
+        embedder.offer(entries(0, 10));
+
+        assertEquals(10, tokens.size());
+        for (int i = 0; i < 10; i++) {
+            byte[] token = new byte[32];
+            token[0] = (byte) i;
+            assertEquals(DeviceToken.fromBytes(token), tokens.get(i));
+        }
+    }
+
+    private ChannelBuffer entries(int start, int count) {
+        ChannelBuffer buf = ChannelBuffers.buffer(count * 38);
+        byte[] token = new byte[32];
+        for (int i = start; i < start + count; i++) {
+            token[0] = (byte) i;
+            buf.writeInt((int) (0xF0000000L + i));
+            buf.writeShort(token.length);
+            buf.writeBytes(token);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.lambdaworks.snap.protocol.Hpack;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HpackTest {
+    @Test
+    public void literalRequests() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+
+        Map<String, String> headers = decode(decoder, "828684410f7777772e6578616d706c652e636f6d");
+        assertEquals(map(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"), headers);
+
+        headers = decode(decoder, "828684be58086e6f2d6361636865");
+        assertEquals(map(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                         "cache-control", "no-cache"), headers);
+    }
+
+    @Test
+    public void huffmanRequests() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+
+        Map<String, String> headers = decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        assertEquals(map(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"), headers);
+
+        headers = decode(decoder, "828684be5886a8eb10649cbf");
+        assertEquals("no-cache", headers.get("cache-control"));
+        assertEquals("www.example.com", headers.get(":authority"));
+
+        headers = decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+        assertEquals(map(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                         "custom-key", "custom-value"), headers);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        String path = "/3/device/" + new String(new char[200]).replace('\0', 'a');
+        Hpack.encode(buf, ":method", "POST");
+        Hpack.encode(buf, ":status", "410");
+        Hpack.encode(buf, ":path", path);
+        Hpack.encode(buf, "apns-expiration", "0");
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        new Hpack.Decoder().decode(buf, headers);
+        assertEquals(map(":method", "POST", ":status", "410", ":path", path, "apns-expiration", "0"), headers);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        decode(new Hpack.Decoder(), "410f7777772e6578616d706c65");
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidIndex() throws Exception {
+        decode(new Hpack.Decoder(), "be");
+    }
+
+    private static Map<String, String> decode(Hpack.Decoder decoder, String hex) throws IOException {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        decoder.decode(ChannelBuffers.wrappedBuffer(bytes), headers);
+        return headers;
+    }
+
+    private static Map<String, String> map(String... kv) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < kv.length; i += 2) map.put(kv[i], kv[i + 1]);
+        return map;
+    }
+}
@@ -0,0 +1,220 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.protocol.Http2Connection;
+import com.lambdaworks.snap.simulator.Http2Simulator;
+import com.lambdaworks.snap.simulator.Simulators;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class Http2PushNotificationClientTest {
+    private Http2Simulator server;
+    private Http2PushNotificationClient client;
+    private SSLContext sslContext;
+    private DeviceToken token = DeviceToken.fromHex("00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff");
+
+    @Before
+    public void setup() throws Exception {
+        sslContext = Simulators.sslContext();
+        server     = new Http2Simulator(sslContext);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (client != null) client.shutdown();
+        server.stop();
+    }
+
+    private Http2PushNotificationClient client(int connections) throws Exception {
+        client = new Http2PushNotificationClient(server.start(), sslContext, connections);
+        client.setReconnectPolicy(new ExponentialBackoff(1, 10, TimeUnit.MILLISECONDS));
+        assertTrue(client.awaitConnected(5, TimeUnit.SECONDS));
+        return client;
+    }
+
+    @Test
+    public void send() throws Exception {
+        client(2);
+
+        List<PushNotificationFuture> futures = new ArrayList<PushNotificationFuture>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(client.send(client.create(token).alert("hello").priority(PushNotification.PRIORITY_CONSERVE_POWER)));
+        }
+        for (PushNotificationFuture f : futures) {
+            assertTrue(f.await(5, TimeUnit.SECONDS));
+            assertTrue(f.isSuccess());
+        }
+
+        Http2Simulator.Request r = server.poll();
+        assertEquals("POST", r.headers.get(":method"));
+        assertEquals("https", r.headers.get(":scheme"));
+        assertEquals("/3/device/" + token.toHex(), r.headers.get(":path"));
+        assertEquals("0", r.headers.get("apns-expiration"));
+        assertEquals("5", r.headers.get("apns-priority"));
+
+        Map<?, ?> payload = new ObjectMapper().readValue(r.body, Map.class);
+        assertEquals("hello", ((Map<?, ?>) payload.get("aps")).get("alert"));
+        assertEquals(500, client.getMetrics().sent.getCount());
+    }
+
+    @Test
+    public void multiplexed() throws Exception {
+        server.setMaxStreams(8);
+        server.setDelay(50, TimeUnit.MILLISECONDS);
+        client(1);
+
+        List<PushNotificationFuture> futures = new ArrayList<PushNotificationFuture>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(client.send(client.create(token).alert("hello")));
+        }
+        for (PushNotificationFuture f : futures) {
+            assertTrue(f.await(5, TimeUnit.SECONDS));
+            assertTrue(f.isSuccess());
+        }
+
+        assertEquals(1, server.connections());
+        assertTrue(server.peakStreams() > 1);
+        assertTrue(server.peakStreams() <= 8);
+    }
+
+    @Test
+    public void rejected() throws Exception {
+        final BlockingQueue<Integer> errors = new LinkedBlockingQueue<Integer>();
+        DeviceToken bad = DeviceToken.fromHex("ffeeddccbbaa99887766554433221100ffeeddccbbaa99887766554433221100");
+        server.reject(bad.toHex(), 410, "Unregistered");
+        client(1).enableDeadTokenCache(16, 1, TimeUnit.HOURS);
+        client.addErrorListener(new ErrorListener() {
+            @Override
+            public void error(long id, byte[] token, int status) {
+                errors.add(status);
+            }
+        });
+
+        PushNotificationFuture f = client.send(client.create(bad).alert("hello"));
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("rejected notification succeeded");
+        } catch (ExecutionException e) {
+            ErrorResponseException ex = (ErrorResponseException) e.getCause();
+            assertEquals(8, ex.status);
+            assertEquals(410, ex.httpStatus);
+            assertEquals("Unregistered", ex.reason);
+        }
+        assertEquals(8, (int) errors.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, client.getMetrics().getErrors(8));
+
+        assertFalse(client.offer(client.create(bad).alert("hello")));
+        assertEquals(1, client.getMetrics().suppressed.getCount());
+        assertTrue(client.send(client.create(token).alert("hello")).get(5, TimeUnit.SECONDS).id > 0);
+    }
+
+    @Test
+    public void unavailableRetried() throws Exception {
+        DeviceToken busy = DeviceToken.fromHex("ffeeddccbbaa99887766554433221100ffeeddccbbaa99887766554433221100");
+        server.reject(busy.toHex(), 503, "ServiceUnavailable");
+        client(1).setRetryPolicy(new ExponentialBackoff(20, 20, TimeUnit.MILLISECONDS));
+
+        PushNotificationFuture f = client.send(client.create(busy).alert("hello"));
+        assertTrue(server.await(2, 5, TimeUnit.SECONDS));
+        server.accept(busy.toHex());
+
+        assertTrue(f.await(5, TimeUnit.SECONDS));
+        assertTrue(f.isSuccess());
+    }
+
+    @Test
+    public void unavailableRetriesLimited() throws Exception {
+        DeviceToken busy = DeviceToken.fromHex("ffeeddccbbaa99887766554433221100ffeeddccbbaa99887766554433221100");
+        server.reject(busy.toHex(), 503, "ServiceUnavailable");
+        client(1).setRetryPolicy(new ExponentialBackoff(20, 20, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        PushNotificationFuture f = client.send(client.create(busy).alert("hello"));
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("unavailable notification succeeded");
+        } catch (ExecutionException e) {
+            assertEquals(503, ((ErrorResponseException) e.getCause()).httpStatus);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        int requests = 0;
+        while (server.poll() != null) requests++;
+        assertEquals(Http2Connection.MAX_RETRIES + 1, requests);
+        assertTrue("retried after " + elapsed + "ms", elapsed >= Http2Connection.MAX_RETRIES * 10);
+    }
+
+    @Test
+    public void providerToken() throws Exception {
+        ProviderToken token = new ProviderToken("TEAMID1234", "KEYID12345", ecKey());
+        client(1).setProviderToken(token);
+
+        assertTrue(client.send(client.create(this.token).alert("a").topic("com.example.a")).await(5, TimeUnit.SECONDS));
+        assertTrue(client.send(client.create(this.token).alert("b").topic("com.example.b")).await(5, TimeUnit.SECONDS));
+
+        Http2Simulator.Request a = server.poll();
+        Http2Simulator.Request b = server.poll();
+        assertEquals("bearer " + token.get(), a.headers.get("authorization"));
+        assertEquals("bearer " + token.get(), b.headers.get("authorization"));
+        assertEquals("com.example.a", a.headers.get("apns-topic"));
+        assertEquals("com.example.b", b.headers.get("apns-topic"));
+    }
+
+    @Test
+    public void expiredProviderToken() throws Exception {
+        ProviderToken token = new ProviderToken("TEAMID1234", "KEYID12345", ecKey());
+        String expired = token.get();
+        server.expire(expired);
+        client(1).setProviderToken(token);
+
+        List<PushNotificationFuture> futures = new ArrayList<PushNotificationFuture>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(client.send(client.create(this.token).alert("hello").topic("com.example.a")));
+        }
+        for (PushNotificationFuture f : futures) {
+            assertTrue(f.await(5, TimeUnit.SECONDS));
+            assertTrue(f.isSuccess());
+        }
+        assertFalse(expired.equals(token.get()));
+        assertEquals(0, client.getMetrics().getErrors(255));
+    }
+
+    @Test
+    public void resendAfterDrop() throws Exception {
+        server.setDelay(200, TimeUnit.MILLISECONDS);
+        client(1);
+
+        List<PushNotificationFuture> futures = new ArrayList<PushNotificationFuture>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(client.send(client.create(token).alert("hello")));
+        }
+        assertTrue(server.await(50, 5, TimeUnit.SECONDS));
+        server.drop();
+
+        for (PushNotificationFuture f : futures) {
+            assertTrue(f.await(5, TimeUnit.SECONDS));
+            assertTrue(f.isSuccess());
+        }
+        assertTrue(server.connections() > 1);
+    }
+
+    private static PrivateKey ecKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair().getPrivate();
+    }
+}
@@ -0,0 +1,321 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.lambdaworks.snap.metrics.Gauge;
+import com.lambdaworks.snap.metrics.Metrics;
+import com.lambdaworks.snap.protocol.NotificationQueue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+import static com.lambdaworks.snap.OverflowPolicy.*;
+import static org.junit.Assert.*;
+
+public class NotificationQueueTest {
+    private NotificationQueue queue;
+    private PushNotification[] n;
+
+    @Before
+    public void setup() {
+        queue = new NotificationQueue();
+        n = new PushNotification[4];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = new PushNotification(i, new byte[32]);
+        }
+    }
+
+    @Test
+    public void fifo() throws Exception {
+        queue.put(n[0]);
+        queue.put(n[1]);
+        assertSame(n[0], queue.poll());
+        assertSame(n[1], queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void requeueAtHeadIgnoringLimit() throws Exception {
+        queue.setLimit(1, FAIL);
+        queue.put(n[0]);
+        queue.requeue(n[1]);
+        assertEquals(2, queue.size());
+        assertSame(n[1], queue.poll());
+        assertSame(n[0], queue.poll());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failWhenFull() throws Exception {
+        queue.setLimit(1, FAIL);
+        queue.put(n[0]);
+        queue.put(n[1]);
+    }
+
+    @Test
+    public void offerRejectedWhenFull() throws Exception {
+        queue.setLimit(1, BLOCK);
+        assertTrue(queue.offer(n[0]));
+        assertFalse(queue.offer(n[1]));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        queue.setLimit(2, DROP_OLDEST);
+        queue.put(n[0]);
+        queue.put(n[1]);
+        queue.put(n[2]);
+        assertTrue(queue.offer(n[3]));
+        assertTrue(n[0].future().getCause() instanceof CancellationException);
+        assertTrue(n[1].future().getCause() instanceof CancellationException);
+        assertFalse(n[2].future().isDone());
+        assertSame(n[2], queue.poll());
+        assertSame(n[3], queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test(timeout = 5000)
+    public void blockUntilSpace() throws Exception {
+        queue.setLimit(1, BLOCK);
+        queue.put(n[0]);
+
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.poll();
+            }
+        };
+        t.start();
+
+        queue.put(n[1]);
+        assertSame(n[1], queue.poll());
+        t.join();
+    }
+
+    @Test
+    public void weightedLanes() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            queue.put(new PushNotification(i, new byte[32]).lane(Lane.BULK));
+            queue.put(new PushNotification(i, new byte[32]).lane(Lane.URGENT));
+        }
+
+        int urgent = 0;
+        for (int i = 0; i < 34; i++) {
+            if (queue.poll().lane() == Lane.URGENT) urgent++;
+        }
+        assertEquals(32, urgent);
+        assertEquals(98, queue.size(Lane.BULK));
+    }
+
+    @Test
+    public void lanesNotStarved() throws Exception {
+        queue.setWeight(Lane.URGENT, 3);
+        queue.setWeight(Lane.NORMAL, 4);
+        for (int i = 0; i < 8; i++) {
+            queue.put(new PushNotification(i, new byte[32]).lane(Lane.URGENT));
+            queue.put(new PushNotification(i, new byte[32]).lane(Lane.NORMAL));
+            queue.put(new PushNotification(i, new byte[32]).lane(Lane.BULK));
+        }
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            order.append(queue.poll().lane().name().charAt(0));
+        }
+        assertEquals("NUNUBNUN", order.toString());
+    }
+
+    @Test
+    public void fifoWithinLane() throws Exception {
+        n[0].lane(Lane.URGENT);
+        n[2].lane(Lane.URGENT);
+        queue.put(n[0]);
+        queue.put(n[1]);
+        queue.put(n[2]);
+        queue.requeue(n[3]);
+
+        assertSame(n[0], queue.poll());
+        assertSame(n[2], queue.poll());
+        assertSame(n[3], queue.poll());
+        assertSame(n[1], queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void laneLimits() throws Exception {
+        queue.setLimit(Lane.BULK, 1, FAIL);
+        queue.put(n[0].lane(Lane.BULK));
+        assertFalse(queue.offer(n[1].lane(Lane.BULK)));
+        assertTrue(queue.offer(n[2].lane(Lane.URGENT)));
+        queue.put(n[3]);
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void laneMetrics() throws Exception {
+        Gauge zero = new Gauge() {
+            @Override
+            public long getValue() {
+                return 0;
+            }
+        };
+        Metrics metrics = new Metrics(zero, zero);
+        queue = new NotificationQueue(metrics);
+        queue.setLimit(Lane.BULK, 1, DROP_OLDEST);
+
+        queue.put(n[0].lane(Lane.BULK));
+        queue.put(n[1].lane(Lane.BULK));
+        queue.put(n[2].lane(Lane.URGENT));
+        assertEquals(1, metrics.lane(Lane.BULK).queued.getCount());
+        assertEquals(1, metrics.lane(Lane.BULK).overflows.getCount());
+        assertEquals(1, metrics.lane(Lane.URGENT).queued.getCount());
+
+        queue.poll();
+        queue.poll();
+        assertEquals(0, metrics.lane(Lane.BULK).queued.getCount());
+        assertEquals(1, metrics.lane(Lane.BULK).queueTime.getCount());
+        assertEquals(1, metrics.lane(Lane.URGENT).queueTime.getCount());
+        assertEquals(0, metrics.lane(Lane.NORMAL).queueTime.getCount());
+    }
+
+    @Test
+    public void expiredDiscardedAtPoll() throws Exception {
+        long now = System.currentTimeMillis();
+        queue.put(n[0].expiry(new Date(now - 1000)));
+        queue.put(n[1].expiry(new Date(now + 60000)));
+        queue.requeue(n[2].expiry(new Date(now - 1000)));
+
+        assertSame(n[1], queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertEquals("Notification expired", n[0].future().getCause().getMessage());
+        assertTrue(n[2].future().getCause() instanceof CancellationException);
+        assertFalse(n[1].future().isDone());
+    }
+
+    @Test
+    public void sweep() throws Exception {
+        Gauge zero = new Gauge() {
+            @Override
+            public long getValue() {
+                return 0;
+            }
+        };
+        Metrics metrics = new Metrics(zero, zero);
+        queue = new NotificationQueue(metrics);
+
+        long now = System.currentTimeMillis();
+        queue.put(n[0].expiry(new Date(now + 60000)));
+        queue.put(n[1].expiry(new Date(now - 1000)));
+        queue.put(n[2]);
+        queue.put(n[3].expiry(new Date(now - 1000)));
+
+        assertEquals(2, queue.sweep());
+        assertEquals(0, queue.sweep());
+        assertEquals(2, queue.size());
+        assertEquals(2, metrics.lane(Lane.NORMAL).expired.getCount());
+        assertEquals(2, metrics.lane(Lane.NORMAL).queued.getCount());
+        assertTrue(n[1].future().isDone());
+        assertTrue(n[3].future().isDone());
+        assertSame(n[0], queue.poll());
+        assertSame(n[2], queue.poll());
+    }
+
+    @Test
+    public void sweepLimited() throws Exception {
+        long now = System.currentTimeMillis();
+        int limit = NotificationQueue.SWEEP_LIMIT;
+        queue.put(n[0].expiry(new Date(now + 60000)));
+        for (int i = 0; i < 2 * limit; i++) {
+            queue.put(new PushNotification(i, new byte[32]).expiry(new Date(now - 1000)));
+        }
+        queue.put(n[1].expiry(new Date(now + 60000)));
+
+        assertEquals(limit - 1, queue.sweep());
+        queue.requeue(n[2].expiry(new Date(now + 30000)));
+        assertEquals(limit, queue.sweep());
+        assertEquals(1, queue.sweep());
+        assertEquals(0, queue.sweep());
+        assertEquals(3, queue.size());
+
+        assertSame(n[2], queue.poll());
+        assertSame(n[0], queue.poll());
+        assertSame(n[1], queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void sweepWithoutPollKeepsOrder() throws Exception {
+        long now = System.currentTimeMillis();
+        queue.setLimit(Lane.NORMAL, 30, BLOCK);
+
+        long id = 0;
+        List<Long> expected = new ArrayList<Long>();
+        for (int round = 0; round < 100; round++) {
+            while (queue.size() < 30) {
+                boolean expired = id % 3 != 0;
+                queue.put(new PushNotification(id, new byte[32]).expiry(new Date(now + (expired ? -1000 : 60000))));
+                if (!expired) expected.add(id);
+                id++;
+            }
+            queue.sweep();
+        }
+        queue.requeue(n[0]);
+
+        assertSame(n[0], queue.poll());
+        for (long e : expected) {
+            assertEquals(e, queue.poll().id);
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void deadlineOrdering() throws Exception {
+        long now = System.currentTimeMillis();
+        queue.setDeadlineOrdering(true);
+        queue.put(n[0]);
+        queue.put(n[1].expiry(new Date(now + 30000)));
+        queue.put(n[2].expiry(new Date(now + 10000)));
+        queue.requeue(n[3].expiry(new Date(now + 30000)));
+
+        assertSame(n[2], queue.poll());
+        assertSame(n[3], queue.poll());
+        assertSame(n[1], queue.poll());
+        assertSame(n[0], queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void switchOrdering() throws Exception {
+        long now = System.currentTimeMillis();
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            queue.put(new PushNotification(i, new byte[32]).expiry(new Date(now + 1000 + random.nextInt(100000))));
+        }
+
+        queue.setDeadlineOrdering(true);
+        long last = 0;
+        for (int i = 0; i < 50; i++) {
+            long expiry = queue.poll().expiry().getTime();
+            assertTrue(expiry >= last);
+            last = expiry;
+        }
+
+        queue.setDeadlineOrdering(false);
+        queue.put(n[0].expiry(new Date(now + 1000)));
+        for (int i = 0; i < 50; i++) {
+            long expiry = queue.poll().expiry().getTime();
+            assertTrue(expiry >= last);
+            last = expiry;
+        }
+        assertSame(n[0], queue.poll());
+    }
+}
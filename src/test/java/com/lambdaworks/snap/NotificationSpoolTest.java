@@ -0,0 +1,124 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class NotificationSpoolTest {
+    private ObjectMapper mapper;
+    private AtomicLong counter;
+    private File directory;
+
+    @Before
+    public void setup() throws Exception {
+        mapper    = new ObjectMapper();
+        counter   = new AtomicLong();
+        directory = File.createTempFile("spool", "");
+        directory.delete();
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void spooledPayloadMatches() throws Exception {
+        NotificationSpool spool = new NotificationSpool(directory, 4096);
+        PushNotification n = notification("msg");
+
+        ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+        n.encode(mapper, expected);
+
+        spool.append(n, mapper);
+        assertEquals(expected, n.encode(mapper, expected.factory()));
+        spool.close();
+    }
+
+    @Test
+    public void recoverUnacknowledged() throws Exception {
+        NotificationSpool spool = new NotificationSpool(directory, 512);
+        PushNotification[] n = new PushNotification[10];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = notification("msg " + i);
+            spool.append(n[i], mapper);
+        }
+        assertTrue(directory.listFiles().length > 1);
+
+        for (int i = 0; i < n.length - 2; i++) {
+            n[i].future().setSuccess();
+        }
+        assertEquals(1, directory.listFiles().length);
+        spool.close();
+
+        spool = new NotificationSpool(directory, 512);
+        counter.set(100);
+        List<PushNotification> list = spool.recover(counter);
+        assertEquals(2, list.size());
+
+        for (int i = 0; i < list.size(); i++) {
+            PushNotification r = list.get(i);
+            PushNotification o = n[n.length - 2 + i];
+            assertEquals(101 + i, r.id);
+            assertArrayEquals(o.token, r.token);
+            assertEquals(o.payload(), r.payload());
+        }
+
+        for (PushNotification r : list) {
+            r.future().setFailure(new ErrorResponseException(r.id, 8));
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void expiredNotRecovered() throws Exception {
+        NotificationSpool spool = new NotificationSpool(directory, 4096);
+        spool.append(notification("expired").expiry(new Date(System.currentTimeMillis() - 1000)), mapper);
+        spool.append(notification("current"), mapper);
+        spool.close();
+
+        spool = new NotificationSpool(directory, 4096);
+        assertEquals(1, spool.recover(counter).size());
+    }
+
+    @Test
+    public void recoverLaneAndPriority() throws Exception {
+        NotificationSpool spool = new NotificationSpool(directory, 4096);
+        spool.append(notification("urgent").lane(Lane.URGENT).priority(PushNotification.PRIORITY_IMMEDIATE), mapper);
+        spool.append(notification("bulk").lane(Lane.BULK).priority(PushNotification.PRIORITY_CONSERVE_POWER), mapper);
+        spool.append(notification("default"), mapper);
+        spool.close();
+
+        spool = new NotificationSpool(directory, 4096);
+        List<PushNotification> list = spool.recover(counter);
+        assertEquals(3, list.size());
+        assertEquals(Lane.URGENT, list.get(0).lane());
+        assertEquals(PushNotification.PRIORITY_IMMEDIATE, list.get(0).priority());
+        assertEquals(Lane.BULK, list.get(1).lane());
+        assertEquals(PushNotification.PRIORITY_CONSERVE_POWER, list.get(1).priority());
+        assertEquals(Lane.NORMAL, list.get(2).lane());
+        assertEquals(0, list.get(2).priority());
+    }
+
+    private PushNotification notification(String alert) {
+        byte[] token = new byte[32];
+        token[0] = (byte) counter.get();
+        return new PushNotification(counter.incrementAndGet(), token).alert(alert);
+    }
+}
@@ -0,0 +1,391 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.simulator.FeedbackSimulator;
+import com.lambdaworks.snap.simulator.GatewaySimulator;
+import com.lambdaworks.snap.simulator.Simulators;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class PushNotificationClientTest {
+    private GatewaySimulator gateway;
+    private FeedbackSimulator feedback;
+    private PushNotificationClient client;
+    private SSLContext sslContext;
+    private byte[] token = new byte[32];
+
+    @Before
+    public void setup() throws Exception {
+        sslContext = Simulators.sslContext();
+        gateway    = new GatewaySimulator(sslContext);
+        feedback   = new FeedbackSimulator(sslContext);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (client != null) client.shutdown();
+        gateway.stop();
+        feedback.stop();
+    }
+
+    private PushNotificationClient client(int connections) {
+        InetSocketAddress g = gateway.start();
+        InetSocketAddress f = feedback.start();
+        return client = new PushNotificationClient(g, f, sslContext, connections);
+    }
+
+    @Test
+    public void sendToGateway() throws Exception {
+        client(2);
+
+        Set<Long> sent = new HashSet<Long>();
+        for (int i = 0; i < 100; i++) {
+            sent.add(client.send(client.create(token).alert("hello")).get().id);
+        }
+
+        assertTrue(gateway.await(100, 5, TimeUnit.SECONDS));
+        assertEquals(sent, received());
+        assertEquals(0, client.getMetrics().inFlight.getValue());
+    }
+
+    @Test
+    public void command2Frames() throws Exception {
+        client(1).setFrameFormat(FrameFormat.COMMAND_2);
+
+        final BlockingQueue<Long> errors = new LinkedBlockingQueue<Long>();
+        client.addErrorListener(new ErrorListener() {
+            @Override
+            public void error(long id, byte[] token, int status) {
+                errors.add(id);
+            }
+        });
+
+        PushNotification low  = client.create(token).alert("low").priority(PushNotification.PRIORITY_CONSERVE_POWER);
+        PushNotification high = client.create(token).alert("high");
+        PushNotification bad  = client.create(token).alert("bad");
+        gateway.reject(bad.id, 8);
+        client.send(low);
+        client.send(high);
+        client.send(bad);
+
+        assertEquals(bad.id, (long) errors.poll(5, TimeUnit.SECONDS));
+        GatewaySimulator.Notification n = gateway.poll();
+        assertEquals(low.id, n.id);
+        assertArrayEquals(token, n.token);
+        assertEquals(5, n.priority);
+        n = gateway.poll();
+        assertEquals(high.id, n.id);
+        assertEquals(10, n.priority);
+    }
+
+    @Test
+    public void errorResponse() throws Exception {
+        final BlockingQueue<Long> errors = new LinkedBlockingQueue<Long>();
+        client(1).addErrorListener(new ErrorListener() {
+            @Override
+            public void error(long id, byte[] token, int status) {
+                assertEquals(8, status);
+                errors.add(id);
+            }
+        });
+
+        Set<Long> sent = new HashSet<Long>();
+        for (int i = 0; i < 50; i++) {
+            PushNotification n = client.create(token).alert("hello");
+            if (i == 10) gateway.reject(n.id, 8); else sent.add(n.id);
+            client.send(n);
+        }
+
+        assertNotNull(errors.poll(5, TimeUnit.SECONDS));
+        assertTrue(gateway.await(49, 5, TimeUnit.SECONDS));
+        assertEquals(sent, received());
+        assertTrue(gateway.connections() > 1);
+    }
+
+    @Test
+    public void errorResponseOutOfIdOrder() throws Exception {
+        client(1).setQuietPeriod(200, TimeUnit.MILLISECONDS);
+
+        PushNotification[] n = new PushNotification[50];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = client.create(token).alert("hello");
+        }
+        gateway.reject(n[40].id, 8);
+
+        PushNotificationFuture[] f = new PushNotificationFuture[n.length];
+        for (int i = n.length - 1; i >= 0; i--) {
+            f[i] = client.send(n[i]);
+        }
+
+        Set<Long> sent = new HashSet<Long>();
+        for (int i = 0; i < n.length; i++) {
+            if (i == 40) {
+                assertTrue(f[i].await(5, TimeUnit.SECONDS));
+                assertTrue(f[i].getCause() instanceof ErrorResponseException);
+            } else {
+                f[i].get(5, TimeUnit.SECONDS);
+                sent.add(n[i].id);
+            }
+        }
+
+        assertTrue(gateway.await(49, 5, TimeUnit.SECONDS));
+        assertEquals(sent, received());
+    }
+
+    @Test
+    public void errorResponseWithPool() throws Exception {
+        client(3).setQuietPeriod(200, TimeUnit.MILLISECONDS);
+        assertTrue(client.awaitConnected(5, TimeUnit.SECONDS));
+
+        PushNotification[] n = new PushNotification[300];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = client.create(token).alert("hello");
+        }
+        gateway.reject(n[200].id, 8);
+        gateway.reject(n[100].id, 8);
+
+        PushNotificationFuture[] f = new PushNotificationFuture[n.length];
+        for (int i = n.length - 1; i >= 0; i--) {
+            f[i] = client.send(n[i]);
+        }
+
+        Set<Long> sent = new HashSet<Long>();
+        for (int i = 0; i < n.length; i++) {
+            if (i == 100 || i == 200) {
+                assertTrue(f[i].await(5, TimeUnit.SECONDS));
+                assertFalse(f[i].isSuccess());
+            } else {
+                f[i].get(5, TimeUnit.SECONDS);
+                sent.add(n[i].id);
+            }
+        }
+
+        assertTrue(gateway.await(298, 5, TimeUnit.SECONDS));
+        assertEquals(sent, received());
+    }
+
+    @Test
+    public void broadcast() throws Exception {
+        client(2).setFrameFormat(FrameFormat.COMMAND_2);
+
+        List<byte[]> tokens = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            byte[] token = new byte[32];
+            token[0] = (byte) i;
+            tokens.add(token);
+        }
+
+        PushNotification template = client.create().alert("hello").priority(PushNotification.PRIORITY_CONSERVE_POWER);
+        assertEquals(20, client.broadcast(template, tokens));
+        assertTrue(gateway.await(20, 5, TimeUnit.SECONDS));
+
+        PushNotification expected = client.create(token).alert("hello");
+        ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        expected.encodePayload(new ObjectMapper(), buf);
+        byte[] payload = new byte[buf.readableBytes() - 2];
+        buf.getBytes(2, payload);
+
+        Set<Integer> received = new HashSet<Integer>();
+        GatewaySimulator.Notification n;
+        while ((n = gateway.poll()) != null) {
+            assertArrayEquals(payload, n.payload);
+            assertEquals(5, n.priority);
+            received.add((int) n.token[0]);
+        }
+        assertEquals(20, received.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sendTemplate() throws Exception {
+        client(1).send(client.create().alert("hello"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void offerTemplate() throws Exception {
+        client(1).offer(client.create().alert("hello"));
+    }
+
+    @Test
+    public void reconnectAfterDrop() throws Exception {
+        gateway.setDropRate(0.2);
+        client(1);
+
+        for (int i = 0; i < 50; i++) {
+            client.send(client.create(token).alert("hello"));
+            Thread.sleep(5);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gateway.connections() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(gateway.connections() > 1);
+        assertTrue(client.getMetrics().reconnects.getCount() > 0);
+    }
+
+    @Test
+    public void resumeSessionOnReconnect() throws Exception {
+        client(2);
+        assertTrue(client.awaitConnected(5, TimeUnit.SECONDS));
+        assertEquals(2, client.getMetrics().handshakeTime.getCount());
+
+        gateway.setDropRate(1.0);
+        client.send(client.create(token).alert("hello"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getMetrics().resumed.getCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(gateway.connections() > 2);
+        assertTrue(client.getMetrics().resumed.getCount() > 0);
+    }
+
+    @Test
+    public void feedback() throws Exception {
+        final BlockingQueue<byte[]> tokens = new LinkedBlockingQueue<byte[]>();
+        feedback.generate(5);
+
+        client(1).addFeedbackListener(new FeedbackListener() {
+            @Override
+            public void feedback(byte[] token, long timestamp) {
+                tokens.add(token);
+            }
+        });
+        client.setFeedbackInterval(50, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 5; i++) {
+            byte[] token = tokens.poll(5, TimeUnit.SECONDS);
+            assertNotNull(token);
+            assertEquals(32, token.length);
+        }
+    }
+
+    @Test
+    public void suppressInvalidTokens() throws Exception {
+        client(1).enableDeadTokenCache(100, 1, TimeUnit.MINUTES);
+        client.setQuietPeriod(500, TimeUnit.MILLISECONDS);
+
+        byte[] dead = new byte[32];
+        dead[0] = 1;
+
+        PushNotification n = client.create(dead).alert("hello");
+        gateway.reject(n.id, 8);
+        try {
+            client.send(n).get(5, TimeUnit.SECONDS);
+            fail("notification not rejected");
+        } catch (ExecutionException e) {
+            assertEquals(8, ((ErrorResponseException) e.getCause()).status);
+        }
+
+        PushNotificationFuture f = client.send(client.create(dead).alert("hello"));
+        assertTrue(f.isDone());
+        assertFalse(f.isSuccess());
+        assertEquals(1, client.getMetrics().suppressed.getCount());
+
+        assertTrue(client.send(client.create(token).alert("hello")).await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void circuitBreaker() throws Exception {
+        client(2);
+        client.setReconnectPolicy(new ExponentialBackoff(1, 10, TimeUnit.MILLISECONDS));
+        client.enableCircuitBreaker(3);
+        assertTrue(client.awaitConnected(5, TimeUnit.SECONDS));
+        assertTrue(client.isAvailable());
+
+        gateway.stop();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.isAvailable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(client.isAvailable());
+
+        PushNotificationFuture f = client.send(client.create(token).alert("hello"));
+        assertTrue(f.isDone());
+        assertTrue(f.getCause() instanceof IllegalStateException);
+        assertFalse(client.offer(client.create(token).alert("hello")));
+        assertEquals(2, client.getMetrics().unavailable.getCount());
+    }
+
+    @Test
+    public void circuitBreakerOnHandshakeFailure() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) server.accept().close();
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        };
+        acceptor.start();
+
+        try {
+            InetSocketAddress g = (InetSocketAddress) server.getLocalSocketAddress();
+            client = new PushNotificationClient(g, feedback.start(), sslContext, 2);
+            client.setReconnectPolicy(new ExponentialBackoff(1, 10, TimeUnit.MILLISECONDS));
+            client.enableCircuitBreaker(3);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.isAvailable() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(client.isAvailable());
+        } finally {
+            server.close();
+            acceptor.join();
+        }
+    }
+
+    @Test
+    public void sharedRuntime() throws Exception {
+        InetSocketAddress g = gateway.start();
+        InetSocketAddress f = feedback.start();
+
+        ClientRuntime runtime = new ClientRuntime(2);
+        try {
+            PushNotificationClient a = new PushNotificationClient(runtime, g, f, sslContext, 1);
+            PushNotificationClient b = new PushNotificationClient(runtime, g, f, sslContext, 1);
+
+            a.send(a.create(token).alert("a")).get();
+            b.send(b.create(token).alert("b")).get();
+            assertTrue(gateway.await(2, 5, TimeUnit.SECONDS));
+
+            a.shutdown();
+
+            b.send(b.create(token).alert("b")).get();
+            assertTrue(gateway.await(3, 5, TimeUnit.SECONDS));
+
+            b.shutdown();
+        } finally {
+            runtime.shutdown();
+        }
+    }
+
+    private Set<Long> received() {
+        Set<Long> ids = new HashSet<Long>();
+        GatewaySimulator.Notification n;
+        while ((n = gateway.poll()) != null) {
+            ids.add(n.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PushNotificationFutureTest {
+    private PushNotification notification;
+    private PushNotificationFuture future;
+    private AtomicInteger notified;
+    private PushNotificationFutureListener listener;
+
+    @Before
+    public void setup() {
+        notification = new PushNotification(1, new byte[32]);
+        future       = notification.future();
+        notified     = new AtomicInteger();
+        listener     = new PushNotificationFutureListener() {
+            @Override
+            public void operationComplete(PushNotificationFuture f) {
+                notified.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void success() throws Exception {
+        future.addListener(listener);
+        assertFalse(future.isDone());
+
+        assertTrue(future.setSuccess());
+        assertFalse(future.setFailure(new ErrorResponseException(1, 8)));
+
+        assertTrue(future.isSuccess());
+        assertSame(notification, future.get());
+        assertEquals(-1, future.getStatus());
+        assertEquals(1, notified.get());
+    }
+
+    @Test
+    public void failure() throws Exception {
+        future.setFailure(new ErrorResponseException(1, 8));
+        future.addListener(listener);
+
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+        assertEquals(8, future.getStatus());
+        assertEquals(1, notified.get());
+
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ErrorResponseException);
+        }
+    }
+
+    @Test
+    public void discarded() throws Exception {
+        future.setFailure(new CancellationException("Notification expired"));
+
+        assertTrue(future.isDone());
+        assertTrue(future.isCancelled());
+        assertFalse(future.isSuccess());
+        assertEquals(-1, future.getStatus());
+
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            assertEquals("Notification expired", e.getMessage());
+        }
+    }
+
+    @Test
+    public void failureNotCancelled() throws Exception {
+        future.setFailure(new ErrorResponseException(1, 8));
+        assertFalse(future.isCancelled());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void timeout() throws Exception {
+        future.get(10, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lambdaworks.snap.metrics.Gauge;
+import com.lambdaworks.snap.metrics.Metrics;
+import com.lambdaworks.snap.protocol.ErrorResponse;
+import com.lambdaworks.snap.protocol.NotificationQueue;
+import com.lambdaworks.snap.protocol.PushNotificationHandler;
+import com.lambdaworks.snap.protocol.SentWindow;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PushNotificationHandlerTest {
+    private ClientRuntime runtime;
+    private ObjectMapper mapper;
+    private NotificationQueue queue;
+    private SentWindow window;
+    private PushNotificationHandler handler;
+    private BlockingQueue<MessageEvent> writes;
+    private Channel channel;
+    private byte[] token = new byte[32];
+    private long id;
+
+    @Before
+    public void setup() throws Exception {
+        Gauge zero = new Gauge() {
+            @Override
+            public long getValue() {
+                return 0;
+            }
+        };
+        runtime = new ClientRuntime(1);
+        mapper  = new ObjectMapper();
+        queue   = new NotificationQueue();
+        window  = new SentWindow();
+        handler = new PushNotificationHandler(queue, window, Collections.<ErrorListener>emptyList(),
+                mapper, runtime.getTimer(), new Metrics(zero, zero));
+        writes  = new LinkedBlockingQueue<MessageEvent>();
+
+        ChannelPipeline pipeline = Channels.pipeline(new SimpleChannelDownstreamHandler() {
+            @Override
+            public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                writes.add(e);
+            }
+        }, handler);
+        channel = new DefaultLocalClientChannelFactory().newChannel(pipeline);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void batchFlushedWhenFull() throws Exception {
+        handler.setBatching(3 * frameLength(), 10, TimeUnit.SECONDS);
+
+        PushNotification[] n = new PushNotification[3];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = create();
+            channel.write(n[i]);
+            if (i < n.length - 1) assertTrue(writes.isEmpty());
+        }
+
+        MessageEvent e = writes.poll();
+        assertNotNull(e);
+        assertEquals(3 * frameLength(), ((ChannelBuffer) e.getMessage()).readableBytes());
+        assertTrue(writes.isEmpty());
+
+        for (PushNotification pn : n) assertFalse(pn.future().isDone());
+        e.getFuture().setSuccess();
+        for (PushNotification pn : n) assertTrue(pn.future().isSuccess());
+        assertEquals(0, window.inFlight());
+    }
+
+    @Test
+    public void partialBatchFlushedAfterDelay() throws Exception {
+        handler.setBatching(64 * 1024, 10, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        channel.write(create());
+        channel.write(create());
+
+        MessageEvent e = writes.poll(1, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertNotNull(e);
+        assertEquals(2 * frameLength(), ((ChannelBuffer) e.getMessage()).readableBytes());
+        assertTrue("flushed after " + elapsed + "ms", elapsed < 80);
+        assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void failedBatchRequeued() throws Exception {
+        handler.setBatching(2 * frameLength(), 10, TimeUnit.SECONDS);
+
+        PushNotification n1 = create();
+        PushNotification n2 = create();
+        ChannelFuture f1 = channel.write(n1);
+        ChannelFuture f2 = channel.write(n2);
+
+        MessageEvent e = writes.poll();
+        assertNotNull(e);
+        e.getFuture().setFailure(new IOException("write failed"));
+
+        assertFalse(f1.isSuccess());
+        assertFalse(f2.isSuccess());
+        assertFalse(n1.future().isDone());
+        assertFalse(n2.future().isDone());
+        assertEquals(0, window.size());
+
+        assertSame(n1, queue.poll());
+        assertSame(n2, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void errorResponseForUnknownIdResendsInFlight() throws Exception {
+        handler.setQuietPeriod(10, TimeUnit.SECONDS);
+
+        PushNotification n1 = create();
+        PushNotification n2 = create();
+        PushNotification n3 = create();
+        channel.write(n1);
+        channel.write(n2);
+        channel.write(n3);
+
+        writes.poll().getFuture().setSuccess();
+        writes.poll().getFuture().setSuccess();
+        window.retire(window.find(n1.id));
+        MessageEvent pending = writes.poll();
+
+        Channels.fireMessageReceived(channel, new ErrorResponse(PushNotificationHandler.INVALID_TOKEN, 99));
+        assertSame(n2, queue.poll());
+        assertNull(queue.poll());
+
+        pending.getFuture().setSuccess();
+        assertSame(n3, queue.poll());
+        assertNull(queue.poll());
+        assertSame(n1, window.get(window.find(n1.id)));
+        assertEquals(1, window.size());
+    }
+
+    private PushNotification create() {
+        return new PushNotification(id++, token).alert("hello");
+    }
+
+    private int frameLength() throws Exception {
+        PushNotification n = new PushNotification(0, token).alert("hello");
+        return n.encode(mapper, HeapChannelBufferFactory.getInstance(), FrameFormat.COMMAND_1).readableBytes();
+    }
+}
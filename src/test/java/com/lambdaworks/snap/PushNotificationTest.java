@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -135,6 +136,91 @@ public class PushNotificationTest {
         assertEquals(map("aps", map(), "key", "value"), verify());
     }
 
+    @Test
+    public void payloadBytes() throws Exception {
+        notification.sound("default").alert("msg").badge(1);
+        notification.extra().put("data", "value");
+        notification.encodePayload(mapper, buffer);
+
+        int len = buffer.readShort();
+        assertEquals(len, buffer.readableBytes());
+        String json = buffer.toString(CharsetUtil.UTF_8);
+        assertEquals("{\"aps\":{\"badge\":1,\"alert\":\"msg\",\"sound\":\"default\"},\"data\":\"value\"}", json);
+    }
+
+    @Test
+    public void sharedPayload() throws Exception {
+        expiry = new Date();
+        notification.alert("msg").expiry(expiry);
+        notification.encode(mapper, buffer);
+
+        PushNotification template = new PushNotification(0, null);
+        template.alert("msg");
+        ChannelBuffer payload = ChannelBuffers.dynamicBuffer();
+        template.encodePayload(mapper, payload);
+
+        PushNotification shared = new PushNotification(id, token, expiry, payload);
+        assertEquals(buffer, shared.encode(mapper, buffer.factory()));
+
+        ChannelBuffer copy = ChannelBuffers.dynamicBuffer();
+        shared.encode(mapper, copy);
+        assertEquals(buffer, copy);
+        assertEquals(0, payload.readerIndex());
+    }
+
+    @Test
+    public void command2Frame() throws Exception {
+        expiry = new Date();
+        notification.alert("msg").expiry(expiry).priority(PushNotification.PRIORITY_CONSERVE_POWER);
+        notification.encode(mapper, buffer, FrameFormat.COMMAND_2);
+
+        assertEquals(2, buffer.readByte());
+        assertEquals(buffer.readableBytes() - 4, buffer.readInt());
+
+        assertEquals(1, buffer.readByte());
+        assertEquals(32, buffer.readShort());
+        byte[] bytes = new byte[32];
+        buffer.readBytes(bytes);
+        assertArrayEquals(token, bytes);
+
+        assertEquals(3, buffer.readByte());
+        assertEquals(4, buffer.readShort());
+        assertEquals(id, buffer.readUnsignedInt());
+
+        assertEquals(4, buffer.readByte());
+        assertEquals(4, buffer.readShort());
+        assertEquals(expiry.getTime() / 1000, buffer.readInt());
+
+        assertEquals(5, buffer.readByte());
+        assertEquals(1, buffer.readShort());
+        assertEquals(5, buffer.readByte());
+
+        assertEquals(2, buffer.readByte());
+        bytes = new byte[buffer.readShort()];
+        buffer.readBytes(bytes);
+        assertEquals(map("aps", map("alert", "msg")), mapper.readValue(bytes, TreeMap.class));
+        assertFalse(buffer.readable());
+    }
+
+    @Test
+    public void command2SharedPayload() throws Exception {
+        notification.alert("msg");
+        notification.encode(mapper, buffer, FrameFormat.COMMAND_2);
+
+        PushNotification template = new PushNotification(0, null);
+        template.alert("msg");
+        ChannelBuffer payload = ChannelBuffers.dynamicBuffer();
+        template.encodePayload(mapper, payload);
+
+        PushNotification shared = new PushNotification(id, token, null, payload);
+        assertEquals(buffer, shared.encode(mapper, buffer.factory(), FrameFormat.COMMAND_2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPriority() throws Exception {
+        notification.priority(7);
+    }
+
     public Map<String, Object> aps(Object... o) {
         return map("aps", map(o));
     }
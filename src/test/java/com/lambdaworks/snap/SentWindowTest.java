@@ -0,0 +1,219 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap;
+
+import com.lambdaworks.snap.protocol.SentWindow;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SentWindowTest {
+    private byte[] token = new byte[32];
+
+    @Test
+    public void capacityRoundedToPowerOfTwo() throws Exception {
+        assertEquals(8,  new SentWindow(5).capacity());
+        assertEquals(16, new SentWindow(16).capacity());
+    }
+
+    @Test
+    public void addGetRemove() throws Exception {
+        SentWindow window = new SentWindow(4);
+        PushNotification n = new PushNotification(7, token);
+
+        long seq = window.add(n);
+        assertEquals(0, seq);
+        assertSame(n, window.get(seq));
+        assertNull(window.get(seq + 1));
+        assertEquals(1, window.size());
+        assertEquals(1, window.inFlight());
+
+        assertSame(n, window.remove(seq));
+        assertNull(window.remove(seq));
+        assertNull(window.get(seq));
+        assertEquals(0, window.size());
+        assertEquals(0, window.inFlight());
+    }
+
+    @Test
+    public void retiredEvicted() throws Exception {
+        SentWindow window = new SentWindow(4);
+        PushNotification[] n = new PushNotification[5];
+        for (int i = 0; i < 4; i++) {
+            n[i] = new PushNotification(i, token);
+            window.retire(window.add(n[i]));
+        }
+        assertEquals(4, window.size());
+        assertEquals(0, window.inFlight());
+
+        n[4] = new PushNotification(4, token);
+        assertEquals(4, window.add(n[4]));
+        assertNull(window.get(0));
+        assertSame(n[4], window.get(4));
+        assertEquals(4, window.size());
+        assertEquals(1, window.inFlight());
+    }
+
+    @Test
+    public void inFlightNotEvicted() throws Exception {
+        final AtomicInteger available = new AtomicInteger();
+        SentWindow window = new SentWindow(2);
+        window.setAvailableCallback(new Runnable() {
+            @Override
+            public void run() {
+                available.incrementAndGet();
+            }
+        });
+
+        PushNotification n1 = new PushNotification(1, token);
+        PushNotification n2 = new PushNotification(2, token);
+        PushNotification n3 = new PushNotification(3, token);
+
+        long seq1 = window.add(n1);
+        window.add(n2);
+        assertTrue(window.isFull());
+        assertEquals(-1, window.add(n3));
+        assertSame(n1, window.get(seq1));
+        assertEquals(0, available.get());
+
+        window.retire(seq1);
+        assertEquals(1, available.get());
+        assertFalse(window.isFull());
+        assertEquals(2, window.add(n3));
+        assertNull(window.get(seq1));
+    }
+
+    @Test
+    public void findById() throws Exception {
+        SentWindow window = new SentWindow(4);
+        PushNotification n1 = new PushNotification(0xFFFFFFFFL, token);
+        PushNotification n2 = new PushNotification(2, token);
+
+        window.add(n2);
+        long seq = window.add(n1);
+        assertEquals(seq, window.find(0xFFFFFFFFL));
+        assertEquals(seq, window.find(-1));
+        assertEquals(-1, window.find(3));
+    }
+
+    @Test
+    public void findByIdAfterEviction() throws Exception {
+        SentWindow window = new SentWindow(16);
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            long id  = random.nextInt(64);
+            long seq = window.add(new PushNotification(id, token));
+            window.retire(seq);
+            if (random.nextInt(4) == 0) window.remove(seq);
+
+            for (long other = 0; other < 64; other++) {
+                long found = window.find(other);
+                if (found >= 0) {
+                    assertEquals(other, window.get(found).id);
+                    assertTrue(found > seq - window.capacity());
+                }
+            }
+            if (window.get(seq) != null) assertEquals(seq, window.find(id));
+        }
+    }
+
+    @Test
+    public void removeAfterReturnsWrittenInWriteOrder() throws Exception {
+        SentWindow window = new SentWindow(8);
+        long[] ids = { 5, 3, 9, 1, 4, 2 };
+        PushNotification[] n = new PushNotification[ids.length];
+        long[] seq = new long[ids.length];
+        for (int i = 0; i < n.length; i++) {
+            n[i]   = new PushNotification(ids[i], token);
+            seq[i] = window.add(n[i]);
+        }
+        for (int i = n.length - 1; i >= 0; i--) {
+            if (i != 4) window.written(seq[i]);
+        }
+
+        List<PushNotification> list = window.removeAfter(window.find(9));
+        assertEquals(2, list.size());
+        assertSame(n[3], list.get(0));
+        assertSame(n[5], list.get(1));
+
+        assertEquals(3, window.size());
+        assertNull(window.get(seq[4]));
+        assertFalse(window.written(seq[4]));
+        assertTrue(window.written(seq[1]));
+    }
+
+    @Test
+    public void removeInFlightKeepsRetired() throws Exception {
+        SentWindow window = new SentWindow(8);
+        PushNotification[] n = new PushNotification[4];
+        long[] seq = new long[n.length];
+        for (int i = 0; i < n.length; i++) {
+            n[i]   = new PushNotification(i, token);
+            seq[i] = window.add(n[i]);
+            if (i < 3) window.written(seq[i]);
+        }
+        window.retire(seq[1]);
+
+        List<PushNotification> list = window.removeInFlight();
+        assertEquals(2, list.size());
+        assertSame(n[0], list.get(0));
+        assertSame(n[2], list.get(1));
+        assertEquals(1, window.size());
+        assertSame(n[1], window.get(seq[1]));
+        assertEquals(0, window.inFlight());
+    }
+
+    @Test
+    public void setCapacity() throws Exception {
+        SentWindow window = new SentWindow(4);
+        long[] seq = new long[4];
+        for (int i = 0; i < seq.length; i++) {
+            seq[i] = window.add(new PushNotification(i, token));
+        }
+        assertTrue(window.isFull());
+
+        window.setCapacity(8);
+        assertEquals(8, window.capacity());
+        assertFalse(window.isFull());
+        for (int i = 0; i < seq.length; i++) {
+            assertEquals(i, window.get(seq[i]).id);
+            assertEquals(seq[i], window.find(i));
+        }
+
+        try {
+            window.setCapacity(2);
+            fail("in flight notifications evicted");
+        } catch (IllegalStateException e) {
+            assertEquals(8, window.capacity());
+        }
+
+        window.retire(seq[0]);
+        window.retire(seq[1]);
+        window.setCapacity(2);
+        assertEquals(2, window.size());
+        assertNull(window.get(seq[0]));
+        assertEquals(-1, window.find(1));
+        assertEquals(3, window.get(seq[3]).id);
+        assertEquals(seq[2], window.find(2));
+    }
+
+    @Test
+    public void removeAfterNoneRemovesAll() throws Exception {
+        SentWindow window = new SentWindow(4);
+        for (int i = 0; i < 6; i++) {
+            long seq = window.add(new PushNotification(i, token));
+            window.written(seq);
+            window.retire(seq);
+        }
+
+        List<PushNotification> list = window.removeAfter(-1);
+        assertEquals(4, list.size());
+        assertEquals(2, list.get(0).id);
+        assertEquals(5, list.get(3).id);
+        assertEquals(0, window.size());
+    }
+}
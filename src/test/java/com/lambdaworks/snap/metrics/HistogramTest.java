@@ -0,0 +1,51 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void bucketBounds() throws Exception {
+        for (long v : new long[] { 0, 1, 3, 4, 5, 7, 8, 9, 1000, 123456789L, Long.MAX_VALUE }) {
+            int bucket = Histogram.bucket(v);
+            assertTrue(v <= Histogram.upper(bucket));
+            if (bucket > 0) assertTrue(v > Histogram.upper(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+
+        assertEquals(1000, h.getCount());
+        assertEquals(500.5, h.getMean(), 0.001);
+
+        long p50 = h.getPercentile(0.50);
+        long p99 = h.getPercentile(0.99);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.25);
+        assertTrue(p99 >= 990 && p99 <= 990 * 1.25);
+        assertTrue(h.getMax() >= 1000);
+    }
+
+    @Test
+    public void counter() throws Exception {
+        final Counter c = new Counter();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) c.increment();
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        assertEquals(40000, c.getCount());
+    }
+}
@@ -0,0 +1,128 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.simulator;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Local simulator of the APNS feedback service. Each connection is sent the
+ * tokens added since the previous connection, after which it is closed.
+ *
+ * @author Will Glozer
+ */
+public class FeedbackSimulator {
+    private SSLContext sslContext;
+    private ServerBootstrap bootstrap;
+    private ChannelGroup channels;
+    private Random random;
+    private BlockingQueue<ChannelBuffer> pending;
+
+    public FeedbackSimulator(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        this.channels   = new DefaultChannelGroup();
+        this.random     = new Random();
+        this.pending    = new LinkedBlockingQueue<ChannelBuffer>();
+    }
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     *
+     * @return The address of the simulator.
+     */
+    public InetSocketAddress start() {
+        ExecutorService boss    = Executors.newCachedThreadPool();
+        ExecutorService workers = Executors.newCachedThreadPool();
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(boss, workers));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+                engine.setEnabledProtocols(Simulators.PROTOCOLS);
+                return Channels.pipeline(new SslHandler(engine), new Handler());
+            }
+        });
+
+        Channel channel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Close all connections and stop listening.
+     */
+    public void stop() {
+        channels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+    }
+
+    /**
+     * Add an expired token to send to the next connection.
+     *
+     * @param token     Device token.
+     * @param timestamp Time the token expired, in seconds since the epoch.
+     */
+    public void add(byte[] token, long timestamp) {
+        ChannelBuffer buf = ChannelBuffers.buffer(6 + token.length);
+        buf.writeInt((int) timestamp);
+        buf.writeShort(token.length);
+        buf.writeBytes(token);
+        pending.add(buf);
+    }
+
+    /**
+     * Add random 32-byte tokens that expired now.
+     *
+     * @param count Number of tokens.
+     */
+    public void generate(int count) {
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < count; i++) {
+            byte[] token = new byte[32];
+            random.nextBytes(token);
+            add(token, now);
+        }
+    }
+
+    /**
+     * Handler that streams pending tokens once the TLS handshake completes.
+     */
+    protected class Handler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            final Channel channel = ctx.getChannel();
+            channels.add(channel);
+            ctx.getPipeline().get(SslHandler.class).handshake().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) return;
+                    ChannelFuture last = future;
+                    ChannelBuffer buf;
+                    while ((buf = pending.poll()) != null) {
+                        last = channel.write(buf);
+                    }
+                    last.addListener(ChannelFutureListener.CLOSE);
+                }
+            });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            e.getChannel().close();
+        }
+    }
+}
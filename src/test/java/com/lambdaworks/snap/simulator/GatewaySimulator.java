@@ -0,0 +1,298 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.simulator;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.*;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local simulator of the APNS gateway that speaks the binary protocol over TLS.
+ * Received notifications are recorded, chosen notifications are rejected with
+ * an error response, connections may be dropped at random, and reads may be
+ * delayed to simulate a slow gateway.
+ *
+ * @author Will Glozer
+ */
+public class GatewaySimulator {
+    private SSLContext sslContext;
+    private ServerBootstrap bootstrap;
+    private ChannelGroup channels;
+    private Timer timer;
+    private Random random;
+    private Map<Long, Integer> rejects;
+    private BlockingQueue<Notification> received;
+    private AtomicInteger connections;
+    private volatile double dropRate;
+    private volatile long latency;
+
+    public GatewaySimulator(SSLContext sslContext) {
+        this.sslContext  = sslContext;
+        this.channels    = new DefaultChannelGroup();
+        this.timer       = new HashedWheelTimer();
+        this.random      = new Random();
+        this.rejects     = new ConcurrentHashMap<Long, Integer>();
+        this.received    = new LinkedBlockingQueue<Notification>();
+        this.connections = new AtomicInteger();
+    }
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     *
+     * @return The address of the simulator.
+     */
+    public InetSocketAddress start() {
+        ExecutorService boss    = Executors.newCachedThreadPool();
+        ExecutorService workers = Executors.newCachedThreadPool();
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(boss, workers));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+                engine.setEnabledProtocols(Simulators.PROTOCOLS);
+                return Channels.pipeline(new SslHandler(engine), new Decoder(), new Handler());
+            }
+        });
+
+        Channel channel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Close all connections and stop listening.
+     */
+    public void stop() {
+        channels.close().awaitUninterruptibly();
+        if (bootstrap != null) bootstrap.releaseExternalResources();
+        timer.stop();
+    }
+
+    /**
+     * Reject the notification with the specified id, responding with an error
+     * and closing the connection when it is received.
+     *
+     * @param id        Notification id.
+     * @param status    Error status code.
+     */
+    public void reject(long id, int status) {
+        rejects.put(id, status);
+    }
+
+    /**
+     * Set the probability that a connection is dropped after each frame is read.
+     *
+     * @param rate  Probability between 0 and 1.
+     */
+    public void setDropRate(double rate) {
+        this.dropRate = rate;
+    }
+
+    /**
+     * Set the delay before more data is read after each read.
+     *
+     * @param latency   Delay.
+     * @param unit      Unit of time for the delay.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        this.latency = unit.toMillis(latency);
+    }
+
+    /**
+     * Get the number of connections accepted.
+     *
+     * @return The number of connections.
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * Get the number of notifications received.
+     *
+     * @return The number of notifications.
+     */
+    public int count() {
+        return received.size();
+    }
+
+    /**
+     * Wait until at least count notifications have been received.
+     *
+     * @param count     Number of notifications.
+     * @param timeout   Maximum time to wait.
+     * @param unit      Unit of time for the timeout.
+     *
+     * @return true if count notifications were received.
+     */
+    public boolean await(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (received.size() < count) {
+            if (System.nanoTime() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return the next notification received.
+     *
+     * @return The notification, or null if none has been received.
+     */
+    public Notification poll() {
+        return received.poll();
+    }
+
+    /**
+     * Notification as received by the simulator.
+     */
+    public static class Notification {
+        public final long id;
+        public final long expiry;
+        public final byte[] token;
+        public final byte[] payload;
+        public final int priority;
+
+        public Notification(long id, long expiry, byte[] token, byte[] payload, int priority) {
+            this.id       = id;
+            this.expiry   = expiry;
+            this.token    = token;
+            this.payload  = payload;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Decoder of command 1 and command 2 notification frames.
+     */
+    protected static class Decoder extends FrameDecoder {
+        @Override
+        protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+            int start = buffer.readerIndex();
+            if (buffer.readableBytes() < 11) return null;
+
+            int command = buffer.getUnsignedByte(start);
+            if (command == 2) return decodeFrame(buffer);
+            if (command != 1) {
+                buffer.skipBytes(buffer.readableBytes());
+                channel.close();
+                return null;
+            }
+
+            int tokenLen = buffer.getUnsignedShort(start + 9);
+            if (buffer.readableBytes() < 11 + tokenLen + 2) return null;
+            int payloadLen = buffer.getUnsignedShort(start + 11 + tokenLen);
+            if (buffer.readableBytes() < 11 + tokenLen + 2 + payloadLen) return null;
+
+            buffer.skipBytes(1);
+            long id     = buffer.readUnsignedInt();
+            long expiry = buffer.readUnsignedInt();
+            byte[] token = new byte[buffer.readUnsignedShort()];
+            buffer.readBytes(token);
+            byte[] payload = new byte[buffer.readUnsignedShort()];
+            buffer.readBytes(payload);
+
+            return new Notification(id, expiry, token, payload, 10);
+        }
+
+        private Object decodeFrame(ChannelBuffer buffer) {
+            long length = buffer.getUnsignedInt(buffer.readerIndex() + 1);
+            if (buffer.readableBytes() < 5 + length) return null;
+            buffer.skipBytes(5);
+
+            long id = 0, expiry = 0;
+            byte[] token = null, payload = null;
+            int priority = 10;
+
+            ChannelBuffer items = buffer.readSlice((int) length);
+            while (items.readable()) {
+                int item = items.readUnsignedByte();
+                ChannelBuffer data = items.readSlice(items.readUnsignedShort());
+                switch (item) {
+                    case 1: token    = new byte[data.readableBytes()]; data.readBytes(token);   break;
+                    case 2: payload  = new byte[data.readableBytes()]; data.readBytes(payload); break;
+                    case 3: id       = data.readUnsignedInt(); break;
+                    case 4: expiry   = data.readUnsignedInt(); break;
+                    case 5: priority = data.readUnsignedByte(); break;
+                }
+            }
+
+            return new Notification(id, expiry, token, payload, priority);
+        }
+    }
+
+    /**
+     * Handler of decoded notifications for a single connection.
+     */
+    protected class Handler extends SimpleChannelUpstreamHandler implements TimerTask {
+        private volatile Channel channel;
+        private volatile boolean rejected;
+
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            channel = ctx.getChannel();
+            channels.add(channel);
+            connections.incrementAndGet();
+            ctx.getPipeline().get(SslHandler.class).handshake();
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if (rejected) return;
+
+            Notification n = (Notification) e.getMessage();
+            Integer status = rejects.remove(n.id);
+            if (status != null) {
+                rejected = true;
+                ChannelBuffer error = ChannelBuffers.buffer(6);
+                error.writeByte(8);
+                error.writeByte(status);
+                error.writeInt((int) n.id);
+                e.getChannel().write(error).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+
+            received.add(n);
+
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                rejected = true;
+                e.getChannel().close();
+                return;
+            }
+
+            long latency = GatewaySimulator.this.latency;
+            if (latency > 0 && e.getChannel().isReadable()) {
+                e.getChannel().setReadable(false);
+                timer.newTimeout(this, latency, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            e.getChannel().close();
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            Channel channel = this.channel;
+            if (channel.isOpen()) channel.setReadable(true);
+        }
+    }
+}
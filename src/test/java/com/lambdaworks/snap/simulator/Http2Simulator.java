@@ -0,0 +1,311 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.simulator;
+
+import com.lambdaworks.snap.protocol.*;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.*;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.lambdaworks.snap.protocol.Http2Frame.*;
+
+/**
+ * Local stand-in for the APNS HTTP/2 provider API. Requests are recorded and
+ * answered with status 200, except for requests to chosen tokens which are
+ * rejected with an error status and reason, and requests authenticated with
+ * expired provider tokens which are rejected with 403. Responses may be delayed so that
+ * many streams are open at once, and the peak number of concurrently open
+ * streams is recorded.
+ *
+ * @author Will Glozer
+ */
+public class Http2Simulator {
+    private SSLContext sslContext;
+    private ServerBootstrap bootstrap;
+    private ChannelGroup channels;
+    private Timer timer;
+    private Map<String, Object[]> rejects;
+    private Set<String> expired;
+    private BlockingQueue<Request> received;
+    private AtomicInteger connections;
+    private AtomicInteger peakStreams;
+    private volatile int maxStreams;
+    private volatile long delay;
+
+    public Http2Simulator(SSLContext sslContext) {
+        this.sslContext  = sslContext;
+        this.channels    = new DefaultChannelGroup();
+        this.timer       = new HashedWheelTimer();
+        this.rejects     = new ConcurrentHashMap<String, Object[]>();
+        this.expired     = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.received    = new LinkedBlockingQueue<Request>();
+        this.connections = new AtomicInteger();
+        this.peakStreams = new AtomicInteger();
+        this.maxStreams  = 100;
+    }
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     *
+     * @return The address of the simulator.
+     */
+    public InetSocketAddress start() {
+        ExecutorService boss    = Executors.newCachedThreadPool();
+        ExecutorService workers = Executors.newCachedThreadPool();
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(boss, workers));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+                engine.setEnabledProtocols(Simulators.PROTOCOLS);
+                Http2Connection.enableAlpn(engine);
+                return Channels.pipeline(new SslHandler(engine), new Http2FrameDecoder(true, DEFAULT_MAX_FRAME_SIZE), new Handler());
+            }
+        });
+
+        Channel channel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Close all connections and stop listening.
+     */
+    public void stop() {
+        channels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+        timer.stop();
+    }
+
+    /**
+     * Close all client connections, leaving open streams unanswered.
+     */
+    public void drop() {
+        for (Channel channel : channels) {
+            if (channel.getParent() != null) channel.close();
+        }
+    }
+
+    /**
+     * Reject requests to the specified token.
+     *
+     * @param token     Device token in hex.
+     * @param status    HTTP status.
+     * @param reason    Reason returned in the response body.
+     */
+    public void reject(String token, int status, String reason) {
+        rejects.put(token, new Object[] { status, reason });
+    }
+
+    /**
+     * Accept requests to a token that was previously rejected.
+     *
+     * @param token     Device token in hex.
+     */
+    public void accept(String token) {
+        rejects.remove(token);
+    }
+
+    /**
+     * Reject requests authenticated with the specified provider token as expired.
+     *
+     * @param token     Signed provider token.
+     */
+    public void expire(String token) {
+        expired.add(token);
+    }
+
+    /**
+     * Set the maximum number of concurrent streams advertised to new connections.
+     *
+     * @param streams   Maximum concurrent streams.
+     */
+    public void setMaxStreams(int streams) {
+        this.maxStreams = streams;
+    }
+
+    /**
+     * Set the delay before each response is sent.
+     *
+     * @param delay Delay.
+     * @param unit  Unit of time for the delay.
+     */
+    public void setDelay(long delay, TimeUnit unit) {
+        this.delay = unit.toMillis(delay);
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    public int peakStreams() {
+        return peakStreams.get();
+    }
+
+    /**
+     * Wait until at least count requests have been received.
+     *
+     * @param count     Number of requests.
+     * @param timeout   Maximum time to wait.
+     * @param unit      Unit of time for the timeout.
+     *
+     * @return true if count requests were received.
+     */
+    public boolean await(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (received.size() < count) {
+            if (System.nanoTime() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Remove and return the next request received.
+     *
+     * @return The request, or null if none has been received.
+     */
+    public Request poll() {
+        return received.poll();
+    }
+
+    /**
+     * Request as received by the simulator.
+     */
+    public static class Request {
+        public final Map<String, String> headers;
+        public final String body;
+
+        public Request(Map<String, String> headers, String body) {
+            this.headers = headers;
+            this.body    = body;
+        }
+    }
+
+    /**
+     * Handler of the frames of a single connection.
+     */
+    protected class Handler extends SimpleChannelUpstreamHandler {
+        private Channel channel;
+        private Hpack.Decoder decoder = new Hpack.Decoder();
+        private Map<Integer, Map<String, String>> open = new HashMap<Integer, Map<String, String>>();
+        private Map<Integer, ChannelBuffer> bodies = new HashMap<Integer, ChannelBuffer>();
+
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            channel = ctx.getChannel();
+            channels.add(channel);
+            connections.incrementAndGet();
+            ctx.getPipeline().get(SslHandler.class).handshake().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    ChannelBuffer buf = ChannelBuffers.buffer(HEADER_LENGTH + 6);
+                    writeHeader(buf, 6, SETTINGS, 0, 0);
+                    buf.writeShort(SETTINGS_MAX_CONCURRENT_STREAMS);
+                    buf.writeInt(maxStreams);
+                    write(buf);
+                }
+            });
+        }
+
+        @Override
+        public synchronized void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            Http2Frame frame = (Http2Frame) e.getMessage();
+            switch (frame.type) {
+                case SETTINGS:
+                    if (!frame.hasFlag(ACK)) {
+                        ChannelBuffer buf = ChannelBuffers.buffer(HEADER_LENGTH);
+                        writeHeader(buf, 0, SETTINGS, ACK, 0);
+                        write(buf);
+                    }
+                    break;
+                case HEADERS:
+                    Map<String, String> headers = new HashMap<String, String>();
+                    decoder.decode(frame.payload, headers);
+                    open.put(frame.stream, headers);
+                    bodies.put(frame.stream, ChannelBuffers.dynamicBuffer());
+                    int streams = open.size();
+                    while (peakStreams.get() < streams) peakStreams.set(streams);
+                    break;
+                case DATA:
+                    int length = frame.payload.readableBytes();
+                    bodies.get(frame.stream).writeBytes(frame.payload);
+                    ChannelBuffer buf = ChannelBuffers.buffer(HEADER_LENGTH + 4);
+                    writeHeader(buf, 4, WINDOW_UPDATE, 0, 0);
+                    buf.writeInt(length);
+                    write(buf);
+                    if (frame.hasFlag(END_STREAM)) request(frame.stream);
+                    break;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            e.getChannel().close();
+        }
+
+        private void request(final int stream) {
+            final Map<String, String> headers = open.get(stream);
+            String body = bodies.remove(stream).toString(CharsetUtil.UTF_8);
+            received.add(new Request(headers, body));
+
+            long delay = Http2Simulator.this.delay;
+            if (delay > 0) {
+                timer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        respond(stream, headers);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                respond(stream, headers);
+            }
+        }
+
+        private synchronized void respond(int stream, Map<String, String> headers) {
+            open.remove(stream);
+            String path = headers.get(":path");
+            Object[] reject = rejects.get(path.substring(path.lastIndexOf('/') + 1));
+            String authorization = headers.get("authorization");
+            if (authorization != null && expired.contains(authorization.substring("bearer ".length()))) {
+                reject = new Object[] { 403, "ExpiredProviderToken" };
+            }
+
+            ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+            int index = buf.writerIndex();
+            writeHeader(buf, 0, HEADERS, END_HEADERS | (reject == null ? END_STREAM : 0), stream);
+            Hpack.encode(buf, ":status", reject == null ? "200" : String.valueOf(reject[0]));
+            Hpack.encode(buf, "apns-id", "00000000-0000-0000-0000-" + String.format("%012d", stream));
+            buf.setMedium(index, buf.writerIndex() - index - HEADER_LENGTH);
+
+            if (reject != null) {
+                byte[] body = ("{\"reason\":\"" + reject[1] + "\"}").getBytes(CharsetUtil.UTF_8);
+                writeHeader(buf, body.length, DATA, END_STREAM, stream);
+                buf.writeBytes(body);
+            }
+            write(buf);
+        }
+
+        private synchronized void write(ChannelBuffer buf) {
+            if (channel.isConnected()) channel.write(buf);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+// Copyright (C) 2011 - Will Glozer.  All rights reserved.
+
+package com.lambdaworks.snap.simulator;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+/**
+ * Utilities shared by the simulators and their clients.
+ *
+ * @author Will Glozer
+ */
+public class Simulators {
+    /**
+     * TLS protocols enabled by the simulators, excluding TLSv1.3 which the netty
+     * SslHandler predates.
+     */
+    public static final String[] PROTOCOLS = { "TLSv1.2" };
+
+    /**
+     * Create a {@link SSLContext} using the self-signed simulator certificate as
+     * both key and trust material, suitable for the simulators and for clients
+     * connecting to them.
+     *
+     * @return The TLS context.
+     */
+    public static SSLContext sslContext() throws Exception {
+        char[] passwd = "changeit".toCharArray();
+        KeyStore keystore = KeyStore.getInstance("JKS");
+        InputStream is = Simulators.class.getResourceAsStream("/simulator.keystore");
+        try {
+            keystore.load(is, passwd);
+        } finally {
+            is.close();
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keystore, passwd);
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keystore);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return sslContext;
+    }
+}